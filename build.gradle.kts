@@ -29,6 +29,9 @@ dependencies {
 
     implementation("org.apache.httpcomponents.client5:httpclient5:5.4.1")
 
+    // CPU runtime for decoding prompts locally
+    implementation("com.microsoft.onnxruntime:onnxruntime:1.20.0")
+
     // For testing
     testImplementation(libs.bundles.qupath)
     testImplementation(libs.junit)
@@ -0,0 +1,175 @@
+package org.elephant.sam;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.RoiTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Interpolate the shape of an object between two planes.
+ * <p>
+ * Both ROIs are rasterized on a common grid and converted to signed distance maps. The maps are blended linearly and
+ * the zero level set is traced back to a ROI. This handles translation, growth and moderate changes of shape, but
+ * not topology changes that the distance maps cannot represent (e.g. an object splitting in two).
+ */
+public class MaskInterpolator {
+
+    private static final double INF = 1e20;
+
+    private final int maxGridSize;
+
+    /**
+     * Create an interpolator.
+     *
+     * @param maxGridSize
+     *            the maximum width or height of the raster grid; larger objects are rasterized at a lower resolution
+     */
+    public MaskInterpolator(int maxGridSize) {
+        this.maxGridSize = Math.max(16, maxGridSize);
+    }
+
+    /**
+     * Interpolate between two ROIs.
+     *
+     * @param roi1
+     *            the ROI at weight 0
+     * @param roi2
+     *            the ROI at weight 1
+     * @param weight
+     *            the position between the two ROIs, in [0, 1]
+     * @param plane
+     *            the plane of the interpolated ROI
+     * @return the interpolated ROI, or null if it is empty
+     */
+    public ROI interpolate(ROI roi1, ROI roi2, double weight, ImagePlane plane) {
+        Rectangle2D bounds = roi1.getShape().getBounds2D().createUnion(roi2.getShape().getBounds2D());
+        double scale = Math.max(1.0, Math.max(bounds.getWidth(), bounds.getHeight()) / (maxGridSize - 4));
+        // Pad by two cells so that the outline never touches the edge of the grid
+        double x0 = bounds.getMinX() - 2 * scale;
+        double y0 = bounds.getMinY() - 2 * scale;
+        int width = (int) Math.ceil(bounds.getWidth() / scale) + 4;
+        int height = (int) Math.ceil(bounds.getHeight() / scale) + 4;
+
+        AffineTransform toGrid = new AffineTransform();
+        toGrid.scale(1.0 / scale, 1.0 / scale);
+        toGrid.translate(-x0, -y0);
+        double[] sdf1 = signedDistance(rasterize(roi1, toGrid, width, height), width, height);
+        double[] sdf2 = signedDistance(rasterize(roi2, toGrid, width, height), width, height);
+
+        Path2D path = new Path2D.Double();
+        boolean empty = true;
+        for (int y = 0; y < height; y++) {
+            int runStart = -1;
+            for (int x = 0; x <= width; x++) {
+                boolean inside = false;
+                if (x < width) {
+                    int i = y * width + x;
+                    inside = (1 - weight) * sdf1[i] + weight * sdf2[i] <= 0;
+                }
+                if (inside && runStart < 0) {
+                    runStart = x;
+                } else if (!inside && runStart >= 0) {
+                    path.append(new Rectangle2D.Double(runStart, y, x - runStart, 1), false);
+                    runStart = -1;
+                    empty = false;
+                }
+            }
+        }
+        if (empty)
+            return null;
+
+        AffineTransform fromGrid = new AffineTransform();
+        fromGrid.translate(x0, y0);
+        fromGrid.scale(scale, scale);
+        Area area = new Area(path);
+        area.transform(fromGrid);
+        return RoiTools.getShapeROI(area, plane, 0.5);
+    }
+
+    private static boolean[] rasterize(ROI roi, AffineTransform toGrid, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2d.transform(toGrid);
+        g2d.fill(roi.getShape());
+        g2d.dispose();
+        byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        boolean[] mask = new boolean[width * height];
+        for (int i = 0; i < mask.length; i++)
+            mask[i] = pixels[i] != 0;
+        return mask;
+    }
+
+    /**
+     * Compute a signed distance map, negative inside the mask and positive outside.
+     */
+    private static double[] signedDistance(boolean[] mask, int width, int height) {
+        double[] outside = distanceTransform(mask, true, width, height);
+        double[] inside = distanceTransform(mask, false, width, height);
+        double[] sdf = new double[mask.length];
+        for (int i = 0; i < sdf.length; i++)
+            sdf[i] = mask[i] ? -Math.sqrt(inside[i]) : Math.sqrt(outside[i]);
+        return sdf;
+    }
+
+    /**
+     * Squared Euclidean distance to the nearest pixel where {@code mask[i] == target}, using the separable algorithm
+     * of Felzenszwalb and Huttenlocher.
+     */
+    private static double[] distanceTransform(boolean[] mask, boolean target, int width, int height) {
+        double[] dist = new double[width * height];
+        for (int i = 0; i < dist.length; i++)
+            dist[i] = mask[i] == target ? 0 : INF;
+        int n = Math.max(width, height);
+        double[] f = new double[n];
+        double[] d = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++)
+                f[y] = dist[y * width + x];
+            transform1D(f, height, d, v, z);
+            for (int y = 0; y < height; y++)
+                dist[y * width + x] = d[y];
+        }
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(dist, y * width, f, 0, width);
+            transform1D(f, width, d, v, z);
+            System.arraycopy(d, 0, dist, y * width, width);
+        }
+        return dist;
+    }
+
+    private static void transform1D(double[] f, int n, double[] d, int[] v, double[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = -INF;
+        z[1] = INF;
+        for (int q = 1; q < n; q++) {
+            double s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2.0 * q - 2.0 * v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2.0 * q - 2.0 * v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = INF;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q)
+                k++;
+            d[q] = (q - v[k]) * (q - v[k]) + f[v[k]];
+        }
+    }
+
+}
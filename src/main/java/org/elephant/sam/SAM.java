@@ -0,0 +1,171 @@
+package org.elephant.sam;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.elephant.sam.tasks.SAM3DetectionTask;
+import org.elephant.sam.tasks.SAMAutoMaskTask;
+import org.elephant.sam.tasks.SAMDetectionTask;
+import org.elephant.sam.tasks.SAMSequenceTask;
+
+import javafx.concurrent.Task;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Script-facing entry point to run SAM tasks.
+ * <p>
+ * All tasks are executed on a shared SAM executor, never on the JavaFX application thread. The blocking methods
+ * wait for the result, so that scripts can add the detected objects before moving on to the next image; the
+ * {@code *Async} variants return immediately so that several requests can be in flight at the same time.
+ *
+ * <pre>
+ * var task = org.elephant.sam.tasks.SAMAutoMaskTask.builder(getCurrentImageData())
+ *     ...
+ *     .build()
+ * addObjects(org.elephant.sam.SAM.autoMask(task))
+ * </pre>
+ */
+public class SAM {
+
+    private static final SAMContext context = new SAMContext();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(context::close, "SAM-shutdown"));
+    }
+
+    private SAM() {
+    }
+
+    /**
+     * Get the state shared by all SAM tasks, e.g. the executor, the caches and the server pools.
+     *
+     * @return the context
+     */
+    public static SAMContext getContext() {
+        return context;
+    }
+
+    /**
+     * Run a SAM detection task and wait for the result.
+     *
+     * @param task
+     * @return the detected objects
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static List<PathObject> detect(SAMDetectionTask task) throws InterruptedException, ExecutionException {
+        return detectAsync(task).get();
+    }
+
+    /**
+     * Run a SAM detection task asynchronously.
+     *
+     * @param task
+     * @return a future that completes with the detected objects
+     */
+    public static CompletableFuture<List<PathObject>> detectAsync(SAMDetectionTask task) {
+        return submit(task);
+    }
+
+    /**
+     * Run a SAM3 detection task and wait for the result.
+     *
+     * @param task
+     * @return the detected objects
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static List<PathObject> detect(SAM3DetectionTask task) throws InterruptedException, ExecutionException {
+        return detectAsync(task).get();
+    }
+
+    /**
+     * Run a SAM3 detection task asynchronously.
+     *
+     * @param task
+     * @return a future that completes with the detected objects
+     */
+    public static CompletableFuture<List<PathObject>> detectAsync(SAM3DetectionTask task) {
+        return submit(task);
+    }
+
+    /**
+     * Run a SAM auto mask task and wait for the result.
+     *
+     * @param task
+     * @return the detected objects
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static List<PathObject> autoMask(SAMAutoMaskTask task) throws InterruptedException, ExecutionException {
+        return autoMaskAsync(task).get();
+    }
+
+    /**
+     * Run a SAM auto mask task asynchronously.
+     *
+     * @param task
+     * @return a future that completes with the detected objects
+     */
+    public static CompletableFuture<List<PathObject>> autoMaskAsync(SAMAutoMaskTask task) {
+        return submit(task);
+    }
+
+    /**
+     * Run a SAM sequence task and wait for the result.
+     *
+     * @param task
+     * @return the detected objects
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static List<PathObject> sequence(SAMSequenceTask task) throws InterruptedException, ExecutionException {
+        return sequenceAsync(task).get();
+    }
+
+    /**
+     * Run a SAM sequence task asynchronously.
+     *
+     * @param task
+     * @return a future that completes with the detected objects
+     */
+    public static CompletableFuture<List<PathObject>> sequenceAsync(SAMSequenceTask task) {
+        return submit(task);
+    }
+
+    /**
+     * Submit any task to the SAM executor.
+     * <p>
+     * Cancelling the returned future also cancels the task.
+     *
+     * @param <T>
+     * @param task
+     * @return a future that completes with the value of the task
+     */
+    public static <T> CompletableFuture<T> submit(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.whenComplete((value, throwable) -> {
+            if (future.isCancelled())
+                task.cancel(true);
+        });
+        context.getExecutor().execute(() -> {
+            if (future.isDone())
+                return;
+            task.run();
+            try {
+                future.complete(task.get());
+            } catch (CancellationException e) {
+                future.cancel(false);
+            } catch (ExecutionException e) {
+                future.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.elephant.sam;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.elephant.sam.decoder.SAMEmbeddingCache;
+import org.elephant.sam.http.SAMResultCache;
+import org.elephant.sam.http.SAMServerPool;
+import org.elephant.sam.http.SAMSharedMemory;
+import org.elephant.sam.http.SAMSingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * The state shared by all SAM tasks: the executor they run on, the caches of results and embeddings, the server
+ * pools, the shared memory files and the requests in flight.
+ * <p>
+ * The context is created by {@link SAM} and closed when QuPath exits, which stops the tasks, closes the server pools
+ * and the result store, and deletes the shared memory files.
+ */
+public class SAMContext implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMContext.class);
+
+    private final ExecutorService executor = Executors
+            .newCachedThreadPool(ThreadTools.createThreadFactory("SAM-detection", true));
+
+    private final SAMResultCache resultCache = new SAMResultCache(64L * 1024 * 1024);
+
+    private final SAMEmbeddingCache embeddingCache = new SAMEmbeddingCache(256L * 1024 * 1024);
+
+    private final Map<String, SAMServerPool> serverPools = new ConcurrentHashMap<>();
+
+    private final SAMSharedMemory sharedMemory = new SAMSharedMemory(SAMSharedMemory.getDefaultDirectory());
+
+    private final SAMSingleFlight singleFlight = new SAMSingleFlight();
+
+    private volatile boolean closed;
+
+    SAMContext() {
+    }
+
+    /**
+     * Get the executor used to run SAM tasks.
+     *
+     * @return the executor service
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Get the cache of server responses shared by the detection and auto mask tasks.
+     *
+     * @return the result cache
+     */
+    public SAMResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Get the cache of image embeddings used for decoding prompts locally.
+     *
+     * @return the embedding cache
+     */
+    public SAMEmbeddingCache getEmbeddingCache() {
+        return embeddingCache;
+    }
+
+    /**
+     * Get the shared memory files used to hand images to servers on the same machine.
+     *
+     * @return the shared memory
+     */
+    public SAMSharedMemory getSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * Get the requests in flight, so that identical requests sent at the same time share one response.
+     *
+     * @return the single flight
+     */
+    public SAMSingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Get the pool of servers for a server URL setting, which may hold several URLs separated by commas.
+     * Tasks with the same setting share the pool, so that their requests are spread across the servers.
+     *
+     * @param serverURL
+     *            one or more server URLs
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @return the server pool
+     */
+    public SAMServerPool getServerPool(String serverURL, boolean verifySSL) {
+        return serverPools.computeIfAbsent(verifySSL + "\n" + serverURL,
+                key -> new SAMServerPool(serverURL, verifySSL));
+    }
+
+    /**
+     * Close and forget the pools of all other server URL settings, e.g. after the server URL was changed, so that
+     * their servers are no longer checked. Tasks that still use a closed pool keep working.
+     *
+     * @param serverURL
+     *            one or more server URLs of the pool to keep
+     * @param verifySSL
+     *            whether the pool to keep verifies SSL certificates
+     */
+    public void retainServerPool(String serverURL, boolean verifySSL) {
+        final String key = verifySSL + "\n" + serverURL;
+        serverPools.entrySet().removeIf(entry -> {
+            if (entry.getKey().equals(key))
+                return false;
+            entry.getValue().close();
+            return true;
+        });
+    }
+
+    /**
+     * Check whether the context has been closed.
+     *
+     * @return true once {@link #close()} has been called
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop the running tasks, close the server pools and the result store, and delete the shared memory files.
+     * Calling this more than once has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        logger.debug("Closing SAM context");
+        executor.shutdownNow();
+        serverPools.values().forEach(SAMServerPool::close);
+        serverPools.clear();
+        resultCache.setStore(null);
+        resultCache.invalidateAll();
+        embeddingCache.invalidateAll();
+        sharedMemory.close();
+    }
+
+}
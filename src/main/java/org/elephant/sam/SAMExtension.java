@@ -2,6 +2,7 @@ package org.elephant.sam;
 
 import org.controlsfx.control.action.Action;
 import org.elephant.sam.commands.SAMMainCommand;
+import javafx.stage.WindowEvent;
 import qupath.lib.gui.actions.ActionTools;
 import qupath.lib.common.Version;
 import qupath.lib.gui.QuPathGUI;
@@ -34,6 +35,8 @@ public class SAMExtension implements QuPathExtension, GitHubProject {
 
 	public void installExtension(QuPathGUI qupath) {
 		qupath.installActions(ActionTools.getAnnotatedActions(new SAMCommands(qupath)));
+		// Stop tasks, close server pools and delete shared memory files when QuPath is closed
+		qupath.getStage().addEventHandler(WindowEvent.WINDOW_HIDDEN, event -> SAM.getContext().close());
 	}
 
 	@ActionMenu("Extensions")
@@ -14,6 +14,7 @@ import qupath.lib.common.GeneralTools;
 import qupath.lib.geom.Point2;
 import qupath.lib.gui.images.servers.RenderedImageServer;
 import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathObject;
@@ -47,7 +48,7 @@ public class Utils {
 
     private static final Logger logger = LoggerFactory.getLogger(Utils.class);
 
-    static final String SAM_QUALITY_MEASUREMENT = "SAM Quality";
+    public static final String SAM_QUALITY_MEASUREMENT = "SAM Quality";
 
     /**
      * Parse path objects from a JSON string.
@@ -227,6 +228,20 @@ public class Utils {
                 .build();
     }
 
+    /**
+     * Create a rendered (RGB) imageserver from image data, without requiring a viewer.
+     * The display settings stored with the image data are used if available.
+     * 
+     * @param imageData
+     * @return the image server
+     * @throws IOException
+     */
+    public static ImageServer<BufferedImage> createRenderedServer(ImageData<BufferedImage> imageData)
+            throws IOException {
+        return new RenderedImageServer.Builder(imageData)
+                .build();
+    }
+
     /**
      * Get a region request for the viewer, intersected with the image server.
      * 
@@ -310,7 +325,7 @@ public class Utils {
                 comparator = Comparator.comparingDouble(Utils::getArea);
                 break;
             case MULTI_BEST_QUALITY:
-                comparator = Comparator.comparingDouble(Utils::getQuality);
+                comparator = Comparator.comparingDouble(Utils::getQuality).reversed();
                 break;
             default:
                 return pathObjects;
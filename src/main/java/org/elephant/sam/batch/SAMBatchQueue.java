@@ -0,0 +1,289 @@
+package org.elephant.sam.batch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.elephant.sam.entities.SAMBatchJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+/**
+ * A persistent queue of batch jobs, stored inside the project directory.
+ * <p>
+ * The list of jobs is written once when the queue is created, together with the settings they were created with.
+ * Completed jobs are appended to a journal, so that a crashed or cancelled run can be resumed by skipping everything
+ * that has already been written back to the project. Tiles of images that are still in progress are checkpointed in
+ * a {@link SAMTileStore}.
+ * <p>
+ * The IDs of the objects written to each image are recorded as well, and kept when the queue is cleared, so that a
+ * later run can replace the objects of an earlier run instead of adding them a second time.
+ */
+public class SAMBatchQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMBatchQueue.class);
+
+    private static final String JOBS_FILE = "jobs.json";
+
+    private static final String DONE_FILE = "done.log";
+
+    private static final String TILES_DIR = "tiles";
+
+    private static final String SETTINGS_FILE = "settings.txt";
+
+    private static final String WRITTEN_DIR = "written";
+
+    private final Path dir;
+
+    private final List<SAMBatchJob> jobs = new ArrayList<>();
+
+    private final Set<String> done = ConcurrentHashMap.newKeySet();
+
+    private final SAMTileStore tileStore;
+
+    private String settings;
+
+    private SAMBatchQueue(Path dir) {
+        this.dir = dir;
+        this.tileStore = new SAMTileStore(dir.resolve(TILES_DIR));
+    }
+
+    /**
+     * Get the directory used to store a named batch queue for a project.
+     *
+     * @param project
+     * @param name
+     * @return the queue directory
+     */
+    public static Path getQueueDirectory(Project<?> project, String name) {
+        return Projects.getBaseDirectory(project).toPath().resolve("sam").resolve("batch").resolve(name);
+    }
+
+    /**
+     * Open a queue, reading any jobs and completion records that are already stored.
+     *
+     * @param dir
+     *            the queue directory
+     * @return the queue
+     * @throws IOException
+     */
+    public static SAMBatchQueue open(Path dir) throws IOException {
+        SAMBatchQueue queue = new SAMBatchQueue(dir);
+        Path jobsFile = dir.resolve(JOBS_FILE);
+        if (Files.isRegularFile(jobsFile)) {
+            try (Reader reader = Files.newBufferedReader(jobsFile, StandardCharsets.UTF_8)) {
+                SAMBatchJob[] stored = GsonTools.getInstance().fromJson(reader, SAMBatchJob[].class);
+                if (stored != null)
+                    queue.jobs.addAll(Arrays.asList(stored));
+            }
+        }
+        Path settingsFile = dir.resolve(SETTINGS_FILE);
+        if (Files.isRegularFile(settingsFile))
+            queue.settings = Files.readString(settingsFile, StandardCharsets.UTF_8);
+        Path doneFile = dir.resolve(DONE_FILE);
+        if (Files.isRegularFile(doneFile)) {
+            // A partially written last line simply won't match any job ID
+            for (String line : Files.readAllLines(doneFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank())
+                    queue.done.add(line.strip());
+            }
+        }
+        logger.debug("Opened batch queue {} with {} jobs ({} done)", dir, queue.jobs.size(), queue.done.size());
+        return queue;
+    }
+
+    /**
+     * Check whether the queue contains any jobs.
+     *
+     * @return true if no jobs have been enqueued
+     */
+    public synchronized boolean isEmpty() {
+        return jobs.isEmpty();
+    }
+
+    /**
+     * Get the settings the jobs were created with.
+     *
+     * @return the settings, or null if the queue is empty or was created without settings
+     */
+    public synchronized String getSettings() {
+        return settings;
+    }
+
+    /**
+     * Replace the contents of the queue with new jobs, discarding any completion records.
+     *
+     * @param newJobs
+     * @param settings
+     *            a description of everything that the jobs depend on, e.g. the tile size, so that a later run with
+     *            different settings does not resume these jobs
+     * @throws IOException
+     */
+    public synchronized void enqueue(Collection<SAMBatchJob> newJobs, String settings) throws IOException {
+        Files.createDirectories(dir);
+        Files.deleteIfExists(dir.resolve(DONE_FILE));
+        tileStore.clear();
+        done.clear();
+        Files.writeString(dir.resolve(SETTINGS_FILE), settings, StandardCharsets.UTF_8);
+        this.settings = settings;
+        Path tmp = dir.resolve(JOBS_FILE + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            GsonTools.getInstance().toJson(newJobs.toArray(SAMBatchJob[]::new), writer);
+        }
+        Files.move(tmp, dir.resolve(JOBS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        jobs.clear();
+        jobs.addAll(newJobs);
+    }
+
+    /**
+     * Get all jobs that have not been completed yet, in queue order.
+     *
+     * @return the pending jobs
+     */
+    public synchronized List<SAMBatchJob> getPendingJobs() {
+        return jobs.stream()
+                .filter(job -> !done.contains(job.getID()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the total number of jobs.
+     *
+     * @return the number of jobs
+     */
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Get the number of completed jobs.
+     *
+     * @return the number of completed jobs
+     */
+    public int getCompletedCount() {
+        return done.size();
+    }
+
+    /**
+     * Record jobs as completed.
+     *
+     * @param completed
+     * @throws IOException
+     */
+    public synchronized void markDone(Collection<SAMBatchJob> completed) throws IOException {
+        if (completed.isEmpty())
+            return;
+        StringBuilder sb = new StringBuilder();
+        for (SAMBatchJob job : completed)
+            sb.append(job.getID()).append('\n');
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve(DONE_FILE), sb.toString(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        completed.forEach(job -> done.add(job.getID()));
+    }
+
+    /**
+     * Remove all jobs and completion records.
+     * The IDs of written objects are kept, so that the objects can be replaced by the next run.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        Files.deleteIfExists(dir.resolve(JOBS_FILE));
+        Files.deleteIfExists(dir.resolve(DONE_FILE));
+        Files.deleteIfExists(dir.resolve(SETTINGS_FILE));
+        tileStore.clear();
+        jobs.clear();
+        done.clear();
+        settings = null;
+    }
+
+    /**
+     * Get the IDs of the objects that a batch run with this queue has written to an image.
+     *
+     * @param entryID
+     *            the ID of the project entry
+     * @return the object IDs, or an empty set if nothing has been written
+     */
+    public synchronized Set<UUID> getWrittenObjectIDs(String entryID) {
+        Path file = getWrittenFile(entryID);
+        if (!Files.isRegularFile(file))
+            return Collections.emptySet();
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                    .filter(line -> !line.isBlank())
+                    .map(line -> UUID.fromString(line.strip()))
+                    .collect(Collectors.toSet());
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Cannot read the objects written to {}: {}", entryID, e.getMessage());
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Record the IDs of the objects written to an image, replacing those recorded before.
+     *
+     * @param entryID
+     *            the ID of the project entry
+     * @param ids
+     *            the object IDs
+     * @throws IOException
+     */
+    public synchronized void setWrittenObjectIDs(String entryID, Collection<UUID> ids) throws IOException {
+        Path file = getWrittenFile(entryID);
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, ids.stream().map(UUID::toString).collect(Collectors.toList()), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path getWrittenFile(String entryID) {
+        return dir.resolve(WRITTEN_DIR).resolve(entryID.replaceAll("[^A-Za-z0-9._-]", "_") + ".txt");
+    }
+
+    /**
+     * Get the directory of this queue.
+     *
+     * @return the queue directory
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Get the store of completed tiles for images that have not been written back to the project yet.
+     *
+     * @return the tile store
+     */
+    public SAMTileStore getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Get an unmodifiable view of all jobs.
+     *
+     * @return the jobs
+     */
+    public synchronized List<SAMBatchJob> getJobs() {
+        return Collections.unmodifiableList(new ArrayList<>(jobs));
+    }
+
+}
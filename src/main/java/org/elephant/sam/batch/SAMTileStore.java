@@ -0,0 +1,142 @@
+package org.elephant.sam.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.elephant.sam.entities.SAMBatchJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+/**
+ * On-disk store of completed tiles and their results, used to checkpoint long tiled runs.
+ * <p>
+ * There is one file per image. Each completed tile is appended as a separate gzip member containing one line of
+ * JSON with the tile index and its GeoJSON features, so that nothing already written is rewritten. A record that
+ * was only partially written when QuPath stopped is ignored, and that tile is processed again.
+ */
+public class SAMTileStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMTileStore.class);
+
+    private static final String EXTENSION = ".ndjson.gz";
+
+    private final Path dir;
+
+    /**
+     * Create a tile store in a directory.
+     * The directory is created when the first tile is written.
+     *
+     * @param dir
+     */
+    public SAMTileStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Record a completed tile with its results.
+     *
+     * @param job
+     *            the completed job
+     * @param pathObjects
+     *            the objects detected for the tile
+     * @throws IOException
+     */
+    public synchronized void append(SAMBatchJob job, Collection<? extends PathObject> pathObjects)
+            throws IOException {
+        Gson gson = GsonTools.getInstance();
+        JsonArray features = new JsonArray();
+        for (PathObject pathObject : pathObjects)
+            features.add(gson.toJsonTree(pathObject, PathObject.class));
+        JsonObject record = new JsonObject();
+        record.addProperty("tile", job.getTile());
+        record.add("features", features);
+        Files.createDirectories(dir);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(getFile(job.getEntryID()),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC))) {
+            out.write((gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Read the results of all completed tiles of an image.
+     *
+     * @param entryID
+     *            the ID of the project entry
+     * @return a map from tile index to the objects detected for that tile
+     */
+    public synchronized Map<Integer, List<PathObject>> read(String entryID) {
+        Map<Integer, List<PathObject>> tiles = new LinkedHashMap<>();
+        Path file = getFile(entryID);
+        if (!Files.isRegularFile(file))
+            return tiles;
+        Gson gson = GsonTools.getInstance();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                JsonObject record = gson.fromJson(line, JsonObject.class);
+                List<PathObject> pathObjects = new ArrayList<>();
+                for (JsonElement feature : record.getAsJsonArray("features"))
+                    pathObjects.add(gson.fromJson(feature, PathObject.class));
+                tiles.put(record.get("tile").getAsInt(), pathObjects);
+            }
+        } catch (Exception e) {
+            // Expected if QuPath stopped while a record was being written
+            logger.warn("Stopped reading tile store {} after {} tiles: {}", file, tiles.size(), e.getMessage());
+        }
+        return tiles;
+    }
+
+    /**
+     * Remove the stored tiles of an image, once its results have been written to the project.
+     *
+     * @param entryID
+     * @throws IOException
+     */
+    public synchronized void delete(String entryID) throws IOException {
+        Files.deleteIfExists(getFile(entryID));
+    }
+
+    /**
+     * Remove all stored tiles.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        if (!Files.isDirectory(dir))
+            return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : stream)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private Path getFile(String entryID) {
+        return dir.resolve(entryID.replaceAll("[^A-Za-z0-9._-]", "_") + EXTENSION);
+    }
+
+}
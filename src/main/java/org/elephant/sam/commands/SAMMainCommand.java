@@ -2,27 +2,36 @@ package org.elephant.sam.commands;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
+import org.elephant.sam.batch.SAMBatchQueue;
 import org.elephant.sam.comparators.NaturalOrderComparator;
+import org.elephant.sam.http.SAMJobClient;
+import org.elephant.sam.http.SAMResultStore;
+import org.elephant.sam.http.SAMServerPool;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.entities.SAMPromptMode;
 import org.elephant.sam.entities.SAMType;
+import org.elephant.sam.entities.SAMVideoRun;
 import org.elephant.sam.entities.SAMWeights;
 import org.elephant.sam.parameters.SAM2VideoPromptObject;
 import org.elephant.sam.parameters.SAM3VideoPromptObject;
 import org.elephant.sam.parameters.SAMVideoPromptObject;
 import org.elephant.sam.tasks.SAM3DetectionTask;
 import org.elephant.sam.tasks.SAMAutoMaskTask;
+import org.elephant.sam.tasks.SAMBatchTask;
 import org.elephant.sam.tasks.SAMCancelDownloadTask;
 import org.elephant.sam.tasks.SAMDetectionTask;
 import org.elephant.sam.tasks.SAMFetchWeightsTask;
@@ -60,19 +69,24 @@ import javafx.scene.Scene;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
 import qupath.fx.dialogs.Dialogs;
-import qupath.lib.common.ThreadTools;
+import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.gui.tools.GuiTools;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassTools;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.plugins.workflow.DefaultScriptableWorkflowStep;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PointsROI;
 import qupath.lib.roi.RectangleROI;
@@ -97,6 +111,7 @@ public class SAMMainCommand implements Runnable {
 
     /**
      * Server for SAM - see https://github.com/ksugar/samapi
+     * Several replicas can be given, separated by commas.
      */
     private final StringProperty serverURLProperty = PathPrefs.createPersistentPreference(
             "ext.SAM.serverUrl", "http://localhost:8000/sam/");
@@ -116,6 +131,36 @@ public class SAMMainCommand implements Runnable {
         return verifySSLProperty;
     }
 
+    /**
+     * How requests are spread across several servers.
+     */
+    private final ObjectProperty<SAMServerPool.Routing> serverRoutingProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.serverRouting", SAMServerPool.Routing.LEAST_OUTSTANDING, SAMServerPool.Routing.class);
+
+    public ObjectProperty<SAMServerPool.Routing> getServerRoutingProperty() {
+        return serverRoutingProperty;
+    }
+
+    /**
+     * Hand images to servers on this machine through shared memory instead of encoding them.
+     */
+    private final BooleanProperty sharedMemoryProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.sharedMemory", false);
+
+    public BooleanProperty getSharedMemoryProperty() {
+        return sharedMemoryProperty;
+    }
+
+    /**
+     * Keep server results in the project directory, so that they can be reused in later sessions.
+     */
+    private final BooleanProperty resultStoreProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.resultStore", true);
+
+    public BooleanProperty getResultStoreProperty() {
+        return resultStoreProperty;
+    }
+
     /**
      * Selected SAM type
      */
@@ -329,6 +374,17 @@ public class SAMMainCommand implements Runnable {
         return includeImageEdgeProperty;
     }
 
+    /**
+     * Split auto mask runs into crops and parts of the point grid that are sent to the servers in parallel.
+     */
+    private static final boolean DEFAULT_DISTRIBUTED_AUTO_MASK = false;
+    private final BooleanProperty distributedAutoMaskProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.autoMask.distributed", DEFAULT_DISTRIBUTED_AUTO_MASK);
+
+    public BooleanProperty getDistributedAutoMaskProperty() {
+        return distributedAutoMaskProperty;
+    }
+
     /**
      * Optionally allow line ROIs to be used as an alternative to points.
      * Defaults to false, as this tends to get too many points.
@@ -372,6 +428,95 @@ public class SAMMainCommand implements Runnable {
         return confidenceThreshProperty;
     }
 
+    /**
+     * Tile size for project batch runs, in downsampled pixels.
+     */
+    private static final int DEFAULT_BATCH_TILE_SIZE = 1024;
+    private final IntegerProperty batchTileSizeProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.batch.tileSize", DEFAULT_BATCH_TILE_SIZE);
+
+    public IntegerProperty getBatchTileSizeProperty() {
+        return batchTileSizeProperty;
+    }
+
+    /**
+     * Downsample for project batch runs.
+     */
+    private static final double DEFAULT_BATCH_DOWNSAMPLE = 1.0;
+    private final DoubleProperty batchDownsampleProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.batch.downsample", DEFAULT_BATCH_DOWNSAMPLE);
+
+    public DoubleProperty getBatchDownsampleProperty() {
+        return batchDownsampleProperty;
+    }
+
+    /**
+     * Maximum number of concurrent requests per server for project batch runs.
+     * Fewer requests are sent if the server slows down (see {@link SAMServerPool}).
+     */
+    private static final int DEFAULT_BATCH_MAX_CONCURRENT_REQUESTS = 8;
+    private final IntegerProperty batchMaxConcurrentRequestsProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.batch.maxConcurrentRequests", DEFAULT_BATCH_MAX_CONCURRENT_REQUESTS);
+
+    public IntegerProperty getBatchMaxConcurrentRequestsProperty() {
+        return batchMaxConcurrentRequestsProperty;
+    }
+
+    /**
+     * Maximum number of frames processed at once by video prediction, or 0 to process the whole range at once.
+     */
+    private static final int DEFAULT_VIDEO_WINDOW_SIZE = 0;
+    private final IntegerProperty videoWindowSizeProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.video.windowSize", DEFAULT_VIDEO_WINDOW_SIZE);
+
+    public IntegerProperty getVideoWindowSizeProperty() {
+        return videoWindowSizeProperty;
+    }
+
+    /**
+     * Spacing of the frames processed by video prediction; the frames in between are interpolated. 1 processes
+     * every frame.
+     */
+    private static final int DEFAULT_VIDEO_KEYFRAME_STEP = 1;
+    private final IntegerProperty videoKeyframeStepProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.video.keyframeStep", DEFAULT_VIDEO_KEYFRAME_STEP);
+
+    public IntegerProperty getVideoKeyframeStepProperty() {
+        return videoKeyframeStepProperty;
+    }
+
+    /**
+     * Whether video prediction propagates backwards from the prompts as well, when the first prompt is not on the
+     * first frame of the range.
+     */
+    private static final boolean DEFAULT_VIDEO_BIDIRECTIONAL = false;
+    private final BooleanProperty videoBidirectionalProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.video.bidirectional", DEFAULT_VIDEO_BIDIRECTIONAL);
+
+    public BooleanProperty getVideoBidirectionalProperty() {
+        return videoBidirectionalProperty;
+    }
+
+    /**
+     * Whether to decode prompts locally from cached image embeddings, rather than sending every prompt to the server
+     */
+    private final BooleanProperty localDecoderProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.localDecoder", false);
+
+    public BooleanProperty getLocalDecoderProperty() {
+        return localDecoderProperty;
+    }
+
+    /**
+     * Whether to send slow prompt requests to a second server as well, if several servers are used
+     */
+    private final BooleanProperty hedgeRequestsProperty = PathPrefs.createPersistentPreference(
+            "ext.SAM.hedgeRequests", false);
+
+    public BooleanProperty getHedgeRequestsProperty() {
+        return hedgeRequestsProperty;
+    }
+
     /**
      * Whether live mode is turned on, to make detections as annotations are added
      */
@@ -491,6 +636,12 @@ public class SAMMainCommand implements Runnable {
 
     private ChangeListener<ImageData<BufferedImage>> imageDataListener = this::imageDataChanged;
 
+    // Cached results can't be requested again once the rendered pixels change, so free the memory
+    private ChangeListener<Number> displayListener = (observable, oldValue, newValue) -> SAM.getContext()
+            .getResultCache().invalidateAll();
+
+    private ImageDisplay observedDisplay;
+
     // We need to turn off the multipoint tool when running live detection, but
     // restore it afterwards
     private boolean previousMultipointValue = PathPrefs.multipointToolProperty().get();
@@ -500,6 +651,11 @@ public class SAMMainCommand implements Runnable {
      */
     private ExecutorService pool;
 
+    /**
+     * The last video prediction run, used to re-propagate only from edited prompts
+     */
+    private SAMVideoRun lastVideoRun;
+
     /**
      * Constructor.
      * 
@@ -508,6 +664,37 @@ public class SAMMainCommand implements Runnable {
      */
     public SAMMainCommand(QuPathGUI qupath) {
         this.qupath = qupath;
+        // Keep server results with the project, so that they can be reused in later sessions
+        qupath.projectProperty().addListener((observable, oldValue, newValue) -> updateResultStore(newValue));
+        resultStoreProperty.addListener((observable, oldValue, newValue) -> updateResultStore(qupath.getProject()));
+        updateResultStore(qupath.getProject());
+        serverURLProperty.addListener((observable, oldValue, newValue) -> updateServerPool());
+        verifySSLProperty.addListener((observable, oldValue, newValue) -> updateServerPool());
+        serverRoutingProperty.addListener((observable, oldValue, newValue) -> updateServerPool());
+        updateServerPool();
+    }
+
+    /**
+     * Apply the routing to the servers used by new tasks, and start checking their health.
+     * The pools of earlier server settings are closed.
+     */
+    private void updateServerPool() {
+        if (serverURLProperty.get() == null || serverURLProperty.get().isBlank())
+            return;
+        SAM.getContext().getServerPool(serverURLProperty.get(), verifySSLProperty.get())
+                .setRouting(serverRoutingProperty.get());
+        SAM.getContext().retainServerPool(serverURLProperty.get(), verifySSLProperty.get());
+    }
+
+    /**
+     * Maximum size of the server results stored in a project
+     */
+    private static final long RESULT_STORE_BYTES = 1024L * 1024L * 1024L;
+
+    private void updateResultStore(Project<?> project) {
+        SAM.getContext().getResultCache().setStore(project == null || !resultStoreProperty.get() ? null
+                : new SAMResultStore(SAMResultStore.getStoreDirectory(project), RESULT_STORE_BYTES));
+        SAMJobClient.setDirectory(project == null ? null : SAMJobClient.getJobDirectory(project));
     }
 
     /**
@@ -531,7 +718,7 @@ public class SAMMainCommand implements Runnable {
                 stopLiveMode();
         });
         if (pool == null)
-            pool = Executors.newCachedThreadPool(ThreadTools.createThreadFactory("SAM-detection", true));
+            pool = SAM.getContext().getExecutor();
         // Shouldn't be required... but make sure nothing is bound
         this.imageDataProperty.unbind();
         this.imageDataProperty.removeListener(imageDataListener);
@@ -687,6 +874,8 @@ public class SAMMainCommand implements Runnable {
                 .minMaskRegionArea(minMaskRegionAreaProperty.get())
                 .includeImageEdge(includeImageEdgeProperty.get())
                 .checkpointUrl(selectedWeightsProperty.get().getUrl())
+                .distributed(distributedAutoMaskProperty.get())
+                .sharedMemory(sharedMemoryProperty.get())
                 .build();
         task.setOnSucceeded(event -> {
             List<PathObject> detected = task.getValue();
@@ -709,8 +898,8 @@ public class SAMMainCommand implements Runnable {
 
         final String cmd = String.format("""
                 var clearCurrentObjects = %b
-                var task = org.elephant.sam.tasks.SAMAutoMaskTask.builder(getCurrentViewer())
-                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentViewer()))
+                var task = org.elephant.sam.tasks.SAMAutoMaskTask.builder(getCurrentImageData())
+                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                     .regionRequest(%s)
                     .serverURL("%s")
                     .verifySSL(%b)
@@ -732,25 +921,20 @@ public class SAMMainCommand implements Runnable {
                     .minMaskRegionArea(%d)
                     .includeImageEdge(%b)
                     .checkpointUrl("%s")
+                    .distributed(%b)
+                    .sharedMemory(%b)
                     .build()
-                task.setOnSucceeded(event -> {
-                    List<PathObject> detected = task.getValue()
-                    if (detected != null) {
-                        if (!detected.isEmpty()) {
-                            Platform.runLater(() -> {
-                                PathObjectHierarchy hierarchy = getCurrentHierarchy()
-                                if (clearCurrentObjects)
-                                    hierarchy.clearAll()
-                                hierarchy.addObjects(detected)
-                                hierarchy.getSelectionModel().clearSelection()
-                                hierarchy.fireHierarchyChangedEvent(this)
-                            });
-                        } else {
-                            print("No objects detected")
-                        }
-                    }
-                });
-                Platform.runLater(task)
+                List<PathObject> detected = org.elephant.sam.SAM.autoMask(task)
+                if (detected != null && !detected.isEmpty()) {
+                    PathObjectHierarchy hierarchy = getCurrentHierarchy()
+                    if (clearCurrentObjects)
+                        hierarchy.clearAll()
+                    hierarchy.addObjects(detected)
+                    hierarchy.getSelectionModel().clearSelection()
+                    hierarchy.fireHierarchyChangedEvent(this)
+                } else {
+                    print("No objects detected")
+                }
                 """,
                 clearCurrentObjectsProperty.get(),
                 Utils.getGroovyScriptForCreateRegionRequest(regionRequest),
@@ -772,12 +956,160 @@ public class SAMMainCommand implements Runnable {
                 cropNPointsDownscaleFactorProperty.get(),
                 minMaskRegionAreaProperty.get(),
                 includeImageEdgeProperty.get(),
-                selectedWeightsProperty.get().getUrl())
+                selectedWeightsProperty.get().getUrl(),
+                distributedAutoMaskProperty.get(),
+                sharedMemoryProperty.get())
                 .strip();
         imageData.getHistoryWorkflow().addStep(
                 new DefaultScriptableWorkflowStep("SAMAutoMask", cmd));
     }
 
+    /**
+     * Run the auto mask detection for all images in the current project.
+     */
+    public void runAutoMaskForProject() {
+        final SAMType model = samTypeProperty.get();
+        final String serverURL = serverURLProperty.get();
+        final boolean verifySSL = verifySSLProperty.get();
+        final SAMOutput outputType = outputTypeProperty.get();
+        final boolean setName = setNamesProperty.get();
+        final boolean setRandomColor = useRandomColorsProperty.get();
+        final int pointsPerSide = pointsPerSideProperty.get();
+        final int pointsPerBatch = pointsPerBatchProperty.get();
+        final double predIoUThresh = predIoUThreshProperty.get();
+        final double stabilityScoreThresh = stabilityScoreThreshProperty.get();
+        final double stabilityScoreOffset = stabilityScoreOffsetProperty.get();
+        final double boxNmsThresh = boxNmsThreshProperty.get();
+        final int cropNLayers = cropNLayersProperty.get();
+        final double cropNmsThresh = cropNmsThreshProperty.get();
+        final double cropOverlapRatio = cropOverlapRatioProperty.get();
+        final int cropNPointsDownscaleFactor = cropNPointsDownscaleFactorProperty.get();
+        final int minMaskRegionArea = minMaskRegionAreaProperty.get();
+        final boolean includeImageEdge = includeImageEdgeProperty.get();
+        final String checkpointUrl = selectedWeightsProperty.get().getUrl();
+        final boolean sharedMemory = sharedMemoryProperty.get();
+        final String settings = String.format(Locale.ROOT, "model=%s, server=%s, checkpoint=%s, output=%s, "
+                + "setName=%s, setRandomColor=%s, pointsPerSide=%d, pointsPerBatch=%d, predIoUThresh=%s, "
+                + "stabilityScoreThresh=%s, stabilityScoreOffset=%s, boxNmsThresh=%s, cropNLayers=%d, "
+                + "cropNmsThresh=%s, cropOverlapRatio=%s, cropNPointsDownscaleFactor=%d, minMaskRegionArea=%d, "
+                + "includeImageEdge=%s", model, serverURL, checkpointUrl, outputType, setName, setRandomColor,
+                pointsPerSide, pointsPerBatch, predIoUThresh, stabilityScoreThresh, stabilityScoreOffset,
+                boxNmsThresh, cropNLayers, cropNmsThresh, cropOverlapRatio, cropNPointsDownscaleFactor,
+                minMaskRegionArea, includeImageEdge);
+        submitBatchTask("automask", settings, (imageData, server, regionRequest) -> SAMAutoMaskTask
+                .builder(imageData)
+                .server(server)
+                .regionRequest(regionRequest)
+                .serverURL(serverURL)
+                .verifySSL(verifySSL)
+                .model(model)
+                .outputType(outputType)
+                .setName(setName)
+                .setRandomColor(setRandomColor)
+                .pointsPerSide(pointsPerSide)
+                .pointsPerBatch(pointsPerBatch)
+                .predIoUThresh(predIoUThresh)
+                .stabilityScoreThresh(stabilityScoreThresh)
+                .stabilityScoreOffset(stabilityScoreOffset)
+                .boxNmsThresh(boxNmsThresh)
+                .cropNLayers(cropNLayers)
+                .cropNmsThresh(cropNmsThresh)
+                .cropOverlapRatio(cropOverlapRatio)
+                .cropNPointsDownscaleFactor(cropNPointsDownscaleFactor)
+                .minMaskRegionArea(minMaskRegionArea)
+                .includeImageEdge(includeImageEdge)
+                .checkpointUrl(checkpointUrl)
+                .sharedMemory(sharedMemory)
+                .failOnError(true)
+                .build());
+    }
+
+    /**
+     * Run the SAM3 text prompt for all images in the current project.
+     */
+    public void runTextPromptForProject() {
+        final String textPrompt = textPromptProperty.get();
+        if (textPrompt == null || textPrompt.isBlank()) {
+            updateInfoTextWithError("A text prompt is required to run for the project!");
+            return;
+        }
+        final SAMType model = samTypeProperty.get();
+        final String serverURL = serverURLProperty.get();
+        final boolean verifySSL = verifySSLProperty.get();
+        final SAMOutput outputType = outputTypeProperty.get();
+        final boolean setName = setNamesProperty.get();
+        final boolean setRandomColor = useRandomColorsProperty.get();
+        final double confidenceThresh = confidenceThreshProperty.get();
+        final String checkpointUrl = selectedWeightsProperty.get().getUrl();
+        final String settings = String.format(Locale.ROOT, "model=%s, server=%s, checkpoint=%s, output=%s, "
+                + "setName=%s, setRandomColor=%s, textPrompt=%s, confidenceThresh=%s", model, serverURL,
+                checkpointUrl, outputType, setName, setRandomColor, textPrompt, confidenceThresh);
+        submitBatchTask("sam3-text", settings, (imageData, server, regionRequest) -> SAM3DetectionTask
+                .builder(imageData)
+                .server(server)
+                .regionRequest(regionRequest)
+                .serverURL(serverURL)
+                .verifySSL(verifySSL)
+                .model(model)
+                .outputType(outputType)
+                .setName(setName)
+                .setRandomColor(setRandomColor)
+                .checkpointUrl(checkpointUrl)
+                .textPrompt(textPrompt)
+                .resetPrompts(true)
+                .confidenceThresh(confidenceThresh)
+                .failOnError(true)
+                .build());
+    }
+
+    private void submitBatchTask(String queueName, String settings, SAMBatchTask.TaskFactory taskFactory) {
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null || project.getImageList().isEmpty()) {
+            updateInfoTextWithError("No project images available!");
+            return;
+        }
+        boolean hasStoredQueue = Files.isDirectory(SAMBatchQueue.getQueueDirectory(project, queueName));
+        ParameterList params = new ParameterList()
+                .addIntParameter("tileSize", "Tile size", batchTileSizeProperty.get(), "px",
+                        "Tile width and height in downsampled pixels (0 to process each image in one request)")
+                .addDoubleParameter("downsample", "Downsample", batchDownsampleProperty.get(), null,
+                        "Downsample at which tiles are read")
+                .addIntParameter("maxConcurrentRequests", "Max concurrent requests per server",
+                        batchMaxConcurrentRequestsProperty.get(), null,
+                        "Maximum number of tiles processed at the same time by each available server.\n"
+                                + "Fewer are sent while a server responds slower than usual.")
+                .addBooleanParameter("restart", "Discard previous progress", !hasStoredQueue,
+                        "Start again from the first image instead of resuming an interrupted run");
+        if (!GuiTools.showParameterDialog("SAM - run for project", params))
+            return;
+        batchTileSizeProperty.set(params.getIntParameterValue("tileSize"));
+        batchDownsampleProperty.set(params.getDoubleParameterValue("downsample"));
+        batchMaxConcurrentRequestsProperty.set(params.getIntParameterValue("maxConcurrentRequests"));
+        // Results are written to the data files, which would be overwritten by an image that is currently open
+        ImageData<BufferedImage> imageData = imageDataProperty.get();
+        ProjectImageEntry<BufferedImage> openEntry = imageData == null ? null : project.getEntry(imageData);
+        SAMBatchTask task = SAMBatchTask.builder(project)
+                .queueName(queueName)
+                .skipEntries(openEntry == null ? Collections.emptyList() : Collections.singletonList(openEntry))
+                .taskFactory(taskFactory)
+                .settings(settings)
+                .tileSize(batchTileSizeProperty.get())
+                .downsample(batchDownsampleProperty.get())
+                .maxConcurrentRequests(batchMaxConcurrentRequestsProperty.get() * Math.max(1, SAM.getContext()
+                        .getServerPool(serverURLProperty.get(), verifySSLProperty.get()).getHealthyCount()))
+                .restart(params.getBooleanParameterValue("restart"))
+                .build();
+        task.messageProperty().addListener((observable, oldValue, newValue) -> {
+            updateInfoText(newValue);
+        });
+        task.setOnSucceeded(event -> {
+            Integer written = task.getValue();
+            logger.info("Batch '{}' finished: {} images written", queueName, written);
+            Platform.runLater(() -> qupath.refreshProject());
+        });
+        submitTask(task);
+    }
+
     private PathClass getNextPathClass(Collection<String> samPathClassNames) {
         int i = 0;
         while (true) {
@@ -963,6 +1295,29 @@ public class SAMMainCommand implements Runnable {
             throw new IllegalArgumentException("Unsupported prompt mode: " + samPromptModeProperty.get());
         }
         String endpointName = samTypeProperty.get().isSAM3Compatible() ? "sam3video" : "video";
+        final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+        // If only the prompts have changed since the last run, propagate again from the first edited frame
+        final String videoSettings = String.join("\n", serverURLProperty.get(), samTypeProperty.get().toString(),
+                selectedWeightsProperty.get().getUrl(), String.valueOf(videoWindowSizeProperty.get()),
+                String.valueOf(videoKeyframeStepProperty.get()), String.valueOf(videoBidirectionalProperty.get()),
+                regionRequests.toString());
+        final SAMVideoRun previousRun = lastVideoRun;
+        int changedFrame = -1;
+        if (previousRun != null && previousRun.matches(imageData, videoSettings)) {
+            changedFrame = previousRun.getFirstChangedFrame(objs);
+            final int firstPrompt = objs.keySet().stream().mapToInt(Integer::intValue).min().orElse(0);
+            // Changing the first prompt changes where the propagation starts
+            if (changedFrame <= firstPrompt
+                    // The backward pass of a bidirectional run starts on its last prompt
+                    || previousRun.isBidirectional() && changedFrame <= previousRun.getLastPromptFrame()
+                    || !previousRun.getObjects(changedFrame - 1).stream()
+                            .allMatch(pathObject -> PathObjectTools.hierarchyContainsObject(hierarchy, pathObject)))
+                changedFrame = -1;
+        }
+        final int requestedFrame = Math.max(0, changedFrame);
+        final List<PathObject> previousObjects = requestedFrame > 0 ? previousRun.getObjects(requestedFrame - 1)
+                : Collections.emptyList();
         SAMSequenceTask task = SAMSequenceTask.builder(qupath.getViewer())
                 .server(renderedServer)
                 .regionRequests(regionRequests)
@@ -976,7 +1331,17 @@ public class SAMMainCommand implements Runnable {
                 .indexOffset(fromIndexProperty.get())
                 .indexToPathClass(indexToPathClass)
                 .planePosition(planePosition)
+                .windowSize(videoWindowSizeProperty.get())
+                .keyframeStep(videoKeyframeStepProperty.get())
+                .bidirectional(videoBidirectionalProperty.get())
+                .resumeFrom(requestedFrame, previousObjects)
+                .sharedMemory(sharedMemoryProperty.get())
+                // Show the objects of each frame as soon as they arrive
+                .frameListener(frameObjects -> Platform.runLater(() -> hierarchy.addObjects(frameObjects)))
                 .build();
+        final int resumeFrame = task.getResumeFrame();
+        if (resumeFrame > 0)
+            logger.info("Propagating again from frame {}", fromIndexProperty.get() + resumeFrame);
         task.messageProperty().addListener((observable, oldValue, newValue) -> {
             updateInfoText(newValue);
         });
@@ -984,8 +1349,16 @@ public class SAMMainCommand implements Runnable {
             List<PathObject> detected = task.getValue();
             if (detected != null) {
                 if (!detected.isEmpty()) {
+                    if (resumeFrame > 0) {
+                        // Replace the objects of the frames that were propagated again
+                        hierarchy.removeObjects(previousRun.getObjectsFrom(resumeFrame), true);
+                        previousRun.update(resumeFrame, objs, detected);
+                    } else if (imageDataProperty.get() == imageData) {
+                        // Runs that finish after the image was changed are not kept
+                        lastVideoRun = new SAMVideoRun(imageData, videoSettings, samPromptModeProperty.get(),
+                                fromIndexProperty.get(), task.isBidirectional(), objs, detected);
+                    }
                     Platform.runLater(() -> {
-                        PathObjectHierarchy hierarchy = qupath.getViewer().getImageData().getHierarchy();
                         if (!keepPromptsProperty.get()) {
                             // Remove prompt objects in one step
                             hierarchy.getSelectionModel().clearSelection();
@@ -995,11 +1368,14 @@ public class SAMMainCommand implements Runnable {
                                 .filter(pathClass -> !qupath.getAvailablePathClasses().contains(pathClass))
                                 .sorted(Comparator.comparing(PathClass::getName, new NaturalOrderComparator()))
                                 .forEachOrdered(pathClass -> qupath.getAvailablePathClasses().add(pathClass));
-                        hierarchy.addObjects(detected);
                         hierarchy.getSelectionModel().clearSelection();
                         hierarchy.fireHierarchyChangedEvent(this);
                     });
                 } else {
+                    // The objects of the frames that were propagated again are outdated
+                    if (resumeFrame > 0)
+                        hierarchy.removeObjects(previousRun.getObjectsFrom(resumeFrame), true);
+                    lastVideoRun = null;
                     logger.warn("No objects detected");
                 }
             }
@@ -1043,7 +1419,7 @@ public class SAMMainCommand implements Runnable {
         StringBuffer sbRegionRequests = new StringBuffer();
         if (samPromptModeProperty.get() == SAMPromptMode.XYZ) {
             sbRegionRequests.append(
-                    String.format("(%d..%d).collect {%s}}",
+                    String.format("(%d..%d).collect {%s}",
                             fromIndexProperty.get(),
                             toIndexProperty.get(),
                             Utils.getGroovyScriptForCreateRegionRequest(
@@ -1065,8 +1441,8 @@ public class SAMMainCommand implements Runnable {
                         var objs = %s
                         var indexToPathClass = %s
                         var regionRequests = %s
-                        var task = org.elephant.sam.tasks.SAMSequenceTask.builder(getCurrentViewer())
-                            .server(org.elephant.sam.Utils.createRenderedServer(getCurrentViewer()))
+                        var task = org.elephant.sam.tasks.SAMSequenceTask.builder(getCurrentImageData())
+                            .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                             .regionRequests(regionRequests)
                             .serverURL("%s")
                             .endpointName("%s")
@@ -1078,27 +1454,28 @@ public class SAMMainCommand implements Runnable {
                             .indexOffset(fromIndex)
                             .indexToPathClass(indexToPathClass)
                             .planePosition(%d)
+                            .windowSize(%d)
+                            .keyframeStep(%d)
+                            .bidirectional(%b)
+                            .sharedMemory(%b)
                             .build()
-                        task.setOnSucceeded(event -> {
-                            List<PathObject> detected = task.getValue()
-                            if (detected != null) {
-                                if (!detected.isEmpty()) {
-                                    Platform.runLater(() -> {
-                                        PathObjectHierarchy hierarchy = getCurrentHierarchy()
-                                        indexToPathClass.values().stream()
-                                                .filter(pathClass -> !getQuPath().getAvailablePathClasses().contains(pathClass))
-                                                .sorted(Comparator.comparing(PathClass::getName, new org.elephant.sam.comparators.NaturalOrderComparator()))
-                                                .forEachOrdered(pathClass -> getQuPath().getAvailablePathClasses().add(pathClass))
-                                        hierarchy.addObjects(detected)
-                                        hierarchy.getSelectionModel().clearSelection()
-                                        hierarchy.fireHierarchyChangedEvent(this)
-                                    });
-                                } else {
-                                    print("No objects detected")
-                                }
+                        List<PathObject> detected = org.elephant.sam.SAM.sequence(task)
+                        if (detected != null && !detected.isEmpty()) {
+                            PathObjectHierarchy hierarchy = getCurrentHierarchy()
+                            hierarchy.addObjects(detected)
+                            hierarchy.getSelectionModel().clearSelection()
+                            hierarchy.fireHierarchyChangedEvent(this)
+                            if (getQuPath() != null) {
+                                Platform.runLater(() -> {
+                                    indexToPathClass.values().stream()
+                                            .filter(pathClass -> !getQuPath().getAvailablePathClasses().contains(pathClass))
+                                            .sorted(Comparator.comparing(PathClass::getName, new org.elephant.sam.comparators.NaturalOrderComparator()))
+                                            .forEachOrdered(pathClass -> getQuPath().getAvailablePathClasses().add(pathClass))
+                                });
                             }
-                        });
-                        Platform.runLater(task)
+                        } else {
+                            print("No objects detected")
+                        }
                         """,
                         fromIndexProperty.get(),
                         toIndexProperty.get(),
@@ -1111,7 +1488,11 @@ public class SAMMainCommand implements Runnable {
                         samTypeProperty.get().getFullyQualifiedName(),
                         samPromptModeProperty.get().getFullyQualifiedName(),
                         selectedWeightsProperty.get().getUrl(),
-                        planePosition)
+                        planePosition,
+                        videoWindowSizeProperty.get(),
+                        videoKeyframeStepProperty.get(),
+                        videoBidirectionalProperty.get(),
+                        sharedMemoryProperty.get())
                 .strip();
         imageData.getHistoryWorkflow().addStep(
                 new DefaultScriptableWorkflowStep("SAMSequence", cmd));
@@ -1137,6 +1518,7 @@ public class SAMMainCommand implements Runnable {
         cropNPointsDownscaleFactorProperty.set(DEFAULT_CROP_N_POINTS_DOWNSCALE_FACTOR);
         minMaskRegionAreaProperty.set(DEFAULT_MIN_MASK_REGION_AREA);
         includeImageEdgeProperty.set(DEFAULT_INCLUDE_IMAGE_EDGE);
+        distributedAutoMaskProperty.set(DEFAULT_DISTRIBUTED_AUTO_MASK);
     }
 
     private void startLiveMode() {
@@ -1287,6 +1669,8 @@ public class SAMMainCommand implements Runnable {
                 .setName(setNamesProperty.get())
                 .setRandomColor(useRandomColorsProperty.get())
                 .checkpointUrl(selectedWeightsProperty.get().getUrl())
+                .localDecoder(localDecoderProperty.get())
+                .hedgeRequests(hedgeRequestsProperty.get())
                 .addForegroundPrompts(foregroundObjects)
                 .addBackgroundPrompts(backgroundObjects)
                 .build();
@@ -1366,8 +1750,8 @@ public class SAMMainCommand implements Runnable {
         final String cmd = String.format("""
                 var foregroundObjects = %s
                 var backgroundObjects = %s
-                var task = org.elephant.sam.tasks.SAMDetectionTask.builder(getCurrentViewer())
-                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentViewer()))
+                var task = org.elephant.sam.tasks.SAMDetectionTask.builder(getCurrentImageData())
+                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                     .regionRequest(%s)
                     .serverURL("%s")
                     .verifySSL(%b)
@@ -1376,25 +1760,20 @@ public class SAMMainCommand implements Runnable {
                     .setName(%b)
                     .setRandomColor(%b)
                     .checkpointUrl("%s")
+                    .localDecoder(%b)
+                    .hedgeRequests(%b)
                     .addForegroundPrompts(foregroundObjects)
                     .addBackgroundPrompts(backgroundObjects)
                     .build()
-                task.setOnSucceeded(event -> {
-                    List<PathObject> detected = task.getValue()
-                    if (detected != null) {
-                        if (!detected.isEmpty()) {
-                            Platform.runLater(() -> {
-                                PathObjectHierarchy hierarchy = getCurrentHierarchy()
-                                hierarchy.addObjects(detected)
-                                hierarchy.getSelectionModel().clearSelection()
-                                hierarchy.fireHierarchyChangedEvent(this)
-                            });
-                        } else {
-                            print("No objects detected")
-                        }
-                    }
-                });
-                Platform.runLater(task)
+                List<PathObject> detected = org.elephant.sam.SAM.detect(task)
+                if (detected != null && !detected.isEmpty()) {
+                    PathObjectHierarchy hierarchy = getCurrentHierarchy()
+                    hierarchy.addObjects(detected)
+                    hierarchy.getSelectionModel().clearSelection()
+                    hierarchy.fireHierarchyChangedEvent(this)
+                } else {
+                    print("No objects detected")
+                }
                 """,
                 sbForegroundObjects.toString(),
                 sbBackgroundObjects.toString(),
@@ -1405,7 +1784,9 @@ public class SAMMainCommand implements Runnable {
                 outputTypeProperty.get().getFullyQualifiedName(),
                 setNamesProperty.get(),
                 useRandomColorsProperty.get(),
-                selectedWeightsProperty.get().getUrl())
+                selectedWeightsProperty.get().getUrl(),
+                localDecoderProperty.get(),
+                hedgeRequestsProperty.get())
                 .strip();
         imageDataProperty.get().getHistoryWorkflow().addStep(
                 new DefaultScriptableWorkflowStep("SAMDetection", cmd));
@@ -1544,8 +1925,8 @@ public class SAMMainCommand implements Runnable {
         final String cmd = String.format("""
                 var positiveBboxes = %s
                 var negativeBboxes = %s
-                var task = org.elephant.sam.tasks.SAM3DetectionTask.builder(getCurrentViewer())
-                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentViewer()))
+                var task = org.elephant.sam.tasks.SAM3DetectionTask.builder(getCurrentImageData())
+                    .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                     .regionRequest(%s)
                     .serverURL("%s")
                     .verifySSL(%b)
@@ -1560,22 +1941,15 @@ public class SAMMainCommand implements Runnable {
                     .resetPrompts(%b)
                     .confidenceThresh(%f)
                     .build()
-                task.setOnSucceeded(event -> {
-                    List<PathObject> detected = task.getValue()
-                    if (detected != null) {
-                        if (!detected.isEmpty()) {
-                            Platform.runLater(() -> {
-                                PathObjectHierarchy hierarchy = getCurrentHierarchy()
-                                hierarchy.addObjects(detected)
-                                hierarchy.getSelectionModel().clearSelection()
-                                hierarchy.fireHierarchyChangedEvent(this)
-                            });
-                        } else {
-                            print("No objects detected")
-                        }
-                    }
-                });
-                Platform.runLater(task)
+                List<PathObject> detected = org.elephant.sam.SAM.detect(task)
+                if (detected != null && !detected.isEmpty()) {
+                    PathObjectHierarchy hierarchy = getCurrentHierarchy()
+                    hierarchy.addObjects(detected)
+                    hierarchy.getSelectionModel().clearSelection()
+                    hierarchy.fireHierarchyChangedEvent(this)
+                } else {
+                    print("No objects detected")
+                }
                 """,
                 sbPositiveBboxes.toString(),
                 sbNegativeBboxes.toString(),
@@ -1648,10 +2022,17 @@ public class SAMMainCommand implements Runnable {
      */
     private void imageDataChanged(ObservableValue<? extends ImageData<BufferedImage>> observable,
             ImageData<BufferedImage> oldValue, ImageData<BufferedImage> newValue) {
+        // The objects of the last video run belong to the previous image
+        lastVideoRun = null;
         if (oldValue != null)
             oldValue.getHierarchy().removeListener(hierarchyListener);
         if (newValue != null)
             newValue.getHierarchy().addListener(hierarchyListener);
+        if (observedDisplay != null)
+            observedDisplay.changeTimestamp().removeListener(displayListener);
+        observedDisplay = qupath.getViewer() == null ? null : qupath.getViewer().getImageDisplay();
+        if (observedDisplay != null)
+            observedDisplay.changeTimestamp().addListener(displayListener);
     }
 
     /**
@@ -0,0 +1,155 @@
+package org.elephant.sam.decoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * The image embedding of a region, as returned by the server, held outside the Java heap.
+ * <p>
+ * An embedding consists of one or more named float tensors (e.g. {@code image_embeddings} for SAM, or additionally
+ * the high resolution features for SAM2), whose names match the inputs of the exported mask decoder.
+ */
+public class SAMEmbedding {
+
+    private final Map<String, FloatBuffer> tensors;
+
+    private final Map<String, long[]> shapes;
+
+    private final int width;
+
+    private final int height;
+
+    private final int inputSize;
+
+    private final long sizeBytes;
+
+    private SAMEmbedding(Map<String, FloatBuffer> tensors, Map<String, long[]> shapes, int width, int height,
+            int inputSize) {
+        this.tensors = Collections.unmodifiableMap(tensors);
+        this.shapes = Collections.unmodifiableMap(shapes);
+        this.width = width;
+        this.height = height;
+        this.inputSize = inputSize;
+        this.sizeBytes = tensors.values().stream().mapToLong(buffer -> 4L * buffer.capacity()).sum();
+    }
+
+    /**
+     * Parse an embedding from the response of the server.
+     * <p>
+     * The response should have the form
+     * {@code {"input_size": 1024, "tensors": [{"name": ..., "shape": [...], "b64data": ...}, ...]}}, where
+     * {@code b64data} holds little-endian float32 values.
+     *
+     * @param json
+     *            the response body
+     * @param width
+     *            the width of the encoded image
+     * @param height
+     *            the height of the encoded image
+     * @return the embedding
+     */
+    public static SAMEmbedding fromJson(String json, int width, int height) {
+        JsonObject response = GsonTools.getInstance().fromJson(json, JsonObject.class);
+        Map<String, FloatBuffer> tensors = new LinkedHashMap<>();
+        Map<String, long[]> shapes = new LinkedHashMap<>();
+        for (JsonElement element : response.getAsJsonArray("tensors")) {
+            JsonObject tensor = element.getAsJsonObject();
+            String name = tensor.get("name").getAsString();
+            long[] shape = GsonTools.getInstance().fromJson(tensor.get("shape"), long[].class);
+            FloatBuffer data = ByteBuffer.wrap(Base64.getDecoder().decode(tensor.get("b64data").getAsString()))
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            long n = 1;
+            for (long dim : shape)
+                n *= dim;
+            if (n != data.remaining())
+                throw new IllegalArgumentException(String.format("Tensor %s has %d values, expected %d", name,
+                        data.remaining(), n));
+            // Direct buffers can be passed to the decoder without copying
+            FloatBuffer buffer = ByteBuffer.allocateDirect(4 * data.remaining())
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            buffer.put(data).flip();
+            tensors.put(name, buffer);
+            shapes.put(name, shape);
+        }
+        int inputSize = response.has("input_size") ? response.get("input_size").getAsInt() : 1024;
+        return new SAMEmbedding(tensors, shapes, width, height, inputSize);
+    }
+
+    /**
+     * Get the tensors of the embedding.
+     *
+     * @return an unmodifiable map from tensor name to values; use {@link FloatBuffer#duplicate()} before reading
+     */
+    public Map<String, FloatBuffer> getTensors() {
+        return tensors;
+    }
+
+    /**
+     * Get the shape of a tensor.
+     *
+     * @param name
+     * @return the shape, or null if there is no tensor with this name
+     */
+    public long[] getShape(String name) {
+        long[] shape = shapes.get(name);
+        return shape == null ? null : shape.clone();
+    }
+
+    /**
+     * Get the width of the encoded image.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the encoded image.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the length of the longest side of the image after resizing for the encoder.
+     *
+     * @return the input size of the encoder
+     */
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Get the scale from image pixels to the input of the encoder.
+     *
+     * @return the scale factor
+     */
+    public double getScale() {
+        return (double) inputSize / Math.max(width, height);
+    }
+
+    /**
+     * Get the size of the tensors, which are held outside the Java heap.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+}
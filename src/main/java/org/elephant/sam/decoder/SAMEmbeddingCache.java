@@ -0,0 +1,111 @@
+package org.elephant.sam.decoder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory-bounded cache of image embeddings, so that every prompt on the same region can be decoded locally without
+ * contacting the server.
+ * <p>
+ * The embeddings themselves are held outside the Java heap; the budget applies to their total size. The least
+ * recently used embeddings are evicted first.
+ */
+public class SAMEmbeddingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMEmbeddingCache.class);
+
+    private final Map<String, SAMEmbedding> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+
+    private long sizeBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    /**
+     * Create a cache with a size budget.
+     *
+     * @param maxBytes
+     *            the maximum size of all cached embeddings, in bytes
+     */
+    public SAMEmbeddingCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Get a cached embedding.
+     *
+     * @param key
+     * @return the embedding, or null if it is not cached
+     */
+    public synchronized SAMEmbedding get(String key) {
+        SAMEmbedding embedding = entries.get(key);
+        if (embedding == null)
+            missCount++;
+        else
+            hitCount++;
+        return embedding;
+    }
+
+    /**
+     * Add an embedding, evicting the least recently used embeddings if needed.
+     * Embeddings larger than the whole budget are not cached.
+     *
+     * @param key
+     * @param embedding
+     */
+    public synchronized void put(String key, SAMEmbedding embedding) {
+        if (embedding.getSizeBytes() > maxBytes)
+            return;
+        SAMEmbedding previous = entries.put(key, embedding);
+        if (previous != null)
+            sizeBytes -= previous.getSizeBytes();
+        sizeBytes += embedding.getSizeBytes();
+        evict();
+    }
+
+    /**
+     * Remove all embeddings.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Change the size budget, evicting embeddings if needed.
+     *
+     * @param maxBytes
+     *            the maximum size of all cached embeddings, in bytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    /**
+     * Get a summary of the cache statistics, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d embeddings, %.1f/%.1f MB, %d hits, %d misses", entries.size(), sizeBytes / 1e6,
+                maxBytes / 1e6, hitCount, missCount);
+    }
+
+    private void evict() {
+        Iterator<SAMEmbedding> iterator = entries.values().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            sizeBytes -= iterator.next().getSizeBytes();
+            iterator.remove();
+        }
+        logger.debug("Embedding cache: {}", getStatistics());
+    }
+
+}
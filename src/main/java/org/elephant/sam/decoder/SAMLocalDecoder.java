@@ -0,0 +1,353 @@
+package org.elephant.sam.decoder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elephant.sam.SAM;
+import org.elephant.sam.Utils;
+import org.elephant.sam.entities.SAMType;
+import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMServerCapabilities;
+import org.elephant.sam.parameters.SAMEmbeddingParameters;
+import org.locationtech.jts.geom.Coordinate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import qupath.lib.analysis.images.ContourTracing;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Run the SAM mask decoder on the CPU, using an image embedding computed once by the server.
+ * <p>
+ * The server provides the decoder of a model exported to ONNX at {@code decoder/}, as
+ * {@code {"b64model": ...}}, and the embedding of an image at {@code embedding/} (see {@link SAMEmbedding}). The
+ * decoder is downloaded once per server, model and checkpoint, and embeddings are kept in the shared
+ * {@link SAMEmbeddingCache}, so repeated prompts on the same region are decoded without any request.
+ * <p>
+ * Inputs of the decoder are matched by name, following the ONNX export of the SAM repository: the embedding tensors,
+ * {@code point_coords}, {@code point_labels}, {@code mask_input}, {@code has_mask_input} and {@code orig_im_size}.
+ * Inputs the decoder does not declare are not passed.
+ */
+public class SAMLocalDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMLocalDecoder.class);
+
+    private static final Map<String, SAMLocalDecoder> decoders = new HashMap<>();
+
+    /**
+     * Servers and models for which the server does not provide a decoder or embeddings
+     */
+    private static final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    private final String key;
+
+    private final String serverURL;
+
+    private final boolean verifySSL;
+
+    private final SAMType model;
+
+    private final String checkpointUrl;
+
+    private final OrtEnvironment env = OrtEnvironment.getEnvironment();
+
+    private final OrtSession session;
+
+    private SAMLocalDecoder(String key, String serverURL, boolean verifySSL, SAMType model, String checkpointUrl)
+            throws IOException, InterruptedException, OrtException {
+        this.key = key;
+        this.serverURL = serverURL;
+        this.verifySSL = verifySSL;
+        this.model = model;
+        this.checkpointUrl = checkpointUrl;
+        String body = GsonTools.getInstance().toJson(SAMEmbeddingParameters.builder(model)
+                .checkpointUrl(checkpointUrl)
+                .build());
+        HttpResponse<String> response = SAM.getContext().getServerPool(serverURL, verifySSL)
+                .execute(null, url -> HttpUtils.postRequest(url + "decoder/", verifySSL, body));
+        checkResponse(response);
+        byte[] onnx = Base64.getDecoder().decode(
+                GsonTools.getInstance().fromJson(response.body(), JsonObject.class).get("b64model").getAsString());
+        this.session = env.createSession(onnx, new OrtSession.SessionOptions());
+        logger.info("Loaded local decoder for {} with inputs {}", model, session.getInputNames());
+    }
+
+    /**
+     * Get the decoder for a model, downloading it from the server the first time.
+     *
+     * @param serverURL
+     * @param verifySSL
+     * @param model
+     * @param checkpointUrl
+     * @return the decoder
+     * @throws IOException
+     *             if the server does not provide a decoder for the model, or the request failed
+     * @throws InterruptedException
+     * @throws OrtException
+     *             if the decoder could not be loaded
+     */
+    public static synchronized SAMLocalDecoder getInstance(String serverURL, boolean verifySSL, SAMType model,
+            String checkpointUrl) throws IOException, InterruptedException, OrtException {
+        if (!model.isLocalDecoderCompatible())
+            throw new IllegalArgumentException(model + " does not support local decoding");
+        String key = String.join("\n", serverURL, model.modelName(), String.valueOf(checkpointUrl));
+        if (!unsupported.contains(key) && !SAM.getContext().getServerPool(serverURL, verifySSL)
+                .mayUse(SAMServerCapabilities.LOCAL_DECODER))
+            unsupported.add(key);
+        if (unsupported.contains(key))
+            throw new IOException("The server does not support local decoding for " + model);
+        SAMLocalDecoder decoder = decoders.get(key);
+        if (decoder == null) {
+            decoder = new SAMLocalDecoder(key, serverURL, verifySSL, model, checkpointUrl);
+            decoders.put(key, decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Get the embedding of an image, from the cache or else from the server.
+     *
+     * @param img
+     *            the RGB image, as it would be sent to the server
+     * @return the embedding
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public SAMEmbedding getEmbedding(BufferedImage img) throws IOException, InterruptedException {
+        // Hashing the pixels is much cheaper than encoding the image
+        String cacheKey = createKey(img);
+        SAMEmbedding embedding = SAM.getContext().getEmbeddingCache().get(cacheKey);
+        if (embedding != null)
+            return embedding;
+        String body = GsonTools.getInstance().toJson(SAMEmbeddingParameters.builder(model)
+                .b64img(Utils.base64EncodePNG(img))
+                .checkpointUrl(checkpointUrl)
+                .build());
+        // The same image is often encoded for several prompts at once, e.g. in live mode
+        HttpResponse<String> response = SAM.getContext().getSingleFlight().execute("embedding/" + cacheKey,
+                () -> SAM.getContext().getServerPool(serverURL, verifySSL)
+                        .execute(null, "embedding/" + model.modelName(),
+                                url -> HttpUtils.postRequest(url + "embedding/", verifySSL, body)));
+        checkResponse(response);
+        embedding = SAMEmbedding.fromJson(response.body(), img.getWidth(), img.getHeight());
+        SAM.getContext().getEmbeddingCache().put(cacheKey, embedding);
+        return embedding;
+    }
+
+    /**
+     * Decode the masks for a prompt.
+     * Coordinates are in the pixel space of the encoded image.
+     * <p>
+     * The exported decoder returns the single mask output of SAM first, followed by the multimask outputs, as the
+     * server does with {@code multimask_output} set to false and true respectively.
+     *
+     * @param embedding
+     *            the embedding of the image
+     * @param regionRequest
+     *            the region of the encoded image, used to place the masks in the full image
+     * @param bbox
+     *            the bounding box as {x1, y1, x2, y2}, or null
+     * @param foreground
+     *            the foreground points
+     * @param background
+     *            the background points
+     * @param multimask
+     *            whether to return the multimask outputs rather than the single mask output
+     * @return annotation objects for the non-empty masks, with their predicted quality as a measurement
+     * @throws OrtException
+     */
+    public List<PathObject> decode(SAMEmbedding embedding, RegionRequest regionRequest, int[] bbox,
+            List<Coordinate> foreground, List<Coordinate> background, boolean multimask) throws OrtException {
+        final double scale = embedding.getScale();
+        List<float[]> points = new ArrayList<>();
+        for (Coordinate c : foreground)
+            points.add(new float[] { (float) (c.x * scale), (float) (c.y * scale), 1 });
+        for (Coordinate c : background)
+            points.add(new float[] { (float) (c.x * scale), (float) (c.y * scale), 0 });
+        if (bbox != null) {
+            points.add(new float[] { (float) (bbox[0] * scale), (float) (bbox[1] * scale), 2 });
+            points.add(new float[] { (float) (bbox[2] * scale), (float) (bbox[3] * scale), 3 });
+        } else {
+            // The exported decoder expects a padding point when there is no box
+            points.add(new float[] { 0, 0, -1 });
+        }
+        final int n = points.size();
+        float[] coords = new float[2 * n];
+        float[] labels = new float[n];
+        for (int i = 0; i < n; i++) {
+            coords[2 * i] = points.get(i)[0];
+            coords[2 * i + 1] = points.get(i)[1];
+            labels[i] = points.get(i)[2];
+        }
+
+        Map<String, NodeInfo> inputInfo = session.getInputInfo();
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            for (Map.Entry<String, FloatBuffer> entry : embedding.getTensors().entrySet()) {
+                if (inputInfo.containsKey(entry.getKey()))
+                    inputs.put(entry.getKey(), OnnxTensor.createTensor(env, entry.getValue().duplicate(),
+                            embedding.getShape(entry.getKey())));
+            }
+            inputs.put("point_coords", OnnxTensor.createTensor(env, FloatBuffer.wrap(coords), new long[] { 1, n, 2 }));
+            inputs.put("point_labels", OnnxTensor.createTensor(env, FloatBuffer.wrap(labels), new long[] { 1, n }));
+            if (inputInfo.containsKey("mask_input")) {
+                long[] shape = getShape(inputInfo.get("mask_input"), new long[] { 1, 1, 256, 256 });
+                inputs.put("mask_input", OnnxTensor.createTensor(env,
+                        FloatBuffer.allocate((int) (shape[0] * shape[1] * shape[2] * shape[3])), shape));
+            }
+            if (inputInfo.containsKey("has_mask_input"))
+                inputs.put("has_mask_input", OnnxTensor.createTensor(env, FloatBuffer.allocate(1), new long[] { 1 }));
+            if (inputInfo.containsKey("orig_im_size"))
+                inputs.put("orig_im_size", createSizeTensor(inputInfo.get("orig_im_size"), embedding));
+
+            try (OrtSession.Result result = session.run(inputs)) {
+                OnnxValue masksValue = result.get("masks").orElse(result.get(0));
+                OnnxValue iouValue = result.get("iou_predictions").orElse(result.get(1));
+                OnnxTensor masks = (OnnxTensor) masksValue;
+                long[] shape = masks.getInfo().getShape();
+                FloatBuffer maskValues = masks.getFloatBuffer();
+                FloatBuffer iouValues = ((OnnxTensor) iouValue).getFloatBuffer();
+                List<PathObject> pathObjects = new ArrayList<>();
+                // A decoder exported with a single output only has the single mask output
+                final int first = multimask && shape[1] > 1 ? 1 : 0;
+                final int last = multimask ? (int) shape[1] : 1;
+                for (int c = first; c < last; c++) {
+                    PathObject pathObject = createObject(maskValues, c, (int) shape[2], (int) shape[3], embedding,
+                            regionRequest, iouValues.get(c));
+                    if (pathObject != null)
+                        pathObjects.add(pathObject);
+                }
+                return pathObjects;
+            }
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    private static PathObject createObject(FloatBuffer values, int channel, int maskHeight, int maskWidth,
+            SAMEmbedding embedding, RegionRequest regionRequest, double quality) {
+        final int width = embedding.getWidth();
+        final int height = embedding.getHeight();
+        // Masks either match the image, or cover the padded square input of the encoder
+        final boolean fullSize = maskWidth == width && maskHeight == height;
+        final double sx = fullSize ? 1 : embedding.getScale() * maskWidth / embedding.getInputSize();
+        final double sy = fullSize ? 1 : embedding.getScale() * maskHeight / embedding.getInputSize();
+        final int offset = channel * maskHeight * maskWidth;
+        BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = mask.getRaster();
+        boolean empty = true;
+        for (int y = 0; y < height; y++) {
+            int my = Math.min(maskHeight - 1, (int) ((y + 0.5) * sy));
+            for (int x = 0; x < width; x++) {
+                int mx = Math.min(maskWidth - 1, (int) ((x + 0.5) * sx));
+                if (values.get(offset + my * maskWidth + mx) > 0) {
+                    raster.setSample(x, y, 0, 1);
+                    empty = false;
+                }
+            }
+        }
+        if (empty)
+            return null;
+        ROI roi = ContourTracing.createTracedROI(raster, 1, 1, 0, regionRequest);
+        if (roi == null || roi.isEmpty())
+            return null;
+        PathObject pathObject = PathObjects.createAnnotationObject(roi);
+        pathObject.getMeasurementList().put(Utils.SAM_QUALITY_MEASUREMENT, quality);
+        return pathObject;
+    }
+
+    private OnnxTensor createSizeTensor(NodeInfo info, SAMEmbedding embedding) throws OrtException {
+        long[] shape = { 2 };
+        OnnxJavaType type = info.getInfo() instanceof TensorInfo ? ((TensorInfo) info.getInfo()).type
+                : OnnxJavaType.FLOAT;
+        switch (type) {
+            case INT32:
+                return OnnxTensor.createTensor(env, IntBuffer.wrap(
+                        new int[] { embedding.getHeight(), embedding.getWidth() }), shape);
+            case INT64:
+                return OnnxTensor.createTensor(env, LongBuffer.wrap(
+                        new long[] { embedding.getHeight(), embedding.getWidth() }), shape);
+            default:
+                return OnnxTensor.createTensor(env, FloatBuffer.wrap(
+                        new float[] { embedding.getHeight(), embedding.getWidth() }), shape);
+        }
+    }
+
+    private static long[] getShape(NodeInfo info, long[] defaultShape) {
+        if (!(info.getInfo() instanceof TensorInfo))
+            return defaultShape;
+        long[] shape = ((TensorInfo) info.getInfo()).getShape();
+        if (shape.length != defaultShape.length)
+            return defaultShape;
+        for (int i = 0; i < shape.length; i++) {
+            // Dynamic dimensions are negative
+            if (shape[i] <= 0)
+                shape[i] = defaultShape[i];
+        }
+        return shape;
+    }
+
+    private void checkResponse(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() == HttpURLConnection.HTTP_OK)
+            return;
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                || response.statusCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+            // Don't ask again during this session
+            unsupported.add(key);
+        }
+        throw new IOException(String.format("HTTP response: %d, %s", response.statusCode(), response.body()));
+    }
+
+    private String createKey(BufferedImage img) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((model.modelName() + "\n" + checkpointUrl + "\n").getBytes(StandardCharsets.UTF_8));
+            int[] row = new int[img.getWidth()];
+            ByteBuffer buffer = ByteBuffer.allocate(4 * row.length);
+            digest.update(ByteBuffer.allocate(8).putInt(img.getWidth()).putInt(img.getHeight()).array());
+            for (int y = 0; y < img.getHeight(); y++) {
+                img.getRGB(0, y, row.length, 1, row, 0, row.length);
+                buffer.clear();
+                buffer.asIntBuffer().put(row);
+                digest.update(buffer.array());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
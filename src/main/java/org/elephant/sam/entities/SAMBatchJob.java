@@ -0,0 +1,110 @@
+package org.elephant.sam.entities;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * A single unit of work in a project batch run: one tile of one project image.
+ * <p>
+ * The region is stored in full-resolution pixel coordinates, independent of any server path, so that it can be
+ * restored after QuPath has been restarted.
+ */
+public class SAMBatchJob {
+
+    private final String entryID;
+
+    private final String imageName;
+
+    private final int tile;
+
+    private final double downsample;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    private final int z;
+
+    private final int t;
+
+    /**
+     * Constructor for a SAM batch job.
+     *
+     * @param entryID
+     *            the ID of the project entry
+     * @param imageName
+     *            the image name, for logging
+     * @param tile
+     *            the index of the tile within the image
+     * @param regionRequest
+     *            the region to process
+     */
+    public SAMBatchJob(String entryID, String imageName, int tile, RegionRequest regionRequest) {
+        this.entryID = entryID;
+        this.imageName = imageName;
+        this.tile = tile;
+        this.downsample = regionRequest.getDownsample();
+        this.x = regionRequest.getX();
+        this.y = regionRequest.getY();
+        this.width = regionRequest.getWidth();
+        this.height = regionRequest.getHeight();
+        this.z = regionRequest.getZ();
+        this.t = regionRequest.getT();
+    }
+
+    /**
+     * Get a unique ID for this job within a batch run.
+     *
+     * @return the job ID
+     */
+    public String getID() {
+        return entryID + "#" + tile;
+    }
+
+    /**
+     * Get the ID of the project entry.
+     *
+     * @return the entry ID
+     */
+    public String getEntryID() {
+        return entryID;
+    }
+
+    /**
+     * Get the image name.
+     *
+     * @return the image name
+     */
+    public String getImageName() {
+        return imageName;
+    }
+
+    /**
+     * Get the index of the tile within the image.
+     *
+     * @return the tile index
+     */
+    public int getTile() {
+        return tile;
+    }
+
+    /**
+     * Create a region request for this job.
+     *
+     * @param path
+     *            the path of the server that will provide the pixels
+     * @return the region request
+     */
+    public RegionRequest toRegionRequest(String path) {
+        return RegionRequest.createInstance(path, downsample, x, y, width, height, z, t);
+    }
+
+    @Override
+    public String toString() {
+        return imageName + " [tile " + tile + "]";
+    }
+
+}
@@ -84,6 +84,16 @@ public enum SAMType {
         }
     }
 
+    /**
+     * Whether the mask decoder of the model can be run on the client, from an image embedding computed by the
+     * server.
+     * 
+     * @return true for SAM and SAM2 models
+     */
+    public boolean isLocalDecoderCompatible() {
+        return !isSAM3Compatible();
+    }
+
     public boolean isSAM3Compatible() {
         switch (this) {
             case SAM3:
@@ -0,0 +1,186 @@
+package org.elephant.sam.entities;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.elephant.sam.parameters.SAMVideoPromptObject;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+/**
+ * The prompts and results of a video prediction run, used to re-propagate only the frames affected by edited
+ * prompts.
+ * <p>
+ * Frames are indexed relative to the start of the processed range, as for the prompts of a
+ * {@link org.elephant.sam.tasks.SAMSequenceTask}.
+ * <p>
+ * The image data is only weakly referenced, so that keeping a record does not keep a closed image alive.
+ */
+public class SAMVideoRun {
+
+    private final WeakReference<ImageData<BufferedImage>> imageData;
+
+    private final String settings;
+
+    private final SAMPromptMode promptMode;
+
+    private final int indexOffset;
+
+    private final boolean bidirectional;
+
+    private final Map<Integer, String> prompts;
+
+    private final NavigableMap<Integer, List<PathObject>> results = new TreeMap<>();
+
+    /**
+     * Constructor for a record of a video prediction run.
+     *
+     * @param imageData
+     *            the image data the run was performed on; only compared by identity
+     * @param settings
+     *            a description of everything other than the prompts that affects the results, such as the range,
+     *            the model and the server
+     * @param promptMode
+     *            the prompt mode of the run
+     * @param indexOffset
+     *            the index of the first frame of the range
+     * @param bidirectional
+     *            whether the frames before the first prompt were propagated backwards from the prompts
+     * @param objs
+     *            the prompts, keyed by frame
+     * @param detected
+     *            the detected objects
+     */
+    public SAMVideoRun(ImageData<BufferedImage> imageData, String settings, SAMPromptMode promptMode, int indexOffset,
+            boolean bidirectional, Map<Integer, List<SAMVideoPromptObject>> objs,
+            Collection<? extends PathObject> detected) {
+        this.imageData = new WeakReference<>(Objects.requireNonNull(imageData));
+        this.settings = Objects.requireNonNull(settings);
+        this.promptMode = Objects.requireNonNull(promptMode);
+        this.indexOffset = indexOffset;
+        this.bidirectional = bidirectional;
+        this.prompts = createSignatures(objs);
+        replaceFrom(0, detected);
+    }
+
+    /**
+     * Check whether a new run would have the same image and settings as this one.
+     *
+     * @param imageData
+     * @param settings
+     * @return true if only the prompts could differ
+     */
+    public boolean matches(ImageData<BufferedImage> imageData, String settings) {
+        return imageData != null && this.imageData.get() == imageData && this.settings.equals(settings);
+    }
+
+    /**
+     * Check whether the frames before the first prompt were propagated backwards from the prompts, so that they
+     * depend on all prompts up to the last one.
+     *
+     * @return true if the run was bidirectional
+     */
+    public boolean isBidirectional() {
+        return bidirectional;
+    }
+
+    /**
+     * Get the last frame with prompts.
+     *
+     * @return the frame, or -1 if there are no prompts
+     */
+    public int getLastPromptFrame() {
+        return prompts.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+    }
+
+    /**
+     * Find the first frame whose prompts differ from those of this run.
+     *
+     * @param objs
+     *            the new prompts, keyed by frame
+     * @return the first frame with added, removed or changed prompts, or -1 if the prompts are the same
+     */
+    public int getFirstChangedFrame(Map<Integer, List<SAMVideoPromptObject>> objs) {
+        Map<Integer, String> newPrompts = createSignatures(objs);
+        TreeSet<Integer> frames = new TreeSet<>(prompts.keySet());
+        frames.addAll(newPrompts.keySet());
+        for (int frame : frames) {
+            if (!Objects.equals(prompts.get(frame), newPrompts.get(frame)))
+                return frame;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the detected objects of a frame.
+     *
+     * @param frame
+     * @return the objects, or an empty list if there are none
+     */
+    public List<PathObject> getObjects(int frame) {
+        return Collections.unmodifiableList(results.getOrDefault(frame, Collections.emptyList()));
+    }
+
+    /**
+     * Get the detected objects of a frame and all later frames.
+     *
+     * @param frame
+     * @return the objects
+     */
+    public List<PathObject> getObjectsFrom(int frame) {
+        List<PathObject> pathObjects = new ArrayList<>();
+        results.tailMap(frame, true).values().forEach(pathObjects::addAll);
+        return pathObjects;
+    }
+
+    /**
+     * Record a new run that re-propagated from a frame onwards, keeping the results of earlier frames.
+     *
+     * @param frame
+     *            the first re-propagated frame
+     * @param objs
+     *            the prompts of the new run
+     * @param detected
+     *            the objects detected on {@code frame} and later frames
+     */
+    public void update(int frame, Map<Integer, List<SAMVideoPromptObject>> objs,
+            Collection<? extends PathObject> detected) {
+        prompts.clear();
+        prompts.putAll(createSignatures(objs));
+        replaceFrom(frame, detected);
+    }
+
+    private void replaceFrom(int frame, Collection<? extends PathObject> detected) {
+        results.tailMap(frame, true).clear();
+        for (PathObject pathObject : detected) {
+            int index = (promptMode == SAMPromptMode.XYT ? pathObject.getROI().getT() : pathObject.getROI().getZ())
+                    - indexOffset;
+            results.computeIfAbsent(index, k -> new ArrayList<>()).add(pathObject);
+        }
+    }
+
+    private static Map<Integer, String> createSignatures(Map<Integer, List<SAMVideoPromptObject>> objs) {
+        return objs.entrySet().stream()
+                .filter(entry -> !entry.getValue().isEmpty())
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        // The order of the prompts within a frame depends on the order of selection
+                        entry -> entry.getValue().stream()
+                                .map(prompt -> GsonTools.getInstance().toJson(prompt))
+                                .sorted()
+                                .collect(Collectors.joining("\n")),
+                        (a, b) -> a, TreeMap::new));
+    }
+
+}
@@ -0,0 +1,460 @@
+package org.elephant.sam.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Negotiates compression of request and response bodies with each server, based on the measured speed of the link.
+ * <p>
+ * Responses are requested with gzip or deflate unless the server is on this machine or the link is fast enough that
+ * compressing would cost the server more time than it saves, and are decompressed while they are read. Request bodies
+ * are compressed with gzip only after the server has announced that it accepts them, with an {@code Accept-Encoding}
+ * header in a response (RFC 7694). The level is chosen from the link speed, and a server that answers a compressed
+ * request with 415 is sent uncompressed requests from then on.
+ */
+class HttpCompression {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpCompression.class);
+
+    // Smaller bodies fit in a few packets, so compressing them saves next to nothing
+    private static final long MIN_COMPRESSED_BYTES = 8 * 1024;
+
+    // Smaller transfers are dominated by latency and would underestimate the speed of the link
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    // gzip levels with their approximate speed on JSON, in bytes per second, and their size relative to level 1
+    private static final int[] LEVELS = { 1, 6, 9 };
+    private static final double[] LEVEL_SPEEDS = { 80e6, 25e6, 8e6 };
+    private static final double[] LEVEL_SIZES = { 1.0, 0.8, 0.77 };
+
+    private static final Map<String, Link> links = new ConcurrentHashMap<>();
+
+    private HttpCompression() {
+    }
+
+    /**
+     * Signals that a server rejected a compressed request, which should be sent again uncompressed.
+     */
+    static class EncodingRejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private EncodingRejectedException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Add the accepted encodings to a request and compress its body if the server accepts it and it pays off.
+     *
+     * @param request
+     *            the request to send
+     * @return true if the body was compressed
+     */
+    static boolean encode(ClassicHttpRequest request) {
+        final Link link = getLink(request);
+        if (!request.containsHeader("Accept-Encoding"))
+            request.setHeader("Accept-Encoding", link.local || link.getLevel() == 0 ? "identity" : "gzip, deflate");
+        final HttpEntity entity = request.getEntity();
+        if (entity == null || entity.getContentEncoding() != null || request.containsHeader("Content-Encoding")
+                || entity.getContentLength() < MIN_COMPRESSED_BYTES || !isText(entity.getContentType())
+                || !link.acceptsGzip)
+            return false;
+        final int level = link.getLevel();
+        if (level == 0)
+            return false;
+        request.setEntity(new CompressingEntity(entity, level, link));
+        request.setHeader("Content-Encoding", "gzip");
+        return true;
+    }
+
+    /**
+     * Wrap a response handler, so that it receives the decompressed body and the link speed is measured.
+     *
+     * @param <T>
+     * @param request
+     *            the request the response is for
+     * @param compressed
+     *            whether the body of the request was compressed
+     * @param handler
+     *            the handler for the decompressed response
+     * @return the wrapped handler, which throws {@link EncodingRejectedException} if the server rejects a compressed
+     *         request
+     */
+    static <T> HttpClientResponseHandler<T> decode(ClassicHttpRequest request, boolean compressed,
+            HttpClientResponseHandler<? extends T> handler) {
+        final Link link = getLink(request);
+        return response -> {
+            final long start = System.nanoTime();
+            link.update(response);
+            if (compressed && response.getCode() == 415) {
+                EntityUtils.consume(response.getEntity());
+                link.rejectGzip();
+                throw new EncodingRejectedException("Compressed request rejected by " + link.origin);
+            }
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new DecompressingEntity(entity, link, start));
+                response.removeHeaders("Content-Encoding");
+            }
+            return handler.handleResponse(response);
+        };
+    }
+
+    /**
+     * Remember that a server accepts compressed requests, e.g. because it reported it in its capabilities.
+     *
+     * @param url
+     *            any URL of the server
+     */
+    static void acceptGzip(String url) {
+        Link link = getLink(new HttpGet(url));
+        if (!link.gzipRejected)
+            link.acceptsGzip = true;
+    }
+
+    /**
+     * Get a summary of the links to the servers, for logging.
+     *
+     * @return the statistics
+     */
+    static String getStatistics() {
+        return links.values().stream()
+                .map(Link::toString)
+                .collect(Collectors.joining("\n"));
+    }
+
+    private static Link getLink(ClassicHttpRequest request) {
+        final String scheme = request.getScheme() == null ? "http" : request.getScheme().toLowerCase(Locale.ROOT);
+        final String origin = request.getAuthority() == null ? scheme + ":" : scheme + "://" + request.getAuthority();
+        return links.computeIfAbsent(origin, Link::new);
+    }
+
+    private static boolean isText(String contentType) {
+        if (contentType == null)
+            return false;
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("application/json") || type.startsWith("text/");
+    }
+
+    private static boolean containsToken(Header header, String token) {
+        if (header == null)
+            return false;
+        for (String element : header.getValue().split(",")) {
+            String value = element.strip().toLowerCase(Locale.ROOT);
+            int parameters = value.indexOf(';');
+            if (parameters >= 0) {
+                // A coding with q=0 is not acceptable
+                if (value.substring(parameters).replace(" ", "").matches(";q=0(\\.0*)?"))
+                    continue;
+                value = value.substring(0, parameters).strip();
+            }
+            if (value.equals(token))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * What is known about the link to one server.
+     */
+    private static class Link {
+
+        private final String origin;
+
+        private final boolean local;
+
+        private volatile boolean acceptsGzip;
+
+        private volatile boolean gzipRejected;
+
+        // Exponentially weighted averages, or NaN until measured
+        private double bytesPerSecond = Double.NaN;
+
+        private double level1Ratio = 5.0;
+
+        private Link(String origin) {
+            this.origin = origin;
+            this.local = origin.startsWith(UnixSocketTransport.SCHEME + ":")
+                    || SAMSharedMemory.isLocal(origin + "/");
+        }
+
+        /**
+         * Choose the gzip level that sends a body fastest, given that compression and transfer overlap.
+         *
+         * @return the level, or 0 to send it uncompressed
+         */
+        private synchronized int getLevel() {
+            if (local)
+                return 0;
+            if (Double.isNaN(bytesPerSecond))
+                return LEVELS[0];
+            double best = 1.0 / bytesPerSecond;
+            int bestLevel = 0;
+            for (int i = 0; i < LEVELS.length; i++) {
+                double seconds = Math.max(1.0 / LEVEL_SPEEDS[i],
+                        LEVEL_SIZES[i] / (level1Ratio * bytesPerSecond));
+                if (seconds < best) {
+                    best = seconds;
+                    bestLevel = LEVELS[i];
+                }
+            }
+            return bestLevel;
+        }
+
+        private void update(ClassicHttpResponse response) {
+            if (!gzipRejected && !acceptsGzip && containsToken(response.getFirstHeader("Accept-Encoding"), "gzip")) {
+                acceptsGzip = true;
+                logger.debug("{} accepts compressed requests", origin);
+            }
+        }
+
+        private void rejectGzip() {
+            gzipRejected = true;
+            acceptsGzip = false;
+            logger.info("{} does not accept compressed requests, sending them uncompressed", origin);
+        }
+
+        private synchronized void recordTransfer(long bytes, long nanos) {
+            if (bytes < MIN_SAMPLE_BYTES || nanos <= 0)
+                return;
+            double sample = bytes * 1e9 / nanos;
+            bytesPerSecond = Double.isNaN(bytesPerSecond) ? sample : 0.7 * bytesPerSecond + 0.3 * sample;
+        }
+
+        private synchronized void recordRatio(int level, long uncompressed, long compressed) {
+            if (uncompressed < MIN_COMPRESSED_BYTES || compressed <= 0)
+                return;
+            for (int i = 0; i < LEVELS.length; i++) {
+                if (LEVELS[i] == level) {
+                    // Normalize to level 1, so that all levels can be compared
+                    double ratio = (double) uncompressed / compressed * LEVEL_SIZES[i];
+                    level1Ratio = 0.7 * level1Ratio + 0.3 * ratio;
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %s, %s, gzip level %d, %s", origin, local ? "local" : "remote",
+                    Double.isNaN(bytesPerSecond) ? "speed unknown" : String.format("%.1f MB/s", bytesPerSecond / 1e6),
+                    getLevel(), acceptsGzip ? "compressed requests" : "uncompressed requests");
+        }
+
+    }
+
+    /**
+     * A request body that is compressed with gzip while it is written.
+     * <p>
+     * The body is streamed and can only be sent once; {@link #getContent()} compresses it into memory instead.
+     */
+    private static class CompressingEntity extends AbstractHttpEntity {
+
+        private final HttpEntity entity;
+
+        private final int level;
+
+        private final Link link;
+
+        private CompressingEntity(HttpEntity entity, int level, Link link) {
+            super(entity.getContentType(), "gzip", true);
+            this.entity = entity;
+            this.level = level;
+            this.link = link;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTo(bytes);
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(out);
+            GZIPOutputStream gzip = new GZIPOutputStream(counter, 64 * 1024) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            entity.writeTo(gzip);
+            gzip.finish();
+            gzip.flush();
+            link.recordRatio(level, entity.getContentLength(), counter.count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            entity.close();
+        }
+
+    }
+
+    /**
+     * A response body that is decompressed while it is read, measuring how fast it arrives.
+     */
+    private static class DecompressingEntity extends HttpEntityWrapper {
+
+        private final Link link;
+
+        private final long start;
+
+        private final String encoding;
+
+        private final boolean streamed;
+
+        private DecompressingEntity(HttpEntity entity, Link link, long start) {
+            super(entity);
+            this.link = link;
+            this.start = start;
+            this.encoding = entity.getContentEncoding() == null ? null
+                    : entity.getContentEncoding().strip().toLowerCase(Locale.ROOT);
+            String contentType = entity.getContentType();
+            // Streamed responses arrive as fast as the server produces them, not as fast as the link allows
+            this.streamed = contentType != null && contentType.startsWith("application/x-ndjson");
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return isDecoded() ? null : super.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() {
+            return isDecoded() ? -1 : super.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = new MeasuringInputStream(super.getContent());
+            if (encoding == null || encoding.equals("identity"))
+                return in;
+            if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+                return new GZIPInputStream(in, 64 * 1024);
+            if (encoding.equals("deflate"))
+                return new InflaterInputStream(in);
+            return in;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                in.transferTo(out);
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        private boolean isDecoded() {
+            return encoding != null && (encoding.equals("gzip") || encoding.equals("x-gzip")
+                    || encoding.equals("deflate"));
+        }
+
+        private class MeasuringInputStream extends FilterInputStream {
+
+            private long count;
+
+            private boolean recorded;
+
+            private MeasuringInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b < 0)
+                    record();
+                else
+                    count++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n < 0)
+                    record();
+                else
+                    count += n;
+                return n;
+            }
+
+            private void record() {
+                if (recorded || streamed)
+                    return;
+                recorded = true;
+                link.recordTransfer(count, System.nanoTime() - start);
+            }
+
+        }
+
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+}
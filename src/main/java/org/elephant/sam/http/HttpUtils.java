@@ -1,22 +1,29 @@
 package org.elephant.sam.http;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Optional;
+import java.util.function.Predicate;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 
 import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpDelete;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
 import org.apache.hc.client5.http.impl.classic.AbstractHttpClientResponseHandler;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
@@ -34,9 +41,20 @@ import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpStatus;
 import org.apache.hc.core5.http.ParseException;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.util.Timeout;
 
+/**
+ * Helpers to send requests to a SAM server.
+ * <p>
+ * Server URLs starting with {@code unix:} (e.g. {@code unix:/tmp/samapi.sock:/sam/}) are sent over a Unix domain
+ * socket instead of TCP, with the same requests and responses.
+ * <p>
+ * Request and response bodies are compressed when it pays off for the link to the server; see
+ * {@link #getCompressionStatistics()}.
+ */
 public class HttpUtils {
 
     static class ContentResponseHandler extends AbstractHttpClientResponseHandler<HttpResponse<String>> {
@@ -122,6 +140,17 @@ public class HttpUtils {
 
     private static ContentResponseHandler responseHandler = new ContentResponseHandler();
 
+    /**
+     * Create a response that was not received as such, e.g. one assembled from several requests.
+     *
+     * @param statusCode
+     * @param body
+     * @return the response
+     */
+    static HttpResponse<String> createResponse(int statusCode, String body) {
+        return responseHandler.createHttpResponse(statusCode, body);
+    }
+
     private static SSLContext sslContext;
 
     private static HostnameVerifier hostnameVerifier = NoopHostnameVerifier.INSTANCE;
@@ -158,8 +187,11 @@ public class HttpUtils {
      * @return the HTTP client
      */
     public static CloseableHttpClient newHttpClient(boolean verifySSL) {
+        // Compression is negotiated by HttpCompression, for Unix domain sockets too
         if (verifySSL) {
-            return HttpClients.createDefault();
+            return HttpClients.custom()
+                    .disableContentCompression()
+                    .build();
         } else {
             final HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder
                     .create()
@@ -169,10 +201,36 @@ public class HttpUtils {
                     .custom()
                     .setConnectionManager(connectionManager)
                     .evictExpiredConnections()
+                    .disableContentCompression()
                     .build();
         }
     }
 
+    /**
+     * Create a new HTTP client that keeps up to a given number of connections open to the same server, so that it
+     * can be shared by several threads.
+     *
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param maxConnections
+     *            the maximum number of concurrent connections
+     * @return the HTTP client
+     */
+    public static CloseableHttpClient newHttpClient(boolean verifySSL, int maxConnections) {
+        PoolingHttpClientConnectionManagerBuilder connectionManagerBuilder = PoolingHttpClientConnectionManagerBuilder
+                .create()
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections);
+        if (!verifySSL)
+            connectionManagerBuilder.setTlsSocketStrategy(sslSocketFactory);
+        return HttpClients
+                .custom()
+                .setConnectionManager(connectionManagerBuilder.build())
+                .evictExpiredConnections()
+                .disableContentCompression()
+                .build();
+    }
+
     /**
      * Send a GET request.
      *
@@ -188,12 +246,88 @@ public class HttpUtils {
      */
     public static HttpResponse<String> getRequest(String endpointURL, boolean verifySSL)
             throws IOException, InterruptedException {
-        try (CloseableHttpClient httpClient = newHttpClient(verifySSL)) {
-            ClassicHttpRequest request = new HttpGet(endpointURL);
-            return httpClient.execute(request, responseHandler);
+        return execute(new HttpGet(endpointURL), verifySSL);
+    }
+
+    /**
+     * Send a GET request with a timeout and return only the status code, e.g. to check whether a server is running.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param timeoutMillis
+     *            the timeout for connecting and for reading the response, in milliseconds
+     * @return the status code
+     * @throws IOException
+     *             if the server could not be reached in time
+     */
+    public static int getStatus(String endpointURL, boolean verifySSL, int timeoutMillis) throws IOException {
+        if (UnixSocketTransport.isUnixURL(endpointURL))
+            return UnixSocketTransport.execute(new HttpGet(endpointURL), response -> {
+                EntityUtils.consume(response.getEntity());
+                return response.getCode();
+            }, timeoutMillis);
+        try (CloseableHttpClient httpClient = newHttpClient(verifySSL, Timeout.ofMilliseconds(timeoutMillis))) {
+            return httpClient.execute(new HttpGet(endpointURL), response -> {
+                EntityUtils.consume(response.getEntity());
+                return response.getCode();
+            });
         }
     }
 
+    /**
+     * Send a GET request with a timeout, e.g. for a short query at connect time.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param timeoutMillis
+     *            the timeout for connecting and for reading the response, in milliseconds
+     * @return the response
+     * @throws IOException
+     *             if the server could not be reached in time
+     */
+    public static HttpResponse<String> getRequest(String endpointURL, boolean verifySSL, int timeoutMillis)
+            throws IOException {
+        if (UnixSocketTransport.isUnixURL(endpointURL))
+            return UnixSocketTransport.execute(new HttpGet(endpointURL), responseHandler, timeoutMillis);
+        try (CloseableHttpClient httpClient = newHttpClient(verifySSL, Timeout.ofMilliseconds(timeoutMillis))) {
+            return send(httpClient, new HttpGet(endpointURL), responseHandler);
+        }
+    }
+
+    private static CloseableHttpClient newHttpClient(boolean verifySSL, Timeout timeout) {
+        PoolingHttpClientConnectionManagerBuilder connectionManagerBuilder = PoolingHttpClientConnectionManagerBuilder
+                .create()
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build());
+        if (!verifySSL)
+            connectionManagerBuilder.setTlsSocketStrategy(sslSocketFactory);
+        return HttpClients.custom()
+                .setConnectionManager(connectionManagerBuilder.build())
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * Send a DELETE request.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static HttpResponse<String> deleteRequest(String endpointURL, boolean verifySSL) throws IOException {
+        return execute(new HttpDelete(endpointURL), verifySSL);
+    }
+
     /**
      * Send a POST request.
      *
@@ -209,13 +343,172 @@ public class HttpUtils {
      */
     public static HttpResponse<String> postRequest(String endpointURL, boolean verifySSL, String body)
             throws IOException {
+        return execute(createPostRequest(endpointURL, body), verifySSL);
+    }
+
+    /**
+     * Send a POST request with a JSON body using a shared HTTP client.
+     *
+     * @param httpClient
+     *            the client to send the request with, which is not closed; unused for Unix domain sockets
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param body
+     *            the body of the request
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static HttpResponse<String> postRequest(CloseableHttpClient httpClient, String endpointURL, String body)
+            throws IOException {
+        return send(httpClient, createPostRequest(endpointURL, body), responseHandler);
+    }
+
+    /**
+     * Create a POST request with a JSON body, which can be cancelled from another thread while it is executed.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param body
+     *            the body of the request
+     * @return the request
+     */
+    public static HttpPost createPostRequest(String endpointURL, String body) {
+        HttpPost request = new HttpPost(endpointURL);
+        request.addHeader("accept", "application/json");
+        request.addHeader("Content-Type", "application/json; charset=utf-8");
+        HttpEntity entity = new StringEntity(body, ContentType.APPLICATION_JSON);
+        request.setEntity(entity);
+        return request;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param request
+     *            the request to send
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs, or the request was cancelled
+     */
+    public static HttpResponse<String> execute(ClassicHttpRequest request, boolean verifySSL) throws IOException {
+        if (UnixSocketTransport.SCHEME.equalsIgnoreCase(request.getScheme()))
+            return send(null, request, responseHandler);
         try (CloseableHttpClient httpClient = newHttpClient(verifySSL)) {
-            HttpPost request = new HttpPost(endpointURL);
-            request.addHeader("accept", "application/json");
-            request.addHeader("Content-Type", "application/json; charset=utf-8");
-            HttpEntity entity = new StringEntity(body, ContentType.APPLICATION_JSON);
+            return send(httpClient, request, responseHandler);
+        }
+    }
+
+    /**
+     * Send a request with compression negotiated for the server, and send it again uncompressed if the server
+     * rejects the compressed body.
+     *
+     * @param httpClient
+     *            the client to send the request with, which is not closed; unused for Unix domain sockets
+     */
+    private static <T> T send(CloseableHttpClient httpClient, ClassicHttpRequest request,
+            HttpClientResponseHandler<? extends T> handler) throws IOException {
+        final HttpEntity entity = request.getEntity();
+        final boolean compressed = HttpCompression.encode(request);
+        try {
+            return transmit(httpClient, request, HttpCompression.decode(request, compressed, handler));
+        } catch (HttpCompression.EncodingRejectedException e) {
             request.setEntity(entity);
-            return httpClient.execute(request, responseHandler);
+            request.removeHeaders("Content-Encoding");
+            return transmit(httpClient, request, HttpCompression.decode(request, false, handler));
+        }
+    }
+
+    private static <T> T transmit(CloseableHttpClient httpClient, ClassicHttpRequest request,
+            HttpClientResponseHandler<? extends T> handler) throws IOException {
+        if (UnixSocketTransport.SCHEME.equalsIgnoreCase(request.getScheme()))
+            return UnixSocketTransport.execute(request, handler, 0);
+        return httpClient.execute(request, handler);
+    }
+
+    /**
+     * Get a summary of the compression negotiated with each server and the measured speed of the links, e.g. to
+     * check the effect of compression in a script.
+     *
+     * @return the statistics, one line per server
+     */
+    public static String getCompressionStatistics() {
+        return HttpCompression.getStatistics();
+    }
+
+    /**
+     * Send a POST request whose response may be streamed as newline-delimited JSON.
+     * <p>
+     * If the server responds with {@code application/x-ndjson}, each line is passed to the line handler as soon as it
+     * arrives and the body of the returned response is empty. Otherwise, the whole body is returned as usual.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param body
+     *            the body of the request
+     * @param lineHandler
+     *            receives each line of a streamed response, and returns false to stop reading
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static HttpResponse<String> postStreamingRequest(String endpointURL, boolean verifySSL, String body,
+            Predicate<String> lineHandler) throws IOException {
+        HttpPost request = new HttpPost(endpointURL);
+        request.addHeader("Content-Type", "application/json; charset=utf-8");
+        request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        return stream(request, verifySSL, lineHandler);
+    }
+
+    /**
+     * Send a GET request whose response may be streamed as newline-delimited JSON, as for
+     * {@link #postStreamingRequest(String, boolean, String, Predicate)}.
+     *
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param lineHandler
+     *            receives each line of a streamed response, and returns false to stop reading
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static HttpResponse<String> getStreamingRequest(String endpointURL, boolean verifySSL,
+            Predicate<String> lineHandler) throws IOException {
+        return stream(new HttpGet(endpointURL), verifySSL, lineHandler);
+    }
+
+    private static HttpResponse<String> stream(HttpUriRequestBase request, boolean verifySSL,
+            Predicate<String> lineHandler) throws IOException {
+        request.addHeader("accept", "application/x-ndjson, application/json");
+        HttpClientResponseHandler<HttpResponse<String>> streamingHandler = response -> {
+            final HttpEntity entity = response.getEntity();
+            final String contentType = entity == null ? null : entity.getContentType();
+            if (response.getCode() != HttpStatus.SC_OK || contentType == null
+                    || !contentType.startsWith("application/x-ndjson"))
+                return responseHandler.handleResponse(response);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank() && !lineHandler.test(line)) {
+                        // Drop the connection rather than reading the rest of the stream
+                        request.cancel();
+                        break;
+                    }
+                }
+            }
+            return responseHandler.createHttpResponse(response.getCode(), "");
+        };
+        if (UnixSocketTransport.SCHEME.equalsIgnoreCase(request.getScheme()))
+            return send(null, request, streamingHandler);
+        try (CloseableHttpClient httpClient = newHttpClient(verifySSL)) {
+            return send(httpClient, request, streamingHandler);
         }
     }
 
@@ -235,13 +528,34 @@ public class HttpUtils {
     public static HttpResponse<String> postMultipartRequest(String endpointURL, boolean verifySSL,
             MultipartEntityBuilder httpEntityBuilder)
             throws IOException {
+        if (UnixSocketTransport.isUnixURL(endpointURL))
+            return postMultipartRequest(null, endpointURL, httpEntityBuilder);
         try (CloseableHttpClient httpClient = newHttpClient(verifySSL)) {
-            final String boundary = "----------------" + System.currentTimeMillis();
-            HttpPost request = new HttpPost(endpointURL);
-            request.addHeader("Content-Type", "multipart/form-data; boundary=" + boundary);
-            httpEntityBuilder.setBoundary(boundary);
-            request.setEntity(httpEntityBuilder.build());
-            return httpClient.execute(request, responseHandler);
+            return postMultipartRequest(httpClient, endpointURL, httpEntityBuilder);
         }
     }
+
+    /**
+     * Send a POST request with a multipart entity using an existing HTTP client.
+     *
+     * @param httpClient
+     *            the client to send the request with, which is not closed; unused for Unix domain sockets
+     * @param endpointURL
+     *            the URL to send the request to
+     * @param httpEntityBuilder
+     *            the builder for the multipart entity
+     * @return the response
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static HttpResponse<String> postMultipartRequest(CloseableHttpClient httpClient, String endpointURL,
+            MultipartEntityBuilder httpEntityBuilder)
+            throws IOException {
+        final String boundary = "----------------" + System.currentTimeMillis();
+        HttpPost request = new HttpPost(endpointURL);
+        request.addHeader("Content-Type", "multipart/form-data; boundary=" + boundary);
+        httpEntityBuilder.setBoundary(boundary);
+        request.setEntity(httpEntityBuilder.build());
+        return send(httpClient, request, responseHandler);
+    }
 }
@@ -0,0 +1,172 @@
+package org.elephant.sam.http;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on the number of concurrent requests of one kind (e.g. auto mask with a given model) to one server.
+ * <p>
+ * The limit follows an additive-increase/multiplicative-decrease rule driven by the measured latency:
+ * <ul>
+ * <li>while the limit is in use and requests are not much slower than the fastest recent request, the limit grows by
+ * about one per round trip;</li>
+ * <li>when a request takes more than {@code latencyTolerance} times as long as the fastest recent request, i.e.
+ * requests are queueing on the server, the limit shrinks by 10%;</li>
+ * <li>when a request fails or the server reports that it is overloaded, the limit is halved.</li>
+ * </ul>
+ * The limit therefore settles around the number of requests the server can process without queueing, and drops when
+ * other clients start to use the same server.
+ */
+public class SAMConcurrencyLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMConcurrencyLimiter.class);
+
+    private static final int RTT_WINDOW = 50;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double FAILURE_BACKOFF = 0.5;
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double latencyTolerance;
+
+    private final double[] rtts = new double[RTT_WINDOW];
+
+    private int sampleCount;
+
+    private double limit;
+
+    private int inFlight;
+
+    /**
+     * Create a limiter.
+     *
+     * @param name
+     *            a name for logging
+     * @param initialLimit
+     *            the limit before any request has completed
+     * @param minLimit
+     *            the smallest limit, at least 1
+     * @param maxLimit
+     *            the largest limit
+     * @param latencyTolerance
+     *            how much slower than the fastest recent request a request may be before the limit is reduced
+     */
+    public SAMConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+            double latencyTolerance) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.latencyTolerance = Math.max(1, latencyTolerance);
+    }
+
+    /**
+     * Start a request if the limit allows it.
+     *
+     * @return true if the request may start, in which case one of the release methods must be called when it is
+     *         complete
+     */
+    public synchronized boolean tryAcquire() {
+        if (!hasCapacity())
+            return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Wait until the limit allows another request, and start it.
+     * One of the release methods must be called when the request is complete.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (!hasCapacity())
+            wait();
+        inFlight++;
+    }
+
+    /**
+     * Check whether another request could start now.
+     *
+     * @return true if fewer requests than the limit are in flight
+     */
+    public synchronized boolean hasCapacity() {
+        return inFlight < getLimit();
+    }
+
+    /**
+     * Complete a successful request.
+     *
+     * @param rttMillis
+     *            the time from sending the request to receiving the response
+     */
+    public synchronized void release(double rttMillis) {
+        final boolean limited = inFlight >= getLimit() - 1;
+        inFlight--;
+        rtts[sampleCount++ % RTT_WINDOW] = rttMillis;
+        double minRtt = Arrays.stream(rtts, 0, Math.min(sampleCount, RTT_WINDOW)).min().orElse(rttMillis);
+        if (rttMillis > latencyTolerance * minRtt) {
+            setLimit(limit * LATENCY_BACKOFF);
+        } else if (limited) {
+            // Only grow while the limit is what holds requests back
+            setLimit(limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Complete a request that failed, or that the server rejected because it is overloaded.
+     */
+    public synchronized void releaseDropped() {
+        inFlight--;
+        setLimit(limit * FAILURE_BACKOFF);
+        notifyAll();
+    }
+
+    /**
+     * Complete a request without adapting the limit, e.g. because it was cancelled.
+     */
+    public synchronized void releaseIgnored() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Get the current limit.
+     *
+     * @return the maximum number of concurrent requests
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the number of requests in flight.
+     *
+     * @return the number of requests that were started but not released
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void setLimit(double newLimit) {
+        int previous = getLimit();
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (getLimit() != previous)
+            logger.debug("Concurrency limit for {}: {}", name, getLimit());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d/%d", name, inFlight, getLimit());
+    }
+
+}
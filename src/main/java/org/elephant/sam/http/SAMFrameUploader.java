@@ -0,0 +1,872 @@
+package org.elephant.sam.http;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ContentType;
+import org.elephant.sam.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.io.GsonTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Upload a sequence of frames to the SAM server for video prediction.
+ * <p>
+ * Frames go through three stages, each with its own bounded thread pool: reading the region from the server,
+ * encoding it as JPEG, and uploading it over one of a fixed number of connections of a shared HTTP client. Frames are
+ * submitted in index order, and only a limited number of frames are held in memory at once, so that reading never
+ * runs far ahead of the upload. None of the work runs on the common fork-join pool.
+ * <p>
+ * Frames can also be addressed by their content: the server keeps each uploaded frame under its hash, so that repeated
+ * runs over the same frames only upload the frames the server does not have yet.
+ * <p>
+ * Several frames are packed into one multipart request, sized to a target payload, when the server supports batched
+ * uploads. Otherwise each frame is uploaded in its own request.
+ * <p>
+ * For a server on the same machine, frames can be written to shared memory instead of being encoded, and only their
+ * descriptions are sent. Frames are encoded and uploaded as usual if the server rejects them.
+ */
+public class SAMFrameUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMFrameUploader.class);
+
+    /**
+     * Directory on the server that keeps uploaded frames under their hash.
+     */
+    private static final String FRAME_STORE = "sha256";
+
+    private final ImageServer<BufferedImage> server;
+
+    private final List<RegionRequest> regionRequests;
+
+    private final String serverURL;
+
+    private final boolean verifySSL;
+
+    private final int readThreads;
+
+    private final int encodeThreads;
+
+    private final int connections;
+
+    private final int maxFramesInFlight;
+
+    private final long progressIntervalMillis;
+
+    private final long targetBatchBytes;
+
+    private final int maxFramesPerBatch;
+
+    private final SAMConcurrencyLimiter limiter;
+
+    private final SAMSharedMemory sharedMemory;
+
+    private final AtomicBoolean batchUploadSupported = new AtomicBoolean(true);
+
+    private SAMFrameUploader(Builder builder) {
+        this.server = builder.server;
+        Objects.requireNonNull(server, "Server must not be null!");
+
+        this.regionRequests = new ArrayList<>(builder.regionRequests);
+
+        this.serverURL = builder.serverURL;
+        Objects.requireNonNull(serverURL, "Server URL must not be null!");
+
+        this.verifySSL = builder.verifySSL;
+        this.readThreads = Math.max(1, builder.readThreads);
+        this.encodeThreads = Math.max(1, builder.encodeThreads);
+        this.connections = Math.max(1, builder.connections);
+        this.maxFramesInFlight = builder.maxFramesInFlight > 0 ? builder.maxFramesInFlight
+                : 2 * (readThreads + encodeThreads + connections);
+        this.progressIntervalMillis = builder.progressIntervalMillis;
+        this.targetBatchBytes = builder.targetBatchBytes;
+        this.maxFramesPerBatch = builder.maxFramesPerBatch;
+        this.limiter = builder.limiter;
+        this.sharedMemory = builder.sharedMemory;
+        // Servers that do not report their capabilities are tried, and fall back if they reject batches
+        this.batchUploadSupported.set(SAMServerCapabilities.get(serverURL, verifySSL)
+                .mayUse(SAMServerCapabilities.BATCH_UPLOAD));
+    }
+
+    /**
+     * Upload the frames by their content.
+     * <p>
+     * Each frame is read once and hashed from its rendered pixels and region. For each batch of frames, the server is
+     * asked which of the hashes it does not have yet, and only those frames are encoded and uploaded to its frame
+     * store. The server then links the frames of the sequence into a directory, so that running again over the same
+     * range with the same display settings uploads nothing, and changing some frames only uploads those.
+     * <p>
+     * Servers that do not keep frames by their hash receive all frames in a new directory.
+     *
+     * @param isCancelled
+     *            checked before each frame is started
+     * @param message
+     *            receives progress messages
+     * @return the name of the directory on the server, or null if the upload failed or was cancelled
+     * @throws InterruptedException
+     */
+    public String uploadContentAddressed(BooleanSupplier isCancelled, Consumer<String> message)
+            throws InterruptedException {
+        if (!SAMServerCapabilities.getCached(serverURL).mayUse(SAMServerCapabilities.MISSING_UPLOADS)) {
+            logger.info("Server does not keep images by their content, uploading all");
+            String dirname = UUID.randomUUID().toString();
+            return upload(dirname, isCancelled, message) ? dirname : null;
+        }
+        final int total = regionRequests.size();
+        final String[] hashes = new String[total];
+        final AtomicInteger uploadCount = new AtomicInteger(0);
+
+        ExecutorService readPool = Executors.newFixedThreadPool(readThreads,
+                ThreadTools.createThreadFactory("SAM-frame-read", true));
+        ExecutorService encodePool = Executors.newFixedThreadPool(encodeThreads,
+                ThreadTools.createThreadFactory("SAM-frame-encode", true));
+        ExecutorService uploadPool = Executors.newFixedThreadPool(connections,
+                ThreadTools.createThreadFactory("SAM-frame-upload", true));
+        try (CloseableHttpClient httpClient = HttpUtils.newHttpClient(verifySSL, connections)) {
+            BatchSizer batchSizer = new BatchSizer();
+            // Ask for many frames at once; the missing frames are split into requests of the usual size
+            boolean uploaded = runFrames(allIndices(), () -> maxFramesPerBatch, isCancelled, (batch, failure) -> {
+                Map<Integer, CompletableFuture<BufferedImage>> read = new LinkedHashMap<>();
+                for (int index : batch) {
+                    read.put(index, CompletableFuture.supplyAsync(() -> {
+                        BufferedImage img = readFrame(index, failure);
+                        hashes[index] = hashFrame(index, img);
+                        return img;
+                    }, readPool));
+                }
+                Map<String, CompletableFuture<Frame>> encoded = new LinkedHashMap<>();
+                return CompletableFuture.allOf(read.values().toArray(CompletableFuture[]::new))
+                        .thenApplyAsync(v -> findMissingFrames(httpClient, batch, hashes), uploadPool)
+                        .thenCompose(missing -> {
+                            uploadCount.addAndGet(missing.size());
+                            for (int index : missing) {
+                                encoded.put(getStoreFilename(hashes[index]), read.get(index)
+                                        .thenApplyAsync(img -> encodeFrame(img, failure), encodePool));
+                            }
+                            return CompletableFuture.allOf(encoded.values().toArray(CompletableFuture[]::new));
+                        })
+                        .thenRunAsync(() -> {
+                            Map<String, Frame> frames = new LinkedHashMap<>();
+                            encoded.forEach((filename, future) -> frames.put(filename, future.join()));
+                            frames.values().forEach(batchSizer::record);
+                            uploadFramesInBatches(httpClient, frames, batchSizer, failure);
+                        }, uploadPool)
+                        .whenComplete((v, throwable) -> releaseFrames(encoded.values()));
+            }, n -> message.accept(String.format("%d/%d images checked", n, total)));
+            if (!uploaded)
+                return null;
+            logger.info("{}/{} images needed to be uploaded", uploadCount.get(), total);
+            String dirname = getSequenceID(hashes);
+            return linkFrames(httpClient, dirname, hashes) ? dirname : null;
+        } catch (IOException e) {
+            logger.error("Failed to upload images", e);
+            return null;
+        } finally {
+            readPool.shutdownNow();
+            encodePool.shutdownNow();
+            uploadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Upload all frames to a directory on the server.
+     *
+     * @param dirname
+     *            the name of the directory on the server
+     * @param isCancelled
+     *            checked before each frame is read; no new frames are started once it returns true
+     * @param message
+     *            receives progress messages, at most once per progress interval and always after the last frame
+     * @return true if all frames were uploaded, false if the upload failed or was cancelled
+     * @throws InterruptedException
+     */
+    public boolean upload(String dirname, BooleanSupplier isCancelled, Consumer<String> message)
+            throws InterruptedException {
+        return upload(dirname, allIndices(), isCancelled, message);
+    }
+
+    private boolean upload(String dirname, List<Integer> indices, BooleanSupplier isCancelled,
+            Consumer<String> message) throws InterruptedException {
+        final int total = indices.size();
+
+        ExecutorService readPool = Executors.newFixedThreadPool(readThreads,
+                ThreadTools.createThreadFactory("SAM-frame-read", true));
+        ExecutorService encodePool = Executors.newFixedThreadPool(encodeThreads,
+                ThreadTools.createThreadFactory("SAM-frame-encode", true));
+        ExecutorService uploadPool = Executors.newFixedThreadPool(connections,
+                ThreadTools.createThreadFactory("SAM-frame-upload", true));
+        try (CloseableHttpClient httpClient = HttpUtils.newHttpClient(verifySSL, connections)) {
+            BatchSizer batchSizer = new BatchSizer();
+            boolean uploaded = runFrames(indices, batchSizer::next, isCancelled, (batch, failure) -> {
+                Map<Integer, CompletableFuture<Frame>> encoded = new LinkedHashMap<>();
+                for (int index : batch) {
+                    encoded.put(index, CompletableFuture
+                            .supplyAsync(() -> readFrame(index, failure), readPool)
+                            .thenApplyAsync(img -> encodeFrame(img, failure), encodePool));
+                }
+                return CompletableFuture.allOf(encoded.values().toArray(CompletableFuture[]::new))
+                        .thenAcceptAsync(v -> {
+                            Map<String, Frame> frames = new LinkedHashMap<>();
+                            encoded.forEach((index, future) -> frames.put(getFilename(index), future.join()));
+                            frames.values().forEach(batchSizer::record);
+                            uploadFrames(httpClient, dirname, frames, failure);
+                        }, uploadPool)
+                        .whenComplete((v, throwable) -> releaseFrames(encoded.values()));
+            }, n -> message.accept(String.format("%d/%d images uploaded", n, total)));
+            if (uploaded)
+                logger.info("Uploaded {} images to {}", total, dirname);
+            return uploaded;
+        } catch (IOException e) {
+            logger.error("Failed to upload images", e);
+            return false;
+        } finally {
+            readPool.shutdownNow();
+            encodePool.shutdownNow();
+            uploadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Start the work for batches of frames in index order, keeping at most {@code maxFramesInFlight} frames in
+     * flight, and wait for all of them to finish.
+     */
+    private boolean runFrames(List<Integer> indices, IntSupplier batchSize, BooleanSupplier isCancelled,
+            FrameStage stage, IntConsumer progress) throws InterruptedException {
+        final int total = indices.size();
+        Semaphore permits = new Semaphore(maxFramesInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger completed = new AtomicInteger(0);
+        AtomicLong lastProgress = new AtomicLong(0);
+        boolean cancelled = false;
+        int next = 0;
+        while (next < total) {
+            int size = Math.max(1, Math.min(batchSize.getAsInt(), maxFramesInFlight));
+            List<Integer> batch = indices.subList(next, Math.min(next + size, total));
+            next += batch.size();
+            // Wait for enough frames to finish before starting the next batch
+            boolean acquired;
+            while (!(acquired = permits.tryAcquire(batch.size(), 100, TimeUnit.MILLISECONDS))) {
+                if (failure.get() != null || isCancelled.getAsBoolean())
+                    break;
+            }
+            if (failure.get() != null || isCancelled.getAsBoolean()) {
+                if (acquired)
+                    permits.release(batch.size());
+                cancelled = failure.get() == null;
+                break;
+            }
+            stage.start(batch, failure).whenComplete((value, throwable) -> {
+                permits.release(batch.size());
+                if (throwable != null) {
+                    failure.compareAndSet(null, unwrap(throwable));
+                    return;
+                }
+                int n = completed.addAndGet(batch.size());
+                long now = System.currentTimeMillis();
+                long last = lastProgress.get();
+                if (n == total || (now - last >= progressIntervalMillis && lastProgress.compareAndSet(last, now)))
+                    progress.accept(n);
+            });
+        }
+        // Wait for the frames that are still in flight
+        permits.acquire(maxFramesInFlight);
+        if (failure.get() != null) {
+            logger.error("Failed to process images", failure.get());
+            return false;
+        }
+        return !cancelled && completed.get() == total;
+    }
+
+    /**
+     * Return the shared memory of a batch of frames, also if another frame of it failed.
+     */
+    private static void releaseFrames(Collection<CompletableFuture<Frame>> frames) {
+        for (CompletableFuture<Frame> future : frames) {
+            if (future.isDone() && !future.isCompletedExceptionally())
+                future.join().release();
+        }
+    }
+
+    /**
+     * Ask the server which of the frames it does not have in its frame store yet.
+     * If the server cannot answer, all frames are uploaded.
+     */
+    private List<Integer> findMissingFrames(CloseableHttpClient httpClient, List<Integer> indices, String[] hashes) {
+        JsonObject body = new JsonObject();
+        JsonArray array = new JsonArray();
+        indices.forEach(index -> array.add(hashes[index]));
+        body.add("hashes", array);
+        final String endpointURL = String.format("%supload/missing/", Utils.ensureTrailingSlash(serverURL));
+        try {
+            Gson gson = GsonTools.getInstance();
+            HttpResponse<String> response = HttpUtils.postRequest(httpClient, endpointURL, gson.toJson(body));
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                logger.info("Server does not report existing images ({}), uploading them", response.statusCode());
+                return indices;
+            }
+            Set<String> missing = new HashSet<>();
+            for (JsonElement element : gson.fromJson(response.body(), JsonObject.class).getAsJsonArray("missing"))
+                missing.add(element.getAsString());
+            return indices.stream()
+                    .filter(index -> missing.contains(hashes[index]))
+                    .collect(Collectors.toList());
+        } catch (Exception e) {
+            logger.warn("Failed to query existing images, uploading them", e);
+            return indices;
+        }
+    }
+
+    /**
+     * Upload frames to the frame store in requests of the size chosen by the batch sizer.
+     */
+    private void uploadFramesInBatches(CloseableHttpClient httpClient, Map<String, Frame> frames,
+            BatchSizer batchSizer, AtomicReference<Throwable> failure) {
+        List<String> filenames = new ArrayList<>(frames.keySet());
+        int next = 0;
+        while (next < filenames.size()) {
+            int size = Math.max(1, batchSizer.next());
+            Map<String, Frame> batch = new LinkedHashMap<>();
+            for (String filename : filenames.subList(next, Math.min(next + size, filenames.size())))
+                batch.put(filename, frames.get(filename));
+            next += batch.size();
+            uploadFrames(httpClient, FRAME_STORE, batch, failure);
+        }
+    }
+
+    /**
+     * Ask the server to link the frames of the sequence from its frame store into a directory.
+     *
+     * @return true if the directory was created
+     */
+    private boolean linkFrames(CloseableHttpClient httpClient, String dirname, String[] hashes) {
+        JsonObject body = new JsonObject();
+        body.addProperty("dirname", dirname);
+        JsonArray array = new JsonArray();
+        for (int index = 0; index < hashes.length; index++) {
+            JsonObject element = new JsonObject();
+            element.addProperty("filename", getFilename(index));
+            element.addProperty("hash", hashes[index]);
+            array.add(element);
+        }
+        body.add("frames", array);
+        final String endpointURL = String.format("%supload/link/", Utils.ensureTrailingSlash(serverURL));
+        try {
+            HttpResponse<String> response = HttpUtils.postRequest(httpClient, endpointURL,
+                    GsonTools.getInstance().toJson(body));
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                logger.error("Failed to link images to {}: {}, {}", dirname, response.statusCode(), response.body());
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to link images to {}", dirname, e);
+            return false;
+        }
+    }
+
+    private String hashFrame(int index, BufferedImage img) {
+        MessageDigest digest = createDigest();
+        // The path of a rendered server includes its display settings
+        digest.update(server.getPath().getBytes(StandardCharsets.UTF_8));
+        digest.update(regionRequests.get(index).toString().getBytes(StandardCharsets.UTF_8));
+        int width = img.getWidth();
+        int[] row = new int[width];
+        ByteBuffer buffer = ByteBuffer.allocate(width * Integer.BYTES);
+        for (int y = 0; y < img.getHeight(); y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            buffer.clear();
+            buffer.asIntBuffer().put(row);
+            digest.update(buffer.array());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String getSequenceID(String[] hashes) {
+        MessageDigest digest = createDigest();
+        for (String hash : hashes)
+            digest.update(hash.getBytes(StandardCharsets.UTF_8));
+        return "sha256-" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getStoreFilename(String hash) {
+        return hash + ".jpg";
+    }
+
+    private String getFilename(int index) {
+        return String.format(String.format("%%0%dd.jpg", String.valueOf(regionRequests.size()).length()), index);
+    }
+
+    private List<Integer> allIndices() {
+        return IntStream.range(0, regionRequests.size()).boxed().collect(Collectors.toList());
+    }
+
+    private BufferedImage readFrame(int index, AtomicReference<Throwable> failure) {
+        checkFailure(failure);
+        try {
+            return server.readRegion(regionRequests.get(index));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Frame encodeFrame(BufferedImage img, AtomicReference<Throwable> failure) {
+        checkFailure(failure);
+        if (sharedMemory != null && sharedMemory.canUse(serverURL)) {
+            try {
+                return new Frame(img, sharedMemory.write(img));
+            } catch (IOException e) {
+                logger.debug("Cannot write image to shared memory, encoding it instead: {}", e.getMessage());
+            }
+        }
+        Frame frame = new Frame(img, null);
+        frame.getBytes();
+        return frame;
+    }
+
+    /**
+     * Upload a batch of frames in a single request, if the server supports it.
+     * Frames that the server reports as failed are uploaded again one by one.
+     */
+    private void uploadFrames(CloseableHttpClient httpClient, String dirname, Map<String, Frame> frames,
+            AtomicReference<Throwable> failure) {
+        checkFailure(failure);
+        if (limiter == null) {
+            uploadFramesWithPermit(httpClient, dirname, frames, failure);
+            return;
+        }
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting to upload"));
+        }
+        final long start = System.nanoTime();
+        boolean uploaded = false;
+        try {
+            uploadFramesWithPermit(httpClient, dirname, frames, failure);
+            uploaded = true;
+        } finally {
+            if (uploaded)
+                limiter.release((System.nanoTime() - start) / 1e6);
+            else
+                limiter.releaseDropped();
+        }
+    }
+
+    private void uploadFramesWithPermit(CloseableHttpClient httpClient, String dirname, Map<String, Frame> frames,
+            AtomicReference<Throwable> failure) {
+        if (frames.values().stream().allMatch(frame -> frame.lease != null)
+                && uploadSharedFrames(httpClient, dirname, frames)) {
+            return;
+        }
+        List<String> retry = new ArrayList<>(frames.keySet());
+        if (frames.size() > 1 && batchUploadSupported.get()) {
+            MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create()
+                    .addTextBody("dirname", dirname, ContentType.TEXT_PLAIN);
+            frames.forEach((filename, frame) -> entityBuilder.addBinaryBody("files", frame.getBytes(),
+                    ContentType.create("image/jpeg"), filename));
+            final String endpointURL = String.format("%supload/batch/", Utils.ensureTrailingSlash(serverURL));
+            try {
+                HttpResponse<String> response = HttpUtils.postMultipartRequest(httpClient, endpointURL,
+                        entityBuilder);
+                if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                    Set<String> failed = new HashSet<>();
+                    JsonArray array = GsonTools.getInstance().fromJson(response.body(), JsonObject.class)
+                            .getAsJsonArray("failed");
+                    if (array != null)
+                        array.forEach(element -> failed.add(element.getAsString()));
+                    retry.removeIf(filename -> !failed.contains(filename));
+                    logger.debug("Uploaded {} images in one request ({} failed)", frames.size(), retry.size());
+                } else if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                        || response.statusCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+                    if (batchUploadSupported.compareAndSet(true, false))
+                        logger.info("Server does not support batched uploads, uploading images one by one");
+                } else {
+                    logger.warn("Batched upload failed ({}), uploading images one by one", response.statusCode());
+                }
+            } catch (IOException e) {
+                logger.warn("Batched upload failed, uploading images one by one", e);
+            }
+        }
+        for (String filename : retry)
+            uploadFrame(httpClient, dirname, filename, frames.get(filename).getBytes(), failure);
+    }
+
+    /**
+     * Send the descriptions of frames in shared memory, which the server reads and stores under the given filenames
+     * before it responds.
+     *
+     * @return true if all frames were stored, false if they should be uploaded as encoded images
+     */
+    private boolean uploadSharedFrames(CloseableHttpClient httpClient, String dirname, Map<String, Frame> frames) {
+        if (!sharedMemory.canUse(serverURL))
+            return false;
+        Gson gson = GsonTools.getInstance();
+        JsonObject body = new JsonObject();
+        body.addProperty("dirname", dirname);
+        JsonArray array = new JsonArray();
+        frames.forEach((filename, frame) -> {
+            JsonObject element = new JsonObject();
+            element.addProperty("filename", filename);
+            element.add("shm", gson.toJsonTree(frame.lease.getImage()));
+            array.add(element);
+        });
+        body.add("frames", array);
+        final String endpointURL = String.format("%supload/shm/", Utils.ensureTrailingSlash(serverURL));
+        try {
+            HttpResponse<String> response = HttpUtils.postRequest(httpClient, endpointURL, gson.toJson(body));
+            switch (response.statusCode()) {
+            case HttpURLConnection.HTTP_OK:
+                logger.debug("Handed {} images over in shared memory", frames.size());
+                return true;
+            case HttpURLConnection.HTTP_BAD_REQUEST:
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_BAD_METHOD:
+            case 422:
+                sharedMemory.markUnsupported(serverURL);
+                return false;
+            default:
+                logger.warn("Shared memory upload failed ({}), uploading encoded images", response.statusCode());
+                return false;
+            }
+        } catch (IOException e) {
+            logger.warn("Shared memory upload failed, uploading encoded images", e);
+            return false;
+        }
+    }
+
+    private void uploadFrame(CloseableHttpClient httpClient, String dirname, String filename, byte[] bytes,
+            AtomicReference<Throwable> failure) {
+        checkFailure(failure);
+        MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create()
+                .addTextBody("dirname", dirname, ContentType.TEXT_PLAIN)
+                .addBinaryBody("file", bytes, ContentType.create("image/jpeg"), filename);
+        final String endpointURL = String.format("%supload/", Utils.ensureTrailingSlash(serverURL));
+        try {
+            HttpResponse<String> response = HttpUtils.postMultipartRequest(httpClient, endpointURL, entityBuilder);
+            if (response.statusCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException(String.format("HTTP response: %d, %s", response.statusCode(), response.body()));
+            logger.debug("Uploaded image {}", response.body());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FrameStage {
+
+        CompletableFuture<?> start(List<Integer> batch, AtomicReference<Throwable> failure);
+
+    }
+
+    /**
+     * Choose the number of frames per upload request from the average size of the frames encoded so far.
+     */
+    private class BatchSizer {
+
+        private final AtomicLong bytes = new AtomicLong(0);
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        private void record(Frame frame) {
+            // Frames in shared memory add next to nothing to a request
+            if (frame.bytes != null)
+                bytes.addAndGet(frame.bytes.length);
+            count.incrementAndGet();
+        }
+
+        private int next() {
+            int n = count.get();
+            if (targetBatchBytes <= 0 || maxFramesPerBatch <= 1 || n == 0 || !batchUploadSupported.get())
+                return 1;
+            long average = Math.max(1, bytes.get() / n);
+            return (int) Math.max(1, Math.min(maxFramesPerBatch, targetBatchBytes / average));
+        }
+
+    }
+
+    /**
+     * A frame that is ready to be uploaded, either written to shared memory or encoded as JPEG.
+     * The image is kept, so that a frame in shared memory can still be encoded if the server rejects it.
+     */
+    private static class Frame {
+
+        private final BufferedImage img;
+
+        private final SAMSharedMemory.Lease lease;
+
+        private byte[] bytes;
+
+        private Frame(BufferedImage img, SAMSharedMemory.Lease lease) {
+            this.img = img;
+            this.lease = lease;
+        }
+
+        private synchronized byte[] getBytes() {
+            if (bytes == null) {
+                try {
+                    bytes = Utils.bufferedImageToJpegBytes(img);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return bytes;
+        }
+
+        private void release() {
+            if (lease != null)
+                lease.close();
+        }
+
+    }
+
+    private static void checkFailure(AtomicReference<Throwable> failure) {
+        // Skip the remaining work of frames that were already submitted when another frame failed
+        if (failure.get() != null)
+            throw new CompletionException(failure.get());
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        while (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
+        return throwable;
+    }
+
+    /**
+     * New builder for a frame uploader.
+     *
+     * @param server
+     *            an RGB server providing the pixels
+     * @param regionRequests
+     *            the regions to upload, one per frame
+     * @return the builder
+     */
+    public static Builder builder(ImageServer<BufferedImage> server, List<RegionRequest> regionRequests) {
+        return new Builder(server, regionRequests);
+    }
+
+    /**
+     * Builder for a SAMFrameUploader class.
+     */
+    public static class Builder {
+
+        private final ImageServer<BufferedImage> server;
+        private final List<RegionRequest> regionRequests;
+
+        private String serverURL;
+        private boolean verifySSL;
+        private int readThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        private int encodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int connections = 4;
+        private int maxFramesInFlight;
+        private long progressIntervalMillis = 250;
+        private long targetBatchBytes = 4L * 1024 * 1024;
+        private int maxFramesPerBatch = 32;
+        private SAMConcurrencyLimiter limiter;
+        private SAMSharedMemory sharedMemory;
+
+        private Builder(ImageServer<BufferedImage> server, List<RegionRequest> regionRequests) {
+            this.server = server;
+            this.regionRequests = regionRequests;
+        }
+
+        /**
+         * Specify the server URL (required).
+         *
+         * @param serverURL
+         * @return this builder
+         */
+        public Builder serverURL(final String serverURL) {
+            this.serverURL = serverURL;
+            return this;
+        }
+
+        /**
+         * Specify whether to verify SSL.
+         *
+         * @param verifySSL
+         * @return this builder
+         */
+        public Builder verifySSL(final boolean verifySSL) {
+            this.verifySSL = verifySSL;
+            return this;
+        }
+
+        /**
+         * Specify the number of threads reading frames from the image server.
+         * Default is the number of processors, up to 4.
+         *
+         * @param readThreads
+         * @return this builder
+         */
+        public Builder readThreads(final int readThreads) {
+            this.readThreads = readThreads;
+            return this;
+        }
+
+        /**
+         * Specify the number of threads encoding frames.
+         * Default is half the number of processors.
+         *
+         * @param encodeThreads
+         * @return this builder
+         */
+        public Builder encodeThreads(final int encodeThreads) {
+            this.encodeThreads = encodeThreads;
+            return this;
+        }
+
+        /**
+         * Specify the number of concurrent upload connections.
+         * Default is 4.
+         *
+         * @param connections
+         * @return this builder
+         */
+        public Builder connections(final int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * Optionally adapt the number of concurrent upload requests to the server, up to the number of
+         * connections.
+         * Default is null, so that all connections are used.
+         *
+         * @param limiter
+         * @return this builder
+         */
+        public Builder limiter(final SAMConcurrencyLimiter limiter) {
+            this.limiter = limiter;
+            return this;
+        }
+
+        /**
+         * Optionally hand frames to a server on the same machine through shared memory instead of encoding them.
+         * The server must accept frames at {@code upload/shm/}; otherwise, frames are encoded and uploaded as usual.
+         * Default is null, so that frames are always encoded.
+         *
+         * @param sharedMemory
+         * @return this builder
+         */
+        public Builder sharedMemory(final SAMSharedMemory sharedMemory) {
+            this.sharedMemory = sharedMemory;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of frames that are read but not yet uploaded.
+         * Default is twice the total number of threads.
+         *
+         * @param maxFramesInFlight
+         * @return this builder
+         */
+        public Builder maxFramesInFlight(final int maxFramesInFlight) {
+            this.maxFramesInFlight = maxFramesInFlight;
+            return this;
+        }
+
+        /**
+         * Specify the minimum interval between progress updates, in milliseconds.
+         * Default is 250.
+         *
+         * @param progressIntervalMillis
+         * @return this builder
+         */
+        public Builder progressIntervalMillis(final long progressIntervalMillis) {
+            this.progressIntervalMillis = progressIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Specify the approximate payload size of a batched upload request, in bytes.
+         * The number of frames per request is adapted to the size of the frames encoded so far.
+         * Use 0 to upload each frame in a separate request.
+         * Default is 4 MB.
+         *
+         * @param targetBatchBytes
+         * @return this builder
+         */
+        public Builder targetBatchBytes(final long targetBatchBytes) {
+            this.targetBatchBytes = targetBatchBytes;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of frames in a batched upload request.
+         * Default is 32.
+         *
+         * @param maxFramesPerBatch
+         * @return this builder
+         */
+        public Builder maxFramesPerBatch(final int maxFramesPerBatch) {
+            this.maxFramesPerBatch = maxFramesPerBatch;
+            return this;
+        }
+
+        /**
+         * Build the frame uploader.
+         *
+         * @return the frame uploader
+         */
+        public SAMFrameUploader build() {
+            return new SAMFrameUploader(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,392 @@
+package org.elephant.sam.http;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.elephant.sam.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+/**
+ * Runs long requests, such as auto mask and video prediction, as jobs on the server instead of single blocking
+ * requests, so that they are not cut off by proxy timeouts and can be picked up again after a restart.
+ * <p>
+ * The request body is posted to {@code jobs/<endpoint>}, which answers with {@code {"job_id": "..."}}. The status is
+ * then polled at {@code jobs/<id>/}, which answers with
+ * {@code {"status": "queued|running|done|failed|cancelled", "percent": 40, "message": "...", "results": 12}}, the
+ * same progress that the {@code progress/} endpoint reports for downloads, together with the number of results
+ * that are ready. The results are the items that the blocking endpoint would return, i.e. GeoJSON features for auto
+ * mask and the objects of one frame per item for video. They are fetched from {@code jobs/<id>/results/?offset=N}
+ * while the job is running, either streamed as newline-delimited JSON or in pages of
+ * {@code {"items": [...], "next_offset": N}}. Finished jobs are deleted from the server once their results have been
+ * fetched, and cancelled tasks cancel their job with a DELETE request.
+ * <p>
+ * Running jobs are recorded in the project under {@code sam/jobs/}, keyed by the request. When the same request is
+ * run again on the same server, e.g. after QuPath was restarted, the client follows the recorded job instead of
+ * submitting a new one.
+ */
+public class SAMJobClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMJobClient.class);
+
+    private static final String EXTENSION = ".json";
+
+    // Jobs older than this are assumed to have been dropped by the server
+    private static final long MAX_RECORD_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final long MIN_POLL_MILLIS = 200;
+
+    private static final long MAX_POLL_MILLIS = 2000;
+
+    private static final Map<String, Record> records = new ConcurrentHashMap<>();
+
+    private static volatile Path directory;
+
+    private final boolean verifySSL;
+
+    private final BooleanSupplier isCancelled;
+
+    private final Consumer<String> message;
+
+    /**
+     * Create a client for the jobs of one task.
+     *
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @param isCancelled
+     *            whether the task has been cancelled, in which case the job is cancelled too
+     * @param message
+     *            receives progress messages
+     */
+    public SAMJobClient(boolean verifySSL, BooleanSupplier isCancelled, Consumer<String> message) {
+        this.verifySSL = verifySSL;
+        this.isCancelled = Objects.requireNonNull(isCancelled);
+        this.message = Objects.requireNonNull(message);
+    }
+
+    /**
+     * Get the directory used to record running jobs for a project.
+     *
+     * @param project
+     * @return the job directory
+     */
+    public static Path getJobDirectory(Project<?> project) {
+        return Projects.getBaseDirectory(project).toPath().resolve("sam").resolve("jobs");
+    }
+
+    /**
+     * Set the directory where running jobs are recorded, so that they can be reattached after a restart.
+     *
+     * @param dir
+     *            the directory, or null to only keep the records in memory
+     */
+    public static void setDirectory(Path dir) {
+        directory = dir;
+        records.clear();
+    }
+
+    /**
+     * Get the server that runs a recorded job for a request.
+     *
+     * @param key
+     *            a key created with {@link SAMResultCache#createKey(String, String)}
+     * @return the URL of the server, or null if no job is recorded for the request
+     */
+    public static String getServer(String key) {
+        Record record = load(key);
+        return record == null ? null : record.server;
+    }
+
+    /**
+     * Forget the recorded job for a request, e.g. because its server can no longer be reached, so that the request
+     * is submitted again.
+     *
+     * @param key
+     *            a key created with {@link SAMResultCache#createKey(String, String)}
+     */
+    public static void forget(String key) {
+        remove(key);
+    }
+
+    /**
+     * Run a request as a job and wait for its results, reattaching to a recorded job for the same request if there
+     * is one on this server.
+     * <p>
+     * If the server does not accept the job, its response is returned as is, so that the caller can fall back to
+     * the blocking endpoint.
+     *
+     * @param serverURL
+     *            the URL of a single server
+     * @param endpoint
+     *            the endpoint that would be used for a blocking request, e.g. {@code automask/}
+     * @param body
+     *            the body of the request
+     * @param key
+     *            a key created with {@link SAMResultCache#createKey(String, String)} that identifies the request
+     *            across sessions
+     * @param itemHandler
+     *            receives each result as soon as it is fetched, and returns false to stop; or null to return all
+     *            results as a JSON array
+     * @return the response, whose body is empty if the results were passed to the item handler
+     * @throws IOException
+     *             if the server could not be reached; the job stays recorded, so that it can be reattached
+     * @throws InterruptedException
+     *             if the task was cancelled or interrupted, in which case the job is cancelled
+     */
+    public HttpResponse<String> run(String serverURL, String endpoint, String body, String key,
+            Predicate<String> itemHandler) throws IOException, InterruptedException {
+        final String url = Utils.ensureTrailingSlash(serverURL);
+        Record record = load(key);
+        if (record != null && record.server.equals(url) && record.endpoint.equals(endpoint)) {
+            HttpResponse<String> response = HttpUtils.getRequest(getJobURL(record), verifySSL);
+            Status status = response.statusCode() == HttpURLConnection.HTTP_OK ? parseStatus(response.body()) : null;
+            if (status != null && !status.isFailed()) {
+                logger.info("Reattaching to job {} on {}", record.id, url);
+                return follow(record, itemHandler);
+            }
+            logger.info("Job {} on {} is no longer available, submitting it again", record.id, url);
+            remove(key);
+        }
+
+        HttpResponse<String> response = HttpUtils.postRequest(url + "jobs/" + endpoint, verifySSL, body);
+        if (response.statusCode() != HttpURLConnection.HTTP_OK
+                && response.statusCode() != HttpURLConnection.HTTP_ACCEPTED)
+            return response;
+        JsonObject json = GsonTools.getInstance().fromJson(response.body(), JsonObject.class);
+        record = new Record(key, url, endpoint, json.get("job_id").getAsString(), System.currentTimeMillis());
+        save(record);
+        logger.info("Submitted job {} to {}{}", record.id, url, endpoint);
+        return follow(record, itemHandler);
+    }
+
+    private HttpResponse<String> follow(Record record, Predicate<String> itemHandler)
+            throws IOException, InterruptedException {
+        final JsonArray collected = new JsonArray();
+        final Predicate<String> handler = itemHandler == null ? item -> {
+            collected.add(JsonParser.parseString(item));
+            return true;
+        } : itemHandler;
+        int received = 0;
+        long delay = MIN_POLL_MILLIS;
+        try {
+            while (true) {
+                if (isCancelled.getAsBoolean())
+                    throw new InterruptedException("Job cancelled");
+                HttpResponse<String> response = HttpUtils.getRequest(getJobURL(record), verifySSL);
+                if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                    // e.g. the server was restarted and lost the job
+                    remove(record.key);
+                    return response;
+                }
+                Status status = parseStatus(response.body());
+                if (status.message != null)
+                    message.accept(0 <= status.percent ? String.format("%s (%d%%)", status.message, status.percent)
+                            : status.message);
+                if (status.isFailed()) {
+                    remove(record.key);
+                    return HttpUtils.createResponse(HttpURLConnection.HTTP_INTERNAL_ERROR,
+                            status.error == null ? "Job " + status.status : status.error);
+                }
+                final boolean done = status.isDone();
+                if (done || status.results > received) {
+                    received = fetch(record, received, handler);
+                    delay = MIN_POLL_MILLIS;
+                }
+                if (done) {
+                    remove(record.key);
+                    delete(record);
+                    return HttpUtils.createResponse(HttpURLConnection.HTTP_OK,
+                            itemHandler == null ? collected.toString() : "");
+                }
+                Thread.sleep(delay);
+                delay = Math.min(MAX_POLL_MILLIS, delay * 2);
+            }
+        } catch (InterruptedException e) {
+            logger.info("Cancelling job {} on {}", record.id, record.server);
+            remove(record.key);
+            delete(record);
+            throw e;
+        }
+    }
+
+    /**
+     * Fetch the results from an offset onwards.
+     *
+     * @return the offset after the last result that was fetched
+     */
+    private int fetch(Record record, int offset, Predicate<String> handler) throws IOException, InterruptedException {
+        final int[] next = { offset };
+        final boolean[] stopped = { false };
+        final boolean streaming = SAMServerCapabilities.getCached(record.server)
+                .mayUse(SAMServerCapabilities.STREAMING);
+        while (true) {
+            final String resultsURL = String.format("%sresults/?offset=%d&limit=%d", getJobURL(record), next[0],
+                    PAGE_SIZE);
+            HttpResponse<String> response;
+            if (!streaming) {
+                response = HttpUtils.getRequest(resultsURL, verifySSL);
+            } else {
+                response = HttpUtils.getStreamingRequest(resultsURL, verifySSL, line -> {
+                    if (!handler.test(line)) {
+                        stopped[0] = true;
+                        return false;
+                    }
+                    next[0]++;
+                    return true;
+                });
+            }
+            if (stopped[0])
+                throw new InterruptedException("Job cancelled");
+            if (response.statusCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException(String.format("Cannot fetch the results of job %s: HTTP response %d, %s",
+                        record.id, response.statusCode(), response.body()));
+            if (response.body().isEmpty())
+                // Streamed, so every result that was ready has been received
+                return next[0];
+            JsonObject page = GsonTools.getInstance().fromJson(response.body(), JsonObject.class);
+            for (JsonElement item : page.getAsJsonArray("items")) {
+                if (!handler.test(item.toString()))
+                    throw new InterruptedException("Job cancelled");
+                next[0]++;
+            }
+            JsonElement nextOffset = page.get("next_offset");
+            if (nextOffset == null || nextOffset.isJsonNull())
+                return next[0];
+        }
+    }
+
+    private void delete(Record record) {
+        try {
+            HttpUtils.deleteRequest(getJobURL(record), verifySSL);
+        } catch (IOException e) {
+            logger.debug("Cannot delete job {} on {}: {}", record.id, record.server, e.getMessage());
+        }
+    }
+
+    private static String getJobURL(Record record) {
+        return record.server + "jobs/" + record.id + "/";
+    }
+
+    private static Status parseStatus(String body) {
+        return GsonTools.getInstance().fromJson(body, Status.class);
+    }
+
+    private static Record load(String key) {
+        Record record = records.get(key);
+        final Path dir = directory;
+        if (record == null && dir != null) {
+            Path path = dir.resolve(key + EXTENSION);
+            if (Files.isRegularFile(path)) {
+                try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    record = GsonTools.getInstance().fromJson(reader, Record.class);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Cannot read job record {}: {}", path, e.getMessage());
+                }
+            }
+        }
+        if (record != null && System.currentTimeMillis() - record.submitted > MAX_RECORD_AGE_MILLIS) {
+            remove(key);
+            return null;
+        }
+        return record;
+    }
+
+    private static void save(Record record) {
+        records.put(record.key, record);
+        final Path dir = directory;
+        if (dir == null)
+            return;
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, record.key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                Gson gson = GsonTools.getInstance();
+                gson.toJson(record, writer);
+            }
+            Files.move(tmp, dir.resolve(record.key + EXTENSION), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Cannot record job {}, it cannot be reattached after a restart", record.id, e);
+        }
+    }
+
+    private static void remove(String key) {
+        records.remove(key);
+        final Path dir = directory;
+        if (dir == null)
+            return;
+        try {
+            Files.deleteIfExists(dir.resolve(key + EXTENSION));
+        } catch (IOException e) {
+            logger.warn("Cannot delete job record {}", key, e);
+        }
+    }
+
+    /**
+     * A job submitted to a server, as recorded for reattaching.
+     */
+    private static class Record {
+
+        private final String key;
+        private final String server;
+        private final String endpoint;
+        private final String id;
+        private final long submitted;
+
+        private Record(String key, String server, String endpoint, String id, long submitted) {
+            this.key = key;
+            this.server = server;
+            this.endpoint = endpoint;
+            this.id = id;
+            this.submitted = submitted;
+        }
+
+    }
+
+    /**
+     * The status of a job, as reported by the server.
+     */
+    private static class Status {
+
+        private String status;
+        private int percent = -1;
+        private String message;
+        private int results;
+        private String error;
+
+        private boolean isDone() {
+            return "done".equals(status);
+        }
+
+        private boolean isFailed() {
+            return "failed".equals(status) || "cancelled".equals(status);
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+package org.elephant.sam.http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cache of SAM server responses, so that repeating a prompt on the same region does not need another
+ * round trip.
+ * <p>
+ * Entries are keyed by a hash of the endpoint and the complete request body, which contains the encoded region, the
+ * model, the checkpoint URL, the output type and the prompt geometry. Any change to the rendered pixels therefore
+ * gives a different key. The raw response body is stored rather than the parsed objects, since those are modified
+ * by the tasks (e.g. to set the classification) and parsing is cheap compared with the request.
+ * <p>
+ * The least recently used entries are evicted when the total size exceeds a budget.
+ * <p>
+ * Optionally, a {@link SAMResultStore} keeps the responses on disk as a second tier, so that they can be reused
+ * after QuPath has been restarted.
+ */
+public class SAMResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMResultCache.class);
+
+    private final Map<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+
+    private long sizeBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    private long storeHitCount;
+
+    private SAMResultStore store;
+
+    /**
+     * Create a cache with a size budget.
+     *
+     * @param maxBytes
+     *            the approximate maximum size of all cached responses, in bytes; 0 disables the cache
+     */
+    public SAMResultCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Create the key for a request.
+     *
+     * @param url
+     *            the endpoint URL
+     * @param body
+     *            the JSON request body
+     * @return the cache key
+     */
+    public static String createKey(String url, String body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(url.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(body.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get a cached response.
+     *
+     * @param key
+     * @return the response body, or null if it is not cached
+     */
+    public String get(String key) {
+        SAMResultStore currentStore;
+        synchronized (this) {
+            String body = entries.get(key);
+            if (body != null) {
+                hitCount++;
+                logger.debug("Result cache hit ({})", getStatistics());
+                return body;
+            }
+            currentStore = store;
+            if (currentStore == null) {
+                missCount++;
+                return null;
+            }
+        }
+        // Read from disk without blocking requests that can be answered from memory
+        String body = currentStore.get(key);
+        synchronized (this) {
+            if (body == null) {
+                missCount++;
+            } else {
+                storeHitCount++;
+                logger.debug("Result store hit ({})", getStatistics());
+                putInMemory(key, body);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Add a response to the cache and the store, evicting the least recently used entries if needed.
+     * Responses larger than the whole budget are not kept in memory.
+     *
+     * @param key
+     * @param body
+     *            the response body
+     */
+    public void put(String key, String body) {
+        SAMResultStore currentStore;
+        synchronized (this) {
+            putInMemory(key, body);
+            currentStore = store;
+        }
+        if (currentStore != null)
+            currentStore.put(key, body);
+    }
+
+    private void putInMemory(String key, String body) {
+        long size = estimateSize(key, body);
+        if (size > maxBytes)
+            return;
+        String previous = entries.put(key, body);
+        if (previous != null)
+            sizeBytes -= estimateSize(key, previous);
+        sizeBytes += size;
+        evict();
+    }
+
+    /**
+     * Remove all entries, e.g. when the display settings have changed so that no cached region can be requested
+     * again. The statistics are kept.
+     */
+    public synchronized void invalidateAll() {
+        if (entries.isEmpty())
+            return;
+        logger.debug("Invalidating {} cached results", entries.size());
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Change the size budget, evicting entries if needed.
+     *
+     * @param maxBytes
+     *            the approximate maximum size of all cached responses, in bytes; 0 disables the cache
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    /**
+     * Set the store used as a second tier, e.g. when a project is opened.
+     * Entries in memory are kept, since they do not depend on the project.
+     *
+     * @param store
+     *            the store, or null to only cache in memory
+     */
+    public void setStore(SAMResultStore store) {
+        SAMResultStore previous;
+        synchronized (this) {
+            previous = this.store;
+            this.store = store;
+        }
+        if (previous != null && previous != store)
+            previous.close();
+    }
+
+    /**
+     * Get the store used as a second tier.
+     *
+     * @return the store, or null if results are only cached in memory
+     */
+    public synchronized SAMResultStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of requests answered from the store because they were not in memory.
+     *
+     * @return the store hit count
+     */
+    public synchronized long getStoreHitCount() {
+        return storeHitCount;
+    }
+
+    /**
+     * Get the number of requests that were neither in the cache nor in the store.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the number of entries evicted to stay within the size budget.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Get the approximate size of all cached responses.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Get a summary of the cache statistics, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String getStatistics() {
+        long total = hitCount + storeHitCount + missCount;
+        return String.format(
+                "%d entries, %.1f/%.1f MB, %d hits, %d store hits, %d misses (%.0f%% hit rate), %d evictions",
+                entries.size(), sizeBytes / 1e6, maxBytes / 1e6, hitCount, storeHitCount, missCount,
+                total == 0 ? 0.0 : 100.0 * (hitCount + storeHitCount) / total, evictionCount);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, String> eldest = iterator.next();
+            sizeBytes -= estimateSize(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private static long estimateSize(String key, String body) {
+        // Java strings hold up to two bytes per character
+        return 2L * (key.length() + body.length());
+    }
+
+}
@@ -0,0 +1,438 @@
+package org.elephant.sam.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+/**
+ * On-disk store of SAM server responses, used as a second tier of the {@link SAMResultCache} so that results can be
+ * reused across sessions.
+ * <p>
+ * Responses are appended to segment files, using the same keys as the in-memory cache. Each record holds the key,
+ * the gzip-compressed response and a CRC32 checksum; records that are incomplete or fail the checksum are ignored.
+ * When the store grows beyond its size limit, the oldest segments are deleted. Entries that are read from an older
+ * segment are appended again to the current one, so that entries in use survive eviction.
+ * <p>
+ * Every QuPath instance appends only to segments it has created itself, and picks up the segments of other
+ * instances on a miss, so several instances can share the store of one project. Segments deleted by another instance
+ * are treated as misses. Other instances are looked for at most once per second, and without holding the lock of the
+ * store, so that a series of misses does not hold up other requests.
+ */
+public class SAMResultStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMResultStore.class);
+
+    private static final String EXTENSION = ".seg";
+
+    private static final int MAGIC = 0x53414D52;
+
+    private static final int HEADER_BYTES = 12;
+
+    private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024;
+
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    private final Path dir;
+
+    private final long maxBytes;
+
+    private final long segmentBytes;
+
+    /**
+     * Known segments in creation order, with the number of bytes that have been indexed so far
+     */
+    private final TreeMap<String, Long> segments = new TreeMap<>();
+
+    private final Map<String, Location> index = new HashMap<>();
+
+    private Path activeSegment;
+
+    private FileChannel activeChannel;
+
+    private long lastRefresh;
+
+    private FileTime lastDirModified;
+
+    private boolean refreshing;
+
+    private static class Location {
+
+        private final String segment;
+        private final long offset;
+        private final int keyLength;
+        private final int dataLength;
+
+        private Location(String segment, long offset, int keyLength, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.dataLength = dataLength;
+        }
+
+    }
+
+    /**
+     * Create a store in a directory.
+     * The directory is created when the first response is written.
+     *
+     * @param dir
+     * @param maxBytes
+     *            the approximate maximum size of all segments
+     */
+    public SAMResultStore(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.segmentBytes = Math.max(1024 * 1024, this.maxBytes / 8);
+    }
+
+    /**
+     * Get the directory used to store responses for a project.
+     *
+     * @param project
+     * @return the store directory
+     */
+    public static Path getStoreDirectory(Project<?> project) {
+        return Projects.getBaseDirectory(project).toPath().resolve("sam").resolve("cache");
+    }
+
+    /**
+     * Get a stored response.
+     *
+     * @param key
+     *            a key created with {@link SAMResultCache#createKey(String, String)}
+     * @return the response body, or null if it is not stored or could not be read
+     */
+    public String get(String key) {
+        Location location;
+        synchronized (this) {
+            location = index.get(key);
+        }
+        if (location == null) {
+            // Another instance may have stored it
+            if (!refresh())
+                return null;
+            synchronized (this) {
+                location = index.get(key);
+            }
+            if (location == null)
+                return null;
+        }
+        String body;
+        try {
+            body = read(location, key);
+        } catch (IOException e) {
+            logger.debug("Unable to read stored result: {}", e.getMessage());
+            body = null;
+        }
+        synchronized (this) {
+            if (body == null) {
+                index.remove(key, location);
+                return null;
+            }
+            if (index.get(key) == location
+                    && (activeSegment == null || !location.segment.equals(activeSegment.getFileName().toString()))) {
+                try {
+                    append(key, body);
+                    evict();
+                } catch (IOException e) {
+                    logger.debug("Unable to move stored result to the current segment: {}", e.getMessage());
+                }
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Store a response, deleting the oldest segments if the size limit is exceeded.
+     *
+     * @param key
+     *            a key created with {@link SAMResultCache#createKey(String, String)}
+     * @param body
+     *            the response body
+     */
+    public synchronized void put(String key, String body) {
+        if (index.containsKey(key))
+            return;
+        try {
+            append(key, body);
+            evict();
+        } catch (IOException e) {
+            logger.warn("Unable to store result in {}: {}", dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Delete all stored responses, including those of other instances.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        closeActiveSegment();
+        index.clear();
+        segments.clear();
+        if (!Files.isDirectory(dir))
+            return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : stream)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Stop writing to the current segment.
+     * A new segment is created if the store is used again.
+     */
+    public synchronized void close() {
+        closeActiveSegment();
+    }
+
+    private void closeActiveSegment() {
+        if (activeChannel != null) {
+            try {
+                activeChannel.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close {}: {}", activeSegment, e.getMessage());
+            }
+        }
+        activeChannel = null;
+        activeSegment = null;
+    }
+
+    private void append(String key, String body) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] data = compressed.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + data.length + 4)
+                .putInt(MAGIC)
+                .putInt(keyBytes.length)
+                .putInt(data.length)
+                .put(keyBytes)
+                .put(data)
+                .putInt((int) crc.getValue());
+        record.flip();
+
+        if (activeChannel != null && activeChannel.size() >= segmentBytes)
+            closeActiveSegment();
+        if (activeChannel == null) {
+            Files.createDirectories(dir);
+            // Segment names sort by creation time, and are unique to this instance
+            String name = String.format("%013d-%s%s", System.currentTimeMillis(),
+                    UUID.randomUUID().toString().substring(0, 8), EXTENSION);
+            activeSegment = dir.resolve(name);
+            activeChannel = FileChannel.open(activeSegment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segments.put(name, 0L);
+        }
+        String name = activeSegment.getFileName().toString();
+        long offset = activeChannel.size();
+        activeChannel.position(offset);
+        while (record.hasRemaining())
+            activeChannel.write(record);
+        index.put(key, new Location(name, offset, keyBytes.length, data.length));
+        segments.put(name, activeChannel.size());
+    }
+
+    private String read(Location location, String key) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + location.keyLength + location.dataLength + 4);
+        try (FileChannel channel = FileChannel.open(dir.resolve(location.segment), StandardOpenOption.READ)) {
+            long position = location.offset;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0)
+                    return null;
+                position += n;
+            }
+        } catch (NoSuchFileException e) {
+            // Evicted by another instance
+            return null;
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != location.keyLength
+                || buffer.getInt() != location.dataLength)
+            return null;
+        byte[] keyBytes = new byte[location.keyLength];
+        byte[] data = new byte[location.dataLength];
+        buffer.get(keyBytes).get(data);
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(data);
+        if (buffer.getInt() != (int) crc.getValue() || !key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+            logger.warn("Ignoring corrupt result in {}", location.segment);
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Index segments, or parts of segments, that have been written since the last refresh.
+     * The directory is only listed if it has been modified, and only segments that have grown are read. The files are
+     * read without holding the lock of the store.
+     *
+     * @return true if the store was refreshed, false if it was refreshed recently or is being refreshed
+     */
+    private boolean refresh() {
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> known;
+        final String active;
+        final FileTime dirModified;
+        synchronized (this) {
+            if (refreshing || now - lastRefresh < REFRESH_INTERVAL_MILLIS)
+                return false;
+            refreshing = true;
+            lastRefresh = now;
+            known = new HashMap<>(segments);
+            active = activeSegment == null ? null : activeSegment.getFileName().toString();
+            dirModified = lastDirModified;
+        }
+        List<String> names = null;
+        FileTime modified = null;
+        Map<String, Location> found = new HashMap<>();
+        Map<String, Long> offsets = new HashMap<>();
+        try {
+            if (!Files.isDirectory(dir))
+                return true;
+            modified = Files.getLastModifiedTime(dir);
+            // Modification times can be coarse, so a recently modified directory is listed again
+            if (modified.equals(dirModified) && now - modified.toMillis() > 2 * REFRESH_INTERVAL_MILLIS) {
+                // No segments were created or deleted
+                names = new ArrayList<>(known.keySet());
+            } else {
+                names = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+                    for (Path file : stream)
+                        names.add(file.getFileName().toString());
+                }
+            }
+            for (String name : names) {
+                if (name.equals(active))
+                    continue;
+                long offset = known.getOrDefault(name, 0L);
+                if (Files.size(dir.resolve(name)) > offset)
+                    offset = scan(name, offset, found);
+                offsets.put(name, offset);
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to refresh {}: {}", dir, e.getMessage());
+        } finally {
+            synchronized (this) {
+                refreshing = false;
+                if (names != null) {
+                    lastDirModified = modified;
+                    // Forget segments deleted by another instance
+                    segments.keySet().retainAll(names);
+                    index.values().removeIf(location -> !segments.containsKey(location.segment));
+                    offsets.forEach((name, offset) -> {
+                        // Unless they were evicted while the segments were read
+                        if (!known.containsKey(name) || segments.containsKey(name))
+                            segments.merge(name, offset, Math::max);
+                    });
+                    found.forEach((key, location) -> {
+                        if (segments.containsKey(location.segment))
+                            index.putIfAbsent(key, location);
+                    });
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index the complete records of a segment from an offset.
+     *
+     * @return the offset after the last complete record
+     */
+    private long scan(String name, long offset, Map<String, Location> found) {
+        try (FileChannel channel = FileChannel.open(dir.resolve(name), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (offset + HEADER_BYTES <= size) {
+                header.clear();
+                channel.read(header, offset);
+                header.flip();
+                int keyLength = header.getInt(4);
+                int dataLength = header.getInt(8);
+                if (header.getInt(0) != MAGIC || keyLength <= 0 || dataLength <= 0
+                        || keyLength + dataLength > MAX_RECORD_BYTES)
+                    break;
+                long end = offset + HEADER_BYTES + keyLength + dataLength + 4;
+                if (end > size)
+                    // Possibly still being written by another instance
+                    break;
+                ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+                channel.read(keyBuffer, offset + HEADER_BYTES);
+                String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+                // The checksum is verified when the record is read
+                found.put(key, new Location(name, offset, keyLength, dataLength));
+                offset = end;
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to scan {}: {}", name, e.getMessage());
+        }
+        return offset;
+    }
+
+    private void evict() {
+        long total = 0;
+        Map<String, Long> sizes = new HashMap<>();
+        for (String name : segments.keySet()) {
+            try {
+                long size = Files.size(dir.resolve(name));
+                sizes.put(name, size);
+                total += size;
+            } catch (IOException e) {
+                sizes.put(name, 0L);
+            }
+        }
+        String active = activeSegment == null ? null : activeSegment.getFileName().toString();
+        while (total > maxBytes && !segments.isEmpty()) {
+            String oldest = segments.firstKey();
+            if (oldest.equals(active))
+                break;
+            try {
+                Files.deleteIfExists(dir.resolve(oldest));
+            } catch (IOException e) {
+                // Another instance may still be reading it; try again next time
+                logger.debug("Unable to delete {}: {}", oldest, e.getMessage());
+                break;
+            }
+            logger.debug("Evicted result segment {}", oldest);
+            segments.remove(oldest);
+            total -= sizes.getOrDefault(oldest, 0L);
+            index.values().removeIf(location -> location.segment.equals(oldest));
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package org.elephant.sam.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elephant.sam.Utils;
+import org.elephant.sam.entities.SAMType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * The protocol features that a SAM server supports, as reported by its {@code capabilities/} endpoint.
+ * <p>
+ * The endpoint returns e.g. {@code {"version": "0.8.0", "features": ["stream", "gzip", "jobs", ...],
+ * "models": {"vit_h": {"input_size": 1024}}}}, where the features are the constants of this class.
+ * Capabilities are requested once per server when it is connected, and again when it comes back after being
+ * unavailable, since it may have been upgraded in between.
+ * <p>
+ * Servers without the endpoint are older versions, whose features are unknown. For these, {@link #mayUse(String)}
+ * returns true for every feature, so that the client tries the fastest protocol and falls back when the server
+ * rejects it, as before.
+ */
+public class SAMServerCapabilities {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMServerCapabilities.class);
+
+    /**
+     * Images handed over through shared memory, for auto mask and video frames.
+     */
+    public static final String SHARED_MEMORY = "shm";
+
+    /**
+     * Video results streamed as newline-delimited JSON, one line per frame.
+     */
+    public static final String STREAMING = "stream";
+
+    /**
+     * Request bodies compressed with gzip, see {@link HttpCompression}.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * Several video frames in a single upload, at {@code upload/batch/}.
+     */
+    public static final String BATCH_UPLOAD = "upload.batch";
+
+    /**
+     * Video frames kept by their hash, queried at {@code upload/missing/} and linked into a directory at
+     * {@code upload/link/}.
+     */
+    public static final String MISSING_UPLOADS = "upload.missing";
+
+    /**
+     * Image embeddings and the exported mask decoder for local decoding, at {@code embedding/} and
+     * {@code decoder/}.
+     */
+    public static final String LOCAL_DECODER = "decoder";
+
+    /**
+     * Explicit point grids for auto mask, as used to distribute auto mask runs.
+     */
+    public static final String POINT_GRIDS = "automask.point_grids";
+
+    /**
+     * Long requests run as jobs, at {@code jobs/}, see {@link SAMJobClient}.
+     */
+    public static final String JOBS = "jobs";
+
+    private static final int TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The capabilities of a server that does not report them.
+     */
+    public static final SAMServerCapabilities UNKNOWN = new SAMServerCapabilities(false, null,
+            Collections.emptySet(), Collections.emptyMap());
+
+    private static final Map<String, SAMServerCapabilities> capabilities = new ConcurrentHashMap<>();
+
+    private final boolean known;
+
+    private final String version;
+
+    private final Set<String> features;
+
+    private final Map<String, Integer> inputSizes;
+
+    private SAMServerCapabilities(boolean known, String version, Set<String> features,
+            Map<String, Integer> inputSizes) {
+        this.known = known;
+        this.version = version;
+        this.features = features;
+        this.inputSizes = inputSizes;
+    }
+
+    /**
+     * Get the capabilities of a server, requesting them if they are not known yet.
+     *
+     * @param serverURL
+     *            the URL of a single server
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @return the capabilities, or {@link #UNKNOWN} if the server does not report them or cannot be reached
+     */
+    public static SAMServerCapabilities get(String serverURL, boolean verifySSL) {
+        SAMServerCapabilities cached = capabilities.get(Utils.ensureTrailingSlash(serverURL));
+        return cached == null ? refresh(serverURL, verifySSL) : cached;
+    }
+
+    /**
+     * Get the capabilities of a server without contacting it.
+     *
+     * @param serverURL
+     *            the URL of a single server
+     * @return the capabilities, or {@link #UNKNOWN} if they have not been requested yet
+     */
+    public static SAMServerCapabilities getCached(String serverURL) {
+        return capabilities.getOrDefault(Utils.ensureTrailingSlash(serverURL), UNKNOWN);
+    }
+
+    /**
+     * Request the capabilities of a server, replacing those that are cached.
+     *
+     * @param serverURL
+     *            the URL of a single server
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     * @return the capabilities, or {@link #UNKNOWN} if the server does not report them or cannot be reached
+     */
+    public static SAMServerCapabilities refresh(String serverURL, boolean verifySSL) {
+        final String url = Utils.ensureTrailingSlash(serverURL);
+        final String endpointURL = url + "capabilities/";
+        try {
+            HttpResponse<String> response = HttpUtils.getRequest(endpointURL, verifySSL, TIMEOUT_MILLIS);
+            SAMServerCapabilities result;
+            if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                result = parse(response.body());
+                logger.info("SAM server {}: {}", url, result);
+                if (result.supports(GZIP))
+                    HttpCompression.acceptGzip(endpointURL);
+            } else if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                    || response.statusCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+                result = UNKNOWN;
+                logger.info("SAM server {} does not report its capabilities, assuming an older version", url);
+            } else {
+                logger.debug("Cannot get the capabilities of {}: HTTP response {}", url, response.statusCode());
+                return UNKNOWN;
+            }
+            capabilities.put(url, result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            // Not cached, so that the next request asks again
+            logger.debug("Cannot get the capabilities of {}: {}", url, e.getMessage());
+            return UNKNOWN;
+        }
+    }
+
+    private static SAMServerCapabilities parse(String body) {
+        JsonObject json = GsonTools.getInstance().fromJson(body, JsonObject.class);
+        String version = json.has("version") ? json.get("version").getAsString() : null;
+        Set<String> features = new LinkedHashSet<>();
+        if (json.has("features")) {
+            for (JsonElement element : json.getAsJsonArray("features"))
+                features.add(element.getAsString());
+        }
+        Map<String, Integer> inputSizes = new HashMap<>();
+        if (json.has("models")) {
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("models").entrySet()) {
+                JsonObject model = entry.getValue().getAsJsonObject();
+                if (model.has("input_size"))
+                    inputSizes.put(entry.getKey(), model.get("input_size").getAsInt());
+            }
+        }
+        return new SAMServerCapabilities(true, version, Collections.unmodifiableSet(features),
+                Collections.unmodifiableMap(inputSizes));
+    }
+
+    /**
+     * Check whether the server reported its capabilities.
+     *
+     * @return false for older servers, whose features are unknown
+     */
+    public boolean isKnown() {
+        return known;
+    }
+
+    /**
+     * Check whether the server reported a feature.
+     *
+     * @param feature
+     *            e.g. {@link #STREAMING}
+     * @return true only if the server is known to support the feature
+     */
+    public boolean supports(String feature) {
+        return features.contains(feature);
+    }
+
+    /**
+     * Check whether a feature may be used, i.e. whether the server supports it or its features are unknown.
+     * Callers must still fall back if a server with unknown features rejects it.
+     *
+     * @param feature
+     *            e.g. {@link #STREAMING}
+     * @return false only if the server is known not to support the feature
+     */
+    public boolean mayUse(String feature) {
+        return !isKnown() || supports(feature);
+    }
+
+    /**
+     * Get the version of the server.
+     *
+     * @return the version, or null if it is unknown
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the size of the images that a model works on, e.g. the longest side that images are resized to.
+     *
+     * @param model
+     * @param defaultSize
+     *            the size to return if the server does not report it
+     * @return the input size
+     */
+    public int getInputSize(SAMType model, int defaultSize) {
+        return inputSizes.getOrDefault(model.modelName(), defaultSize);
+    }
+
+    @Override
+    public String toString() {
+        if (!known)
+            return "unknown capabilities";
+        return String.format("samapi %s, features %s, input sizes %s", version == null ? "(unknown version)"
+                : version, features, inputSizes);
+    }
+
+}
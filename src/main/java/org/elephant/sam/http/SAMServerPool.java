@@ -0,0 +1,848 @@
+package org.elephant.sam.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.elephant.sam.SAM;
+import org.elephant.sam.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * A pool of SAM server replicas that are used as one server.
+ * <p>
+ * The pool is created from the server URL setting, which may hold several URLs separated by commas or whitespace.
+ * Every request is routed to a healthy replica, either the one with the fewest outstanding requests from this client
+ * or the one with the lowest expected wait, based on its recent latency. Replicas are probed in the background, and
+ * a replica that fails a request is skipped until it answers a probe again; the request is retried on another
+ * replica.
+ * <p>
+ * Requests that depend on state kept by the server (e.g. uploaded video frames, SAM3 prompts or weight downloads)
+ * pass a sticky key, so that all of them are sent to the same replica for as long as it is healthy.
+ * <p>
+ * Requests can pass a limit key (e.g. the endpoint and model), so that the number of concurrent requests of that
+ * kind to each replica is bounded by an adaptive {@link SAMConcurrencyLimiter}. Replicas with spare capacity are
+ * preferred, and requests wait while every replica is at its limit.
+ * <p>
+ * Small interactive requests can be hedged with {@link #postHedged(String, String, String)}: if a replica takes longer
+ * than its usual (95th percentile) latency, the request is also sent to a second replica and the first response is
+ * used.
+ * The share of hedged requests is capped, so that a slow cluster is not overloaded further.
+ * <p>
+ * A pool with a single URL sends every request to it, as if there was no pool.
+ */
+public class SAMServerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMServerPool.class);
+
+    /**
+     * Sticky key for the weights endpoints, since registered weights and download progress are kept by the server.
+     */
+    public static final String WEIGHTS_KEY = "weights";
+
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("SAM-health", true));
+
+    private static final long PROBE_INTERVAL_SECONDS = 10;
+
+    private static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+    private static final int MAX_STICKY_KEYS = 1024;
+
+    // Weight of the latest sample in the moving average of latencies
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private static final int HEDGE_LATENCY_SAMPLES = 100;
+
+    private static final int MIN_HEDGE_LATENCY_SAMPLES = 10;
+
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private static final int INITIAL_CONCURRENCY_LIMIT = 2;
+
+    private static final int MAX_CONCURRENCY_LIMIT = 32;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // Upper bound on waiting for capacity, in case it is released without notifying the pool (e.g. by uploads)
+    private static final long CAPACITY_WAIT_MILLIS = 50;
+
+    /**
+     * How to choose between healthy replicas.
+     */
+    public enum Routing {
+        /**
+         * Send each request to the replica with the fewest outstanding requests.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Send each request to the replica with the lowest expected wait, i.e. the number of outstanding requests
+         * weighted by its recent latency, so that faster replicas receive more requests.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    /**
+     * A request to send to the replica chosen by the pool.
+     */
+    @FunctionalInterface
+    public interface Request {
+
+        /**
+         * Send the request.
+         *
+         * @param serverURL
+         *            the base URL of the chosen replica, with a trailing slash
+         * @return the response
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        HttpResponse<String> send(String serverURL) throws IOException, InterruptedException;
+
+    }
+
+    private final List<Endpoint> endpoints;
+
+    private final boolean verifySSL;
+
+    private final Map<String, Endpoint> stickyEndpoints = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Endpoint> eldest) {
+            return size() > MAX_STICKY_KEYS;
+        }
+    };
+
+    private volatile Routing routing = Routing.LEAST_OUTSTANDING;
+
+    private int nextIndex;
+
+    private ScheduledFuture<?> probes;
+
+    private double maxHedgeFraction = 0.05;
+
+    private long hedgeableCount;
+
+    private long hedgeCount;
+
+    /**
+     * Create a pool.
+     *
+     * @param serverURLs
+     *            one or more server URLs, separated by commas or whitespace
+     * @param verifySSL
+     *            whether to verify SSL certificates
+     */
+    public SAMServerPool(String serverURLs, boolean verifySSL) {
+        this.endpoints = parseURLs(serverURLs).stream()
+                .map(Endpoint::new)
+                .collect(Collectors.toUnmodifiableList());
+        if (endpoints.isEmpty())
+            throw new IllegalArgumentException("No server URL specified");
+        this.verifySSL = verifySSL;
+        // Ask each server what it supports as soon as it is connected
+        for (Endpoint endpoint : endpoints)
+            SAM.getContext().getExecutor().execute(() -> SAMServerCapabilities.refresh(endpoint.url, verifySSL));
+        if (endpoints.size() > 1) {
+            logger.info("Using {} SAM servers: {}", endpoints.size(), getURLs());
+            probes = scheduler.scheduleWithFixedDelay(this::probeAll, 0, PROBE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Split a server URL setting into the URLs of the replicas.
+     *
+     * @param serverURLs
+     *            one or more server URLs, separated by commas or whitespace; {@code unix:} URLs refer to a server on
+     *            a Unix domain socket
+     * @return the distinct URLs, each with a trailing slash
+     */
+    public static List<String> parseURLs(String serverURLs) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (serverURLs != null) {
+            for (String url : serverURLs.split("[,\\s]+")) {
+                if (url.isBlank())
+                    continue;
+                url = url.strip();
+                if (UnixSocketTransport.isUnixURL(url))
+                    url = UnixSocketTransport.normalizeURL(url);
+                urls.add(Utils.ensureTrailingSlash(url));
+            }
+        }
+        return new ArrayList<>(urls);
+    }
+
+    /**
+     * Get the URLs of all replicas.
+     *
+     * @return the URLs, each with a trailing slash
+     */
+    public List<String> getURLs() {
+        return endpoints.stream().map(endpoint -> endpoint.url).collect(Collectors.toList());
+    }
+
+    /**
+     * Check whether a feature may be used with every replica, so that it does not matter which replica a request is
+     * sent to.
+     *
+     * @param feature
+     *            e.g. {@link SAMServerCapabilities#POINT_GRIDS}
+     * @return false if any replica is known not to support the feature
+     * @see SAMServerCapabilities#mayUse(String)
+     */
+    public boolean mayUse(String feature) {
+        return endpoints.stream()
+                .allMatch(endpoint -> SAMServerCapabilities.get(endpoint.url, verifySSL).mayUse(feature));
+    }
+
+    /**
+     * Get the number of replicas that answered their last probe or request.
+     *
+     * @return the number of healthy replicas
+     */
+    public int getHealthyCount() {
+        return (int) endpoints.stream().filter(endpoint -> endpoint.healthy).count();
+    }
+
+    /**
+     * Send requests with a sticky key to a given replica, e.g. to follow a job that was submitted to it in an earlier
+     * session. If the replica becomes unavailable, requests fail over to another replica as usual.
+     *
+     * @param stickyKey
+     *            a key identifying state kept by the server
+     * @param serverURL
+     *            the URL of the replica
+     * @return true if the replica is part of this pool and available, false if another replica will be chosen
+     */
+    public synchronized boolean stick(String stickyKey, String serverURL) {
+        Objects.requireNonNull(stickyKey);
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.url.equals(serverURL) && endpoint.healthy) {
+                stickyEndpoints.put(stickyKey, endpoint);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set how to choose between healthy replicas.
+     * Default is {@link Routing#LEAST_OUTSTANDING}.
+     *
+     * @param routing
+     */
+    public void setRouting(Routing routing) {
+        this.routing = routing == null ? Routing.LEAST_OUTSTANDING : routing;
+    }
+
+    /**
+     * Get how to choose between healthy replicas.
+     *
+     * @return the routing
+     */
+    public Routing getRouting() {
+        return routing;
+    }
+
+    /**
+     * Set the maximum share of hedged requests that may be sent to a second replica.
+     * Default is 0.05.
+     *
+     * @param maxHedgeFraction
+     *            the fraction between 0 and 1; 0 turns hedging off
+     */
+    public synchronized void setMaxHedgeFraction(double maxHedgeFraction) {
+        this.maxHedgeFraction = Math.max(0, Math.min(1, maxHedgeFraction));
+    }
+
+    /**
+     * Get the maximum share of hedged requests that may be sent to a second replica.
+     *
+     * @return the fraction between 0 and 1
+     */
+    public synchronized double getMaxHedgeFraction() {
+        return maxHedgeFraction;
+    }
+
+    /**
+     * Send a small POST request that can be answered by any replica, sending it to a second replica as well if the
+     * first one is slower than usual.
+     * <p>
+     * The second request is sent once the first has taken longer than the 95th percentile of the latencies of hedged
+     * requests to that replica, if the share of hedged requests stays within {@link #getMaxHedgeFraction()}. The
+     * first response is returned and the other request is cancelled. If a replica cannot be reached, the request is
+     * retried on another one as with {@link #execute(String, Request)}.
+     *
+     * @param endpoint
+     *            the endpoint relative to the server URL, e.g. {@code "automask/"}
+     * @param body
+     *            the JSON request body
+     * @param limitKey
+     *            the kind of request whose concurrency is limited, or null for no limit; the request is only hedged
+     *            to a replica with spare capacity
+     * @return the first response
+     * @throws IOException
+     *             if no replica could be reached
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> postHedged(String endpoint, String body, String limitKey)
+            throws IOException, InterruptedException {
+        final boolean hedge;
+        synchronized (this) {
+            hedge = endpoints.size() > 1 && maxHedgeFraction > 0;
+            if (hedge)
+                hedgeableCount++;
+        }
+        if (!hedge)
+            return execute(null, limitKey, url -> HttpUtils.postRequest(url + endpoint, verifySSL, body));
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        Set<Endpoint> tried = new HashSet<>();
+        List<Attempt> running = new ArrayList<>();
+        running.add(startAttempt(tried, endpoint, body, limitKey, true, completed));
+        boolean hedged = false;
+        Attempt failed = null;
+        try {
+            while (!running.isEmpty()) {
+                Attempt done;
+                if (!hedged) {
+                    long delay;
+                    synchronized (this) {
+                        delay = running.get(0).lease.endpoint.getHedgeDelayMillis();
+                    }
+                    done = delay < 0 ? completed.take() : completed.poll(delay, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        // Slower than usual: try another replica as well, and use whichever answers first
+                        hedged = true;
+                        if (hasHealthyEndpoint(tried) && reserveHedge()) {
+                            Attempt attempt = startAttempt(tried, endpoint, body, limitKey, false, completed);
+                            if (attempt == null) {
+                                cancelHedge();
+                            } else {
+                                logger.debug("Hedging request to {} after {} ms",
+                                        running.get(0).lease.getServerURL(), delay);
+                                running.add(attempt);
+                            }
+                        }
+                        continue;
+                    }
+                } else {
+                    done = completed.take();
+                }
+                running.remove(done);
+                if (done.isSuccessful()) {
+                    synchronized (this) {
+                        done.lease.endpoint.recordHedgeable(done.getLatencyMillis());
+                    }
+                    return done.response;
+                }
+                failed = done;
+                // Fail over if nothing else is in flight
+                if (running.isEmpty() && tried.size() < endpoints.size())
+                    running.add(startAttempt(tried, endpoint, body, limitKey, true, completed));
+            }
+        } finally {
+            running.forEach(Attempt::cancel);
+        }
+        if (failed.failure != null)
+            throw failed.failure;
+        return failed.response;
+    }
+
+    /**
+     * Start a copy of a hedged request on a replica that was not tried yet.
+     *
+     * @return the attempt, or null if there is no capacity and {@code wait} is false
+     */
+    private Attempt startAttempt(Set<Endpoint> tried, String endpoint, String body, String limitKey, boolean wait,
+            BlockingQueue<Attempt> completed) throws InterruptedException {
+        Lease lease = acquire(null, limitKey, wait ? tried : excludeUnhealthy(tried), wait);
+        if (lease == null)
+            return null;
+        tried.add(lease.endpoint);
+        return new Attempt(lease, endpoint, body, completed);
+    }
+
+    private Set<Endpoint> excludeUnhealthy(Set<Endpoint> exclude) {
+        Set<Endpoint> excluded = new HashSet<>(exclude);
+        endpoints.stream().filter(endpoint -> !endpoint.healthy).forEach(excluded::add);
+        return excluded;
+    }
+
+    private boolean hasHealthyEndpoint(Collection<Endpoint> exclude) {
+        return endpoints.stream().anyMatch(endpoint -> endpoint.healthy && !exclude.contains(endpoint));
+    }
+
+    private synchronized boolean reserveHedge() {
+        if (hedgeCount + 1 > maxHedgeFraction * hedgeableCount)
+            return false;
+        hedgeCount++;
+        return true;
+    }
+
+    private synchronized void cancelHedge() {
+        hedgeCount--;
+    }
+
+    /**
+     * Send a request to a replica, retrying on the other replicas if it cannot be reached or is unavailable.
+     *
+     * @param stickyKey
+     *            a key identifying state kept by the server, or null if any replica can answer
+     * @param request
+     *            the request to send
+     * @return the response of the first replica that answered
+     * @throws IOException
+     *             if no replica could be reached
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> execute(String stickyKey, Request request) throws IOException, InterruptedException {
+        return execute(stickyKey, null, request);
+    }
+
+    /**
+     * Send a request to a replica once it has capacity for another request of this kind, retrying on the other
+     * replicas if it cannot be reached or is unavailable.
+     *
+     * @param stickyKey
+     *            a key identifying state kept by the server, or null if any replica can answer
+     * @param limitKey
+     *            the kind of request whose concurrency is limited (e.g. {@code "automask/vit_h"}), or null for no
+     *            limit
+     * @param request
+     *            the request to send
+     * @return the response of the first replica that answered
+     * @throws IOException
+     *             if no replica could be reached
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> execute(String stickyKey, String limitKey, Request request)
+            throws IOException, InterruptedException {
+        Set<Endpoint> tried = new HashSet<>();
+        while (true) {
+            Lease lease = acquire(stickyKey, limitKey, tried, true);
+            tried.add(lease.endpoint);
+            final boolean canRetry = tried.size() < endpoints.size();
+            try {
+                HttpResponse<String> response = request.send(lease.getServerURL());
+                if (canRetry && isUnavailable(response.statusCode())) {
+                    lease.fail(String.format("HTTP response: %d", response.statusCode()));
+                    continue;
+                }
+                if (isOverloaded(response.statusCode()))
+                    lease.overloaded();
+                return response;
+            } catch (IOException e) {
+                lease.fail(e.getMessage());
+                if (!canRetry)
+                    throw e;
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Choose a replica for several requests that must be sent to the same server, e.g. uploading frames and then
+     * running a prediction on them.
+     * The lease must be closed when the requests are complete.
+     *
+     * @param stickyKey
+     *            a key identifying state kept by the server, or null if any replica can answer
+     * @param limitKey
+     *            the kind of request whose concurrency is limited, or null for no limit
+     * @return the lease of the chosen replica
+     * @throws InterruptedException
+     *             if interrupted while waiting for capacity
+     */
+    public Lease acquire(String stickyKey, String limitKey) throws InterruptedException {
+        return acquire(stickyKey, limitKey, Collections.emptySet(), true);
+    }
+
+    /**
+     * Get the concurrency limiter of one replica for a kind of request, e.g. to limit uploads that are sent
+     * directly to the replica of a lease.
+     *
+     * @param serverURL
+     *            the URL of the replica, as returned by {@link Lease#getServerURL()}
+     * @param limitKey
+     *            the kind of request
+     * @return the limiter, or null if the URL is not part of this pool
+     */
+    public synchronized SAMConcurrencyLimiter getLimiter(String serverURL, String limitKey) {
+        return endpoints.stream()
+                .filter(endpoint -> endpoint.url.equals(serverURL))
+                .map(endpoint -> endpoint.getLimiter(limitKey))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Choose a replica and start a request on it, waiting for capacity if requested.
+     *
+     * @return the lease, or null if there is no capacity and {@code wait} is false
+     */
+    private synchronized Lease acquire(String stickyKey, String limitKey, Collection<Endpoint> exclude,
+            boolean wait) throws InterruptedException {
+        while (true) {
+            Endpoint endpoint = stickyKey == null ? null : stickyEndpoints.get(stickyKey);
+            if (endpoint == null || !endpoint.healthy || exclude.contains(endpoint)) {
+                endpoint = choose(exclude, limitKey);
+                if (stickyKey != null)
+                    stickyEndpoints.put(stickyKey, endpoint);
+            }
+            SAMConcurrencyLimiter limiter = limitKey == null ? null : endpoint.getLimiter(limitKey);
+            if (limiter == null || limiter.tryAcquire())
+                return new Lease(endpoint, stickyKey, limiter);
+            if (!wait)
+                return null;
+            wait(CAPACITY_WAIT_MILLIS);
+        }
+    }
+
+    private Endpoint choose(Collection<Endpoint> exclude, String limitKey) {
+        Endpoint best = null;
+        double bestScore = Double.POSITIVE_INFINITY;
+        final int n = endpoints.size();
+        // Start from a different replica each time, so that ties are broken round-robin
+        final int offset = nextIndex++ % n;
+        for (int i = 0; i < n; i++) {
+            Endpoint endpoint = endpoints.get((offset + i) % n);
+            if (!endpoint.healthy || exclude.contains(endpoint))
+                continue;
+            double score = routing == Routing.LATENCY_WEIGHTED
+                    ? (endpoint.outstanding + 1) * endpoint.getLatencyMillis()
+                    : endpoint.outstanding;
+            // Replicas at their limit only receive requests if every replica is
+            if (limitKey != null && !endpoint.getLimiter(limitKey).hasCapacity())
+                score += 1e12;
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        if (best != null)
+            return best;
+        // If every replica seems down, try the one that failed least recently rather than giving up
+        for (Endpoint endpoint : endpoints) {
+            if (!exclude.contains(endpoint) && (best == null || endpoint.lastFailure < best.lastFailure))
+                best = endpoint;
+        }
+        return best == null ? endpoints.get(offset) : best;
+    }
+
+    private static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private static boolean isUnavailable(int statusCode) {
+        return statusCode == HttpURLConnection.HTTP_BAD_GATEWAY
+                || statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+                || statusCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    private synchronized void markDown(Endpoint endpoint, String reason) {
+        endpoint.lastFailure = System.nanoTime();
+        endpoint.failureCount++;
+        if (endpoints.size() == 1) {
+            // A single server is not probed, so it would never be marked up again; it is the only choice anyway
+            logger.warn("SAM server {} is unavailable: {}", endpoint.url, reason);
+            return;
+        }
+        if (endpoint.healthy)
+            logger.warn("SAM server {} is unavailable: {}", endpoint.url, reason);
+        endpoint.healthy = false;
+        // Let stateful requests choose another replica
+        stickyEndpoints.values().removeIf(sticky -> sticky == endpoint);
+        notifyAll();
+    }
+
+    private void probeAll() {
+        for (Endpoint endpoint : endpoints)
+            SAM.getContext().getExecutor().execute(() -> probe(endpoint));
+    }
+
+    private void probe(Endpoint endpoint) {
+        final long start = System.nanoTime();
+        try {
+            int statusCode = HttpUtils.getStatus(endpoint.url, verifySSL, PROBE_TIMEOUT_MILLIS);
+            // Any answer shows that the server is running, even if the base URL only accepts POST requests
+            if (statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                markDown(endpoint, String.format("HTTP response: %d", statusCode));
+                return;
+            }
+            boolean restarted;
+            synchronized (this) {
+                restarted = !endpoint.healthy;
+                if (restarted) {
+                    logger.info("SAM server {} is available again", endpoint.url);
+                    notifyAll();
+                }
+                endpoint.healthy = true;
+                endpoint.recordProbe((System.nanoTime() - start) / 1e6);
+            }
+            // The server may have been upgraded while it was down
+            if (restarted)
+                SAMServerCapabilities.refresh(endpoint.url, verifySSL);
+        } catch (IOException e) {
+            markDown(endpoint, e.getMessage());
+        }
+    }
+
+    /**
+     * Stop probing the replicas.
+     */
+    public void close() {
+        if (probes != null)
+            probes.cancel(false);
+    }
+
+    /**
+     * Get a summary of the state of each replica, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String getStatistics() {
+        return endpoints.stream()
+                .map(endpoint -> String.format("%s: %s, %d outstanding, %.0f ms, %d requests, %d failures, limits %s",
+                        endpoint.url, endpoint.healthy ? "up" : "down", endpoint.outstanding,
+                        endpoint.getLatencyMillis(), endpoint.requestCount, endpoint.failureCount,
+                        endpoint.limiters.values()))
+                .collect(Collectors.joining("\n"))
+                + String.format("\n%d of %d hedgeable requests hedged", hedgeCount, hedgeableCount);
+    }
+
+    /**
+     * One copy of a hedged request, sent on the SAM executor.
+     */
+    private class Attempt {
+
+        private final Lease lease;
+
+        private final HttpPost request;
+
+        private volatile boolean cancelled;
+
+        private volatile HttpResponse<String> response;
+
+        private volatile IOException failure;
+
+        private volatile long endTime;
+
+        private Attempt(Lease lease, String endpoint, String body, BlockingQueue<Attempt> completed) {
+            this.lease = lease;
+            this.request = HttpUtils.createPostRequest(lease.getServerURL() + endpoint, body);
+            SAM.getContext().getExecutor().execute(() -> {
+                try {
+                    response = HttpUtils.execute(request, verifySSL);
+                    if (isUnavailable(response.statusCode()))
+                        lease.fail(String.format("HTTP response: %d", response.statusCode()));
+                } catch (IOException e) {
+                    failure = e;
+                    if (!cancelled)
+                        lease.fail(e.getMessage());
+                } finally {
+                    endTime = System.nanoTime();
+                    lease.close();
+                    completed.offer(this);
+                }
+            });
+        }
+
+        private boolean isSuccessful() {
+            return response != null && !isUnavailable(response.statusCode());
+        }
+
+        private double getLatencyMillis() {
+            return (endTime - lease.start) / 1e6;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            lease.discard();
+            request.cancel();
+        }
+
+    }
+
+    /**
+     * A replica chosen for one or more requests.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Endpoint endpoint;
+
+        private final String stickyKey;
+
+        private final SAMConcurrencyLimiter limiter;
+
+        private final long start = System.nanoTime();
+
+        private boolean failed;
+
+        private volatile boolean discarded;
+
+        private boolean closed;
+
+        private volatile boolean overloaded;
+
+        private Lease(Endpoint endpoint, String stickyKey, SAMConcurrencyLimiter limiter) {
+            this.endpoint = endpoint;
+            this.stickyKey = stickyKey;
+            this.limiter = limiter;
+            endpoint.outstanding++;
+        }
+
+        /**
+         * Get the base URL of the chosen replica.
+         *
+         * @return the URL, with a trailing slash
+         */
+        public String getServerURL() {
+            return endpoint.url;
+        }
+
+        /**
+         * Report that the replica could not be reached, so that it is skipped until it answers a probe again.
+         * The only server of a pool is never skipped.
+         *
+         * @param reason
+         *            the reason, for logging
+         */
+        public void fail(String reason) {
+            failed = true;
+            markDown(endpoint, reason);
+        }
+
+        /**
+         * Report that the replica answered, but is overloaded (e.g. out of GPU memory), so that fewer requests are
+         * sent to it at the same time.
+         */
+        public void overloaded() {
+            overloaded = true;
+        }
+
+        /**
+         * The request was cancelled, so its latency says nothing about the replica.
+         */
+        private void discard() {
+            discarded = true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (SAMServerPool.this) {
+                if (closed)
+                    return;
+                closed = true;
+                endpoint.outstanding--;
+                endpoint.requestCount++;
+                final double millis = (System.nanoTime() - start) / 1e6;
+                if (!failed && !discarded)
+                    endpoint.recordRequest(millis);
+                if (limiter != null) {
+                    if (discarded)
+                        limiter.releaseIgnored();
+                    else if (failed || overloaded)
+                        limiter.releaseDropped();
+                    else
+                        limiter.release(millis);
+                }
+                SAMServerPool.this.notifyAll();
+            }
+            logger.trace("Request to {} (sticky key {}) complete", endpoint.url, stickyKey);
+        }
+
+    }
+
+    private static class Endpoint {
+
+        private final String url;
+
+        private volatile boolean healthy = true;
+
+        private int outstanding;
+
+        private long requestCount;
+
+        private long failureCount;
+
+        private long lastFailure = Long.MIN_VALUE;
+
+        private double probeLatencyMillis = Double.NaN;
+
+        private double requestLatencyMillis = Double.NaN;
+
+        private final double[] hedgeableLatencies = new double[HEDGE_LATENCY_SAMPLES];
+
+        private final Map<String, SAMConcurrencyLimiter> limiters = new LinkedHashMap<>();
+
+        private int hedgeableSampleCount;
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        private SAMConcurrencyLimiter getLimiter(String limitKey) {
+            return limiters.computeIfAbsent(limitKey, key -> new SAMConcurrencyLimiter(url + key,
+                    INITIAL_CONCURRENCY_LIMIT, 1, MAX_CONCURRENCY_LIMIT, LATENCY_TOLERANCE));
+        }
+
+        private void recordHedgeable(double millis) {
+            hedgeableLatencies[hedgeableSampleCount++ % HEDGE_LATENCY_SAMPLES] = millis;
+        }
+
+        /**
+         * The 95th percentile of recent hedgeable requests, or -1 if there are too few to tell.
+         */
+        private long getHedgeDelayMillis() {
+            final int n = Math.min(hedgeableSampleCount, HEDGE_LATENCY_SAMPLES);
+            if (n < MIN_HEDGE_LATENCY_SAMPLES)
+                return -1;
+            double[] sorted = Arrays.copyOf(hedgeableLatencies, n);
+            Arrays.sort(sorted);
+            return Math.round(sorted[(int) Math.ceil(HEDGE_PERCENTILE * n) - 1]);
+        }
+
+        private void recordProbe(double millis) {
+            probeLatencyMillis = Double.isNaN(probeLatencyMillis) ? millis
+                    : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * probeLatencyMillis;
+        }
+
+        private void recordRequest(double millis) {
+            requestLatencyMillis = Double.isNaN(requestLatencyMillis) ? millis
+                    : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * requestLatencyMillis;
+        }
+
+        /**
+         * Request latency reflects the speed of the replica; the probe latency is only used until the first request.
+         */
+        private double getLatencyMillis() {
+            if (!Double.isNaN(requestLatencyMillis))
+                return requestLatencyMillis;
+            return Double.isNaN(probeLatencyMillis) ? 1.0 : Math.max(1.0, probeLatencyMillis);
+        }
+
+    }
+
+}
@@ -0,0 +1,363 @@
+package org.elephant.sam.http;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elephant.sam.parameters.SAMSharedImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands images to a SAM server on the same machine through memory-mapped files, instead of encoding them and sending
+ * them with the request.
+ * <p>
+ * The pixels are written as raw RGB into a file in {@code /dev/shm} (or the temporary directory if there is none),
+ * and the request only describes where to find them with a {@link SAMSharedImage}. Files are reused across requests:
+ * idle files are kept for the next images up to a total size, and the others are deleted as soon as they are
+ * released. All files are deleted when QuPath exits ({@link #close()}), and files left behind by QuPath instances
+ * that are no longer running are deleted the first time shared memory is used.
+ * <p>
+ * Where the file system supports POSIX permissions, the files can only be read and written by the current user, so
+ * the server must run as the same user.
+ */
+public class SAMSharedMemory {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMSharedMemory.class);
+
+    private static final String PREFIX = "qupath-sam-";
+
+    private static final String SUFFIX = ".rgb";
+
+    // Idle files are kept up to this size in total, e.g. for the frames of a video that are in flight
+    private static final long MAX_IDLE_BYTES = 256L * 1024 * 1024;
+
+    // Buffers are grown in steps, so that images of slightly different sizes reuse the same file
+    private static final long CAPACITY_STEP = 1024 * 1024;
+
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY = PosixFilePermissions
+            .asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    private static final Set<OpenOption> CREATE_OPTIONS = Set.of(StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    private final Path directory;
+
+    private final List<Buffer> idle = new ArrayList<>();
+
+    private final Set<Buffer> all = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> unsupportedServers = ConcurrentHashMap.newKeySet();
+
+    private int nextID;
+
+    private boolean initialized;
+
+    /**
+     * Create shared memory buffers in a directory.
+     *
+     * @param directory
+     *            the directory for the files, ideally backed by memory
+     */
+    public SAMSharedMemory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the directory for shared memory files on this machine.
+     *
+     * @return {@code /dev/shm} if it exists, otherwise the temporary directory
+     */
+    public static Path getDefaultDirectory() {
+        Path shm = Path.of("/dev/shm");
+        if (Files.isDirectory(shm) && Files.isWritable(shm))
+            return shm;
+        return Path.of(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Check whether images can be handed to a server through shared memory, i.e. whether the server runs on this
+     * machine, is not known to lack support and has not rejected a shared memory image before.
+     *
+     * @param serverURL
+     * @return true if shared memory should be tried
+     */
+    public boolean canUse(String serverURL) {
+        return isLocal(serverURL) && !unsupportedServers.contains(serverURL)
+                && SAMServerCapabilities.getCached(serverURL).mayUse(SAMServerCapabilities.SHARED_MEMORY);
+    }
+
+    /**
+     * Remember that a server does not accept shared memory images, so that it is sent encoded images from now on.
+     *
+     * @param serverURL
+     */
+    public void markUnsupported(String serverURL) {
+        if (unsupportedServers.add(serverURL))
+            logger.info("{} does not accept shared memory images, sending encoded images instead", serverURL);
+    }
+
+    /**
+     * Check whether a server runs on this machine.
+     *
+     * @param serverURL
+     * @return true for Unix domain socket URLs and URLs of loopback addresses
+     */
+    public static boolean isLocal(String serverURL) {
+        if (UnixSocketTransport.isUnixURL(serverURL))
+            return true;
+        try {
+            String host = URI.create(serverURL).getHost();
+            return host != null && InetAddress.getByName(host).isLoopbackAddress();
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write an image into a shared memory file.
+     *
+     * @param img
+     *            the image
+     * @return a lease on the file, which must be closed once the server has read the image
+     * @throws IOException
+     *             if the image is too large or the file cannot be written
+     */
+    public Lease write(BufferedImage img) throws IOException {
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final long size = 3L * width * height;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException(String.format("Image of %d x %d is too large for shared memory", width, height));
+        Buffer buffer = acquire(size);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            MappedByteBuffer map = buffer.map;
+            map.clear();
+            int[] rgb = new int[width];
+            byte[] row = new byte[3 * width];
+            for (int y = 0; y < height; y++) {
+                img.getRGB(0, y, width, 1, rgb, 0, width);
+                for (int x = 0; x < width; x++) {
+                    row[3 * x] = (byte) (rgb[x] >> 16);
+                    row[3 * x + 1] = (byte) (rgb[x] >> 8);
+                    row[3 * x + 2] = (byte) rgb[x];
+                }
+                map.put(row);
+                digest.update(row);
+            }
+            return new Lease(buffer, width, height, HexFormat.of().formatHex(digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            release(buffer);
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Get a summary of the files in use, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d files (%d idle), %.1f MB in %s", all.size(), idle.size(),
+                all.stream().mapToLong(buffer -> buffer.capacity).sum() / 1e6, directory);
+    }
+
+    private synchronized Buffer acquire(long size) throws IOException {
+        if (!initialized) {
+            initialized = true;
+            deleteStaleFiles();
+        }
+        // Prefer the smallest idle buffer that is large enough, otherwise grow the largest one
+        Buffer buffer = idle.stream()
+                .filter(b -> b.capacity >= size)
+                .min(Comparator.comparingLong(b -> b.capacity))
+                .or(() -> idle.stream().max(Comparator.comparingLong(b -> b.capacity)))
+                .orElse(null);
+        if (buffer == null) {
+            Path path = directory.resolve(PREFIX + ProcessHandle.current().pid() + "-" + nextID++ + SUFFIX);
+            buffer = new Buffer(path);
+            all.add(buffer);
+        } else {
+            idle.remove(buffer);
+        }
+        try {
+            buffer.ensureCapacity(size);
+        } catch (IOException e) {
+            buffer.delete();
+            all.remove(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    private synchronized void release(Buffer buffer) {
+        if (idle.stream().mapToLong(b -> b.capacity).sum() + buffer.capacity <= MAX_IDLE_BYTES) {
+            idle.add(buffer);
+        } else {
+            buffer.delete();
+            all.remove(buffer);
+        }
+    }
+
+    /**
+     * Delete all files, e.g. when QuPath exits. Leases that are still open must not be used afterwards.
+     */
+    public synchronized void close() {
+        for (Buffer buffer : all)
+            buffer.delete();
+        all.clear();
+        idle.clear();
+    }
+
+    /**
+     * Delete the files of QuPath instances that are no longer running, e.g. after a crash.
+     */
+    private void deleteStaleFiles() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long pid = Long.parseLong(name.substring(PREFIX.length(), name.indexOf('-', PREFIX.length())));
+                    if (ProcessHandle.of(pid).isEmpty()) {
+                        Files.deleteIfExists(path);
+                        logger.debug("Deleted stale shared memory file {}", path);
+                    }
+                } catch (RuntimeException | IOException e) {
+                    logger.debug("Cannot check shared memory file {}: {}", path, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot list shared memory files in {}", directory, e);
+        }
+    }
+
+    /**
+     * An image written into a shared memory file, which stays valid until the lease is closed.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Buffer buffer;
+
+        private final int width;
+
+        private final int height;
+
+        private final String sha256;
+
+        private boolean closed;
+
+        private Lease(Buffer buffer, int width, int height, String sha256) {
+            this.buffer = buffer;
+            this.width = width;
+            this.height = height;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * Describe the whole image.
+         *
+         * @return the description to send to the server
+         */
+        public SAMSharedImage getImage() {
+            return getImage(0, 0, width, height);
+        }
+
+        /**
+         * Describe a rectangle of the image, without copying it.
+         *
+         * @param x
+         * @param y
+         * @param width
+         * @param height
+         * @return the description to send to the server
+         */
+        public SAMSharedImage getImage(int x, int y, int width, int height) {
+            return new SAMSharedImage(buffer.path.toString(), 3L * ((long) y * this.width + x), width, height,
+                    3 * this.width, sha256);
+        }
+
+        /**
+         * Return the file, so that it can be reused for another image.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            release(buffer);
+        }
+
+    }
+
+    private static class Buffer {
+
+        private final Path path;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer map;
+
+        private long capacity;
+
+        private Buffer(Path path) {
+            this.path = path;
+        }
+
+        private void ensureCapacity(long size) throws IOException {
+            if (map != null && capacity >= size)
+                return;
+            if (channel == null) {
+                // Left behind by an earlier process with the same ID; a file owned by another user cannot be deleted
+                // from /dev/shm, so the image is then sent encoded
+                Files.deleteIfExists(path);
+                if (path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+                    channel = FileChannel.open(path, CREATE_OPTIONS, OWNER_ONLY);
+                else
+                    channel = FileChannel.open(path, CREATE_OPTIONS);
+            }
+            long newCapacity = Math.min(Integer.MAX_VALUE,
+                    (Math.max(size, 1) + CAPACITY_STEP - 1) / CAPACITY_STEP * CAPACITY_STEP);
+            // Mapping beyond the end of the file extends it
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            capacity = newCapacity;
+        }
+
+        private void delete() {
+            // The mapping itself is released once the buffer is garbage collected
+            map = null;
+            try {
+                if (channel != null)
+                    channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warn("Cannot delete shared memory file {}", path, e);
+            }
+        }
+
+    }
+
+}
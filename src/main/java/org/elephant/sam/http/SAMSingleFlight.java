@@ -0,0 +1,127 @@
+package org.elephant.sam.http;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges identical requests that are in flight at the same time, so that they cost one server computation.
+ * <p>
+ * Identical requests are often sent together, e.g. by live mode and "Run for selected" on the same prompt, by
+ * overlapping batch jobs asking for the same tile, or by fetching the weights once for a model change and again after
+ * a registration. The first caller for a key sends the request; callers with the same key that arrive before it
+ * completes wait for its response instead of sending their own. Once the request completes, the key is free again,
+ * so later requests are answered by the {@link SAMResultCache} or sent anew.
+ * <p>
+ * If the caller that sent the request is interrupted, e.g. because its task was cancelled, the waiting callers do
+ * not fail with it: the next one sends the request itself.
+ */
+public class SAMSingleFlight {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMSingleFlight.class);
+
+    private final Map<String, CompletableFuture<HttpResponse<String>>> inFlight = new ConcurrentHashMap<>();
+
+    private long sentCount;
+
+    private long sharedCount;
+
+    /**
+     * A request that may be shared.
+     */
+    public interface Call {
+
+        /**
+         * Send the request.
+         *
+         * @return the response
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        HttpResponse<String> send() throws IOException, InterruptedException;
+
+    }
+
+    /**
+     * Send a request, or wait for an identical request that is already in flight.
+     *
+     * @param key
+     *            the fingerprint of the request, e.g. created with {@link SAMResultCache#createKey(String, String)};
+     *            null to always send the request, e.g. if its result depends on state kept by the server
+     * @param call
+     *            sends the request
+     * @return the response, which is the same instance for all callers that shared the request
+     * @throws IOException
+     *             if the request failed
+     * @throws InterruptedException
+     *             if interrupted while sending or waiting
+     */
+    public HttpResponse<String> execute(String key, Call call) throws IOException, InterruptedException {
+        if (key == null)
+            return call.send();
+        while (true) {
+            final CompletableFuture<HttpResponse<String>> future = new CompletableFuture<>();
+            final CompletableFuture<HttpResponse<String>> existing = inFlight.putIfAbsent(key, future);
+            if (existing == null) {
+                synchronized (this) {
+                    sentCount++;
+                }
+                try {
+                    HttpResponse<String> response = call.send();
+                    future.complete(response);
+                    return response;
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                    throw t;
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            }
+            try {
+                HttpResponse<String> response = existing.get();
+                synchronized (this) {
+                    sharedCount++;
+                }
+                logger.debug("Shared an identical request in flight ({})", getStatistics());
+                return response;
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                // The caller that sent the request was cancelled, so send it again
+                if (cause instanceof InterruptedException)
+                    continue;
+                if (cause instanceof IOException)
+                    throw new IOException(cause.getMessage(), cause);
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests that were answered by an identical request in flight, instead of being sent.
+     *
+     * @return the shared count
+     */
+    public synchronized long getSharedCount() {
+        return sharedCount;
+    }
+
+    /**
+     * Get a summary of the shared requests, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d sent, %d shared, %d in flight", sentCount, sharedCount, inFlight.size());
+    }
+
+}
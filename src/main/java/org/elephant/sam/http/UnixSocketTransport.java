@@ -0,0 +1,380 @@
+package org.elephant.sam.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.concurrent.CancellableDependency;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Sends HTTP requests to a server on the same machine over a Unix domain socket, rather than over the loopback TCP
+ * stack.
+ * <p>
+ * The server is given by a URL of the form {@code unix:<socket path>:<HTTP path>}, e.g.
+ * {@code unix:/tmp/samapi.sock:/sam/}. Endpoints are appended to the HTTP path as for any other server URL.
+ * <p>
+ * Each request opens its own connection, which is cheap for a local socket, and the response is passed to the same
+ * response handlers as responses received by the HTTP client, so that callers see no difference.
+ */
+class UnixSocketTransport {
+
+    /**
+     * The scheme of server URLs that refer to a Unix domain socket.
+     */
+    static final String SCHEME = "unix";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Headers that describe the connection or the framing, which are written by the transport itself
+    private static final Set<String> CONNECTION_HEADERS = Set.of("host", "content-length", "transfer-encoding",
+            "connection");
+
+    // Closes the connections of requests that time out
+    private static final ScheduledExecutorService timeouts = Executors
+            .newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("SAM-unix-timeout", true));
+
+    private UnixSocketTransport() {
+    }
+
+    /**
+     * Check whether a URL refers to a Unix domain socket.
+     *
+     * @param url
+     * @return true if the URL starts with {@code unix:}
+     */
+    static boolean isUnixURL(String url) {
+        return url != null && url.regionMatches(true, 0, SCHEME + ":", 0, SCHEME.length() + 1);
+    }
+
+    /**
+     * Add the root HTTP path to a URL that only names the socket, e.g. {@code unix:/tmp/samapi.sock}, so that
+     * endpoints can be appended to it.
+     *
+     * @param url
+     *            a Unix domain socket URL
+     * @return the URL with an HTTP path
+     */
+    static String normalizeURL(String url) {
+        return url.lastIndexOf(":/") > SCHEME.length() ? url : url + ":/";
+    }
+
+    /**
+     * Send a request and pass the response to a handler.
+     * <p>
+     * The request can be cancelled from another thread with {@code cancel()}, which closes the connection.
+     *
+     * @param <T>
+     * @param request
+     *            a request whose URL has the {@code unix} scheme
+     * @param handler
+     *            the handler for the response, which may read the body as a stream
+     * @param timeoutMillis
+     *            the time after which the connection is closed, or 0 for no timeout
+     * @return the result of the handler
+     * @throws IOException
+     *             if the request fails, times out or is cancelled
+     */
+    static <T> T execute(ClassicHttpRequest request, HttpClientResponseHandler<? extends T> handler,
+            int timeoutMillis) throws IOException {
+        String target = request.getPath();
+        int split = target.lastIndexOf(":/");
+        Path socketPath = Path.of(split < 0 ? target : target.substring(0, split));
+        String path = split < 0 ? "/" : target.substring(split + 1);
+
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        ScheduledFuture<?> timeout = null;
+        try {
+            if (request instanceof CancellableDependency) {
+                CancellableDependency cancellable = (CancellableDependency) request;
+                if (cancellable.isCancelled())
+                    throw new InterruptedIOException("Request cancelled");
+                cancellable.setDependency(() -> {
+                    closeQuietly(channel);
+                    return true;
+                });
+            }
+            if (timeoutMillis > 0)
+                timeout = timeouts.schedule(() -> closeQuietly(channel), timeoutMillis, TimeUnit.MILLISECONDS);
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+            writeRequest(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), request, path);
+            return handler.handleResponse(
+                    readResponse(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE),
+                            request.getMethod()));
+        } catch (ClosedChannelException e) {
+            // Closed by cancel() or by the timeout
+            InterruptedIOException exception = new InterruptedIOException("Request to " + socketPath + " aborted");
+            exception.initCause(e);
+            throw exception;
+        } catch (HttpException e) {
+            throw new IOException(e);
+        } finally {
+            if (timeout != null)
+                timeout.cancel(false);
+            closeQuietly(channel);
+        }
+    }
+
+    private static void writeRequest(OutputStream out, ClassicHttpRequest request, String path) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: localhost\r\n");
+        for (Header header : request.getHeaders()) {
+            if (!CONNECTION_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT)))
+                head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        HttpEntity entity = request.getEntity();
+        byte[] buffered = null;
+        if (entity != null) {
+            long length = entity.getContentLength();
+            if (length < 0) {
+                // The server needs the length up front
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                entity.writeTo(bytes);
+                buffered = bytes.toByteArray();
+                length = buffered.length;
+            }
+            if (!request.containsHeader("Content-Type") && entity.getContentType() != null)
+                head.append("Content-Type: ").append(entity.getContentType()).append("\r\n");
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (buffered != null)
+            out.write(buffered);
+        else if (entity != null)
+            entity.writeTo(out);
+        out.flush();
+    }
+
+    private static ClassicHttpResponse readResponse(InputStream in, String method) throws IOException {
+        BasicClassicHttpResponse response;
+        do {
+            String statusLine = readLine(in);
+            if (statusLine == null)
+                throw new EOFException("Connection closed before the response was received");
+            String[] parts = statusLine.split(" ", 3);
+            int code;
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            response = new BasicClassicHttpResponse(code, parts.length > 2 ? parts[2] : null);
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    response.addHeader(line.substring(0, colon).strip(), line.substring(colon + 1).strip());
+            }
+            // Skip interim responses, e.g. 100 Continue
+        } while (response.getCode() < 200);
+
+        final int code = response.getCode();
+        if ("HEAD".equals(method) || code == 204 || code == 304)
+            return response;
+        Header transferEncoding = response.getFirstHeader("Transfer-Encoding");
+        Header contentLength = response.getFirstHeader("Content-Length");
+        InputStream body;
+        long length = -1;
+        if (transferEncoding != null && transferEncoding.getValue().toLowerCase(Locale.ROOT).contains("chunked")) {
+            body = new ChunkedInputStream(in);
+        } else if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.getValue().strip());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength.getValue());
+            }
+            body = new BoundedInputStream(in, length);
+        } else {
+            // The server closes the connection after the body
+            body = in;
+        }
+        Header contentType = response.getFirstHeader("Content-Type");
+        response.setEntity(new InputStreamEntity(body, length, parseContentType(contentType)));
+        return response;
+    }
+
+    private static ContentType parseContentType(Header header) {
+        if (header == null)
+            return null;
+        try {
+            return ContentType.parse(header.getValue());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a line terminated by CRLF or LF.
+     *
+     * @return the line without its terminator, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n')
+            line.write(b);
+        if (b < 0 && line.size() == 0)
+            return null;
+        String s = line.toString(StandardCharsets.ISO_8859_1);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * A body with a known length.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Connection closed before the end of the response");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("Connection closed before the end of the response");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+    }
+
+    /**
+     * A body sent with chunked transfer encoding, e.g. a streamed response.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private boolean done;
+
+        private ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Connection closed before the end of the response");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("Connection closed before the end of the response");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return done ? 0 : (int) Math.min(in.available(), remaining);
+        }
+
+        /**
+         * Move to the next chunk if the current one has been read.
+         *
+         * @return false at the end of the body
+         */
+        private boolean nextChunk() throws IOException {
+            if (done)
+                return false;
+            if (remaining > 0)
+                return true;
+            String line = readLine(in);
+            // The CRLF after the previous chunk
+            if (line != null && line.isEmpty())
+                line = readLine(in);
+            if (line == null)
+                throw new EOFException("Connection closed before the end of the response");
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).strip(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (remaining == 0) {
+                // Skip trailers
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                }
+                done = true;
+                return false;
+            }
+            return true;
+        }
+
+    }
+
+}
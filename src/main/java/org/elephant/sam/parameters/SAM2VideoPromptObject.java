@@ -12,7 +12,6 @@ import org.locationtech.jts.geom.Coordinate;
  */
 public class SAM2VideoPromptObject implements SAMVideoPromptObject {
 
-	@SuppressWarnings("unused")
 	private int obj_id;
 	private int[][] point_coords;
 	private int[] point_labels;
@@ -50,6 +49,11 @@ public class SAM2VideoPromptObject implements SAMVideoPromptObject {
 		return builderAsGroovyScript;
 	}
 
+	@Override
+	public int getObjID() {
+		return obj_id;
+	}
+
 	/**
 	 * Create a builder for a new prompt .
 	 * 
@@ -10,7 +10,6 @@ import java.util.Objects;
  */
 public class SAM3VideoPromptObject implements SAMVideoPromptObject {
 
-	@SuppressWarnings("unused")
 	private int obj_id;
 	@SuppressWarnings("unused")
 	private String text;
@@ -53,6 +52,11 @@ public class SAM3VideoPromptObject implements SAMVideoPromptObject {
 		return builderAsGroovyScript;
 	}
 
+	@Override
+	public int getObjID() {
+		return obj_id;
+	}
+
 	/**
 	 * Create a builder for a new prompt .
 	 * 
@@ -14,7 +14,11 @@ public class SAMAutoMaskParameters {
 	@SuppressWarnings("unused")
 	private String b64img;
 	@SuppressWarnings("unused")
-	private int points_per_side;
+	private SAMSharedImage shm_img;
+	@SuppressWarnings("unused")
+	private Integer points_per_side;
+	@SuppressWarnings("unused")
+	private double[][][] point_grids;
 	@SuppressWarnings("unused")
 	private int points_per_batch;
 	@SuppressWarnings("unused")
@@ -44,10 +48,14 @@ public class SAMAutoMaskParameters {
 
 	private SAMAutoMaskParameters(final Builder builder) {
 		Objects.requireNonNull(builder.type, "Model type must be specified");
-		Objects.requireNonNull(builder.b64img, "Input image must be specified");
+		if (builder.b64img == null)
+			Objects.requireNonNull(builder.sharedImage, "Input image must be specified");
 		this.type = builder.type;
 		this.b64img = builder.b64img;
-		this.points_per_side = builder.pointsPerSide;
+		this.shm_img = builder.sharedImage;
+		// The server expects either the number of points per side or explicit point grids
+		this.points_per_side = builder.pointGrids == null ? builder.pointsPerSide : null;
+		this.point_grids = builder.pointGrids;
 		this.points_per_batch = builder.pointsPerBatch;
 		this.pred_iou_thresh = builder.predIoUThresh;
 		this.stability_score_thresh = builder.stabilityScoreThresh;
@@ -77,7 +85,9 @@ public class SAMAutoMaskParameters {
 	public static class Builder {
 		private String type;
 		private String b64img;
+		private SAMSharedImage sharedImage;
 		private int pointsPerSide;
+		private double[][][] pointGrids;
 		private int pointsPerBatch;
 		private double predIoUThresh;
 		private double stabilityScoreThresh;
@@ -97,7 +107,7 @@ public class SAMAutoMaskParameters {
 		};
 
 		/**
-		 * Base64-encoded image (required).
+		 * Base64-encoded image (required, unless a shared image is given).
 		 * 
 		 * @param b64img
 		 * @return this builder
@@ -107,6 +117,17 @@ public class SAMAutoMaskParameters {
 			return this;
 		}
 
+		/**
+		 * Image in shared memory, for a server on the same machine, instead of a base64-encoded image.
+		 * 
+		 * @param sharedImage
+		 * @return this builder
+		 */
+		public Builder sharedImage(final SAMSharedImage sharedImage) {
+			this.sharedImage = sharedImage;
+			return this;
+		}
+
 		/**
 		 * The number of points to be sampled along one side of the image.
 		 * The total number of points is points_per_side**2.
@@ -119,6 +140,19 @@ public class SAMAutoMaskParameters {
 			return this;
 		}
 
+		/**
+		 * Explicit points to be sampled instead of a regular grid, one grid per crop layer.
+		 * Each point is given as {@code [x, y]} in [0, 1], relative to the image or crop.
+		 * If specified, the number of points per side is not sent.
+		 * 
+		 * @param pointGrids
+		 * @return this builder
+		 */
+		public Builder pointGrids(final double[][][] pointGrids) {
+			this.pointGrids = pointGrids;
+			return this;
+		}
+
 		/**
 		 * Sets the number of points run simultaneously by the model.
 		 * Higher numbers may be faster but use more GPU memory.
@@ -0,0 +1,79 @@
+package org.elephant.sam.parameters;
+
+import org.elephant.sam.entities.SAMType;
+
+import java.util.Objects;
+
+/**
+ * Request for the image embedding of a region, or for the exported mask decoder if no image is given, sent to the
+ * server as JSON.
+ */
+public class SAMEmbeddingParameters {
+
+	@SuppressWarnings("unused")
+	private String type;
+	@SuppressWarnings("unused")
+	private String b64img;
+	@SuppressWarnings("unused")
+	private String checkpoint_url;
+
+	private SAMEmbeddingParameters(final Builder builder) {
+		Objects.requireNonNull(builder.type, "Model type must be specified");
+		this.type = builder.type;
+		this.b64img = builder.b64img;
+		this.checkpoint_url = builder.checkpointUrl;
+	}
+
+	/**
+	 * Create a builder for a new request.
+	 *
+	 * @param model
+	 *            the SAM model
+	 * @return a new builder for further customization
+	 */
+	public static SAMEmbeddingParameters.Builder builder(final SAMType model) {
+		return new Builder(model);
+	}
+
+	public static class Builder {
+		private String type;
+		private String b64img;
+		private String checkpointUrl;
+
+		private Builder(final SAMType model) {
+			this.type = model.modelName();
+		};
+
+		/**
+		 * Base64-encoded image (required for embeddings).
+		 *
+		 * @param b64img
+		 * @return this builder
+		 */
+		public Builder b64img(final String b64img) {
+			this.b64img = b64img;
+			return this;
+		}
+
+		/**
+		 * URL to a checkpoint file (optional).
+		 *
+		 * @param checkpointUrl
+		 * @return this builder
+		 */
+		public Builder checkpointUrl(String checkpointUrl) {
+			this.checkpointUrl = checkpointUrl;
+			return this;
+		}
+
+		/**
+		 * Build the request.
+		 *
+		 * @return a request that should be ready to use
+		 */
+		public SAMEmbeddingParameters build() {
+			return new SAMEmbeddingParameters(this);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.elephant.sam.parameters;
+
+/**
+ * An image that is handed to a server on the same machine through shared memory, sent as JSON instead of an encoded
+ * image.
+ * <p>
+ * The pixels are stored as interleaved 8-bit RGB in the file at {@code path}, starting at {@code offset}, with
+ * {@code stride} bytes from the start of one row to the next. The {@code sha256} digest of the whole image identifies
+ * its content, e.g. for caching, independently of the file it is stored in.
+ */
+public class SAMSharedImage {
+
+	private final String path;
+	private final long offset;
+	private final int width;
+	private final int height;
+	private final int stride;
+	@SuppressWarnings("unused")
+	private final int channels = 3;
+	@SuppressWarnings("unused")
+	private final String dtype = "uint8";
+	private final String sha256;
+
+	/**
+	 * Describe an image in shared memory.
+	 *
+	 * @param path
+	 *            the path of the file holding the pixels, or null to describe only the content
+	 * @param offset
+	 *            the position of the first pixel in the file, in bytes
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 * @param stride
+	 *            the number of bytes from the start of one row to the next
+	 * @param sha256
+	 *            the hex-encoded SHA-256 digest of the whole image in the file
+	 */
+	public SAMSharedImage(final String path, final long offset, final int width, final int height, final int stride,
+			final String sha256) {
+		this.path = path;
+		this.offset = offset;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * Get a description of the same content without the path of the file, so that requests for the same pixels
+	 * can be recognized whichever file they are stored in.
+	 *
+	 * @return a copy without the path
+	 */
+	public SAMSharedImage withoutPath() {
+		return new SAMSharedImage(null, offset, width, height, stride, sha256);
+	}
+
+	/**
+	 * Get the path of the file holding the pixels.
+	 *
+	 * @return the path, or null if this only describes the content
+	 */
+	public String getPath() {
+		return path;
+	}
+
+}
@@ -4,4 +4,11 @@ public interface SAMVideoPromptObject {
 
     String getBuilderAsGroovyScript();
 
+    /**
+     * Get the ID of the object that this prompt belongs to.
+     * 
+     * @return the object ID
+     */
+    int getObjID();
+
 }
@@ -1,5 +1,6 @@
 package org.elephant.sam.tasks;
 
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.http.HttpUtils;
@@ -73,6 +74,8 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
 
     private final double confidenceThresh;
 
+    private final boolean failOnError;
+
     private SAM3DetectionTask(Builder builder) {
         this.serverURL = builder.serverURL;
         Objects.requireNonNull(serverURL, "Server must not be null!");
@@ -83,10 +86,9 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         this.model = builder.model;
         Objects.requireNonNull(model, "Model must not be null!");
 
+        // The viewer is optional; without one, the image data, server and region(s) must be given explicitly
         QuPathViewer viewer = builder.viewer;
-        Objects.requireNonNull(builder, "Viewer must not be null!");
-
-        this.imageData = viewer.getImageData();
+        this.imageData = viewer == null ? builder.imageData : viewer.getImageData();
         Objects.requireNonNull(imageData, "ImageData must not be null!");
         if (builder.server != null) {
             if (builder.server.isRGB())
@@ -94,18 +96,23 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
             else
                 logger.warn("Cannot use non-RGB image server for detection!");
         }
-        if (this.renderedServer == null) {
+        if (this.renderedServer == null && viewer != null) {
             try {
                 this.renderedServer = Utils.createRenderedServer(viewer);
             } catch (IOException e) {
                 logger.error("Failed to create rendered server", e);
             }
         }
+        if (this.renderedServer == null && imageData.getServer().isRGB()) {
+            this.renderedServer = imageData.getServer();
+        }
+        Objects.requireNonNull(renderedServer, "RGB image server must not be null!");
 
         this.regionRequest = builder.regionRequest;
-        if (this.regionRequest == null) {
+        if (this.regionRequest == null && viewer != null) {
             this.regionRequest = Utils.getViewerRegion(viewer, renderedServer);
         }
+        Objects.requireNonNull(regionRequest, "Region request must not be null!");
 
         this.textPrompt = builder.textPrompt;
         this.positiveBboxes = new ArrayList<>(builder.positiveBboxes);
@@ -116,6 +123,7 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         this.setRandomColor = builder.setRandomColor;
         this.checkpointUrl = builder.checkpointUrl;
         this.resetPrompts = builder.resetPrompts;
+        this.failOnError = builder.failOnError;
         this.confidenceThresh = builder.confidenceThresh;
     }
 
@@ -124,6 +132,8 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         try {
             return detectObjects();
         } catch (InterruptedException e) {
+            if (failOnError)
+                throw e;
             logger.warn("Interrupted while detecting objects", e);
             return Collections.emptyList();
         }
@@ -181,24 +191,29 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         if (isCancelled())
             return Collections.emptyList();
 
-        final String endpointURL = String.format("%ssam3/", Utils.ensureTrailingSlash(serverURL));
-        HttpResponse<String> response = HttpUtils.postRequest(endpointURL, verifySSL,
-                GsonTools.getInstance().toJson(prompt));
+        final String body = GsonTools.getInstance().toJson(prompt);
+        // Prompts are kept by the server for each image until they are reset, so every request has to reach the
+        // server: its result depends on earlier requests, and later requests depend on it
+        final String stickyKey = "sam3:" + renderedServer.getPath();
+        HttpResponse<String> response = SAM.getContext().getServerPool(serverURL, verifySSL)
+                .execute(stickyKey, "sam3/" + model.modelName(),
+                        url -> HttpUtils.postRequest(url + "sam3/", verifySSL, body));
 
         if (isCancelled())
             return Collections.emptyList();
 
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-            return parseResponse(response, regionRequest, PathClass.NULL_CLASS);
+            return parseResponse(response.body(), regionRequest, PathClass.NULL_CLASS);
+        } else if (failOnError) {
+            throw new IOException(String.format("HTTP response: %d, %s", response.statusCode(), response.body()));
         } else {
             logger.error("HTTP response: {}, {}", response.statusCode(), response.body());
             return Collections.emptyList();
         }
     }
 
-    private List<PathObject> parseResponse(HttpResponse<String> response, RegionRequest regionRequest,
-            PathClass pathClass) {
-        List<PathObject> samObjects = Utils.parsePathObjects(response.body());
+    private List<PathObject> parseResponse(String body, RegionRequest regionRequest, PathClass pathClass) {
+        List<PathObject> samObjects = Utils.parsePathObjects(body);
         AffineTransform transform = new AffineTransform();
         transform.translate(regionRequest.getMinX(), regionRequest.getMinY());
         transform.scale(regionRequest.getDownsample(), regionRequest.getDownsample());
@@ -227,12 +242,27 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         return new Builder(viewer);
     }
 
+    /**
+     * New builder for a SAM task that does not depend on a viewer, e.g. for headless scripts or benchmarks.
+     * <p>
+     * An RGB server and the region(s) to process should be specified explicitly. If no server is given, the server
+     * of the image data is used when it is RGB.
+     * 
+     * @param imageData
+     *            the image data containing the image to be processed
+     * @return the builder
+     */
+    public static Builder builder(ImageData<BufferedImage> imageData) {
+        return new Builder(imageData);
+    }
+
     /**
      * Builder for a SAMDetectionTask class.
      */
     public static class Builder {
 
         private QuPathViewer viewer;
+        private ImageData<BufferedImage> imageData;
 
         private String textPrompt;
         private Collection<PathObject> positiveBboxes = new LinkedHashSet<>();
@@ -250,11 +280,16 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         private String checkpointUrl;
         private boolean resetPrompts = false;
         private double confidenceThresh = 0.4;
+        private boolean failOnError = false;
 
         private Builder(QuPathViewer viewer) {
             this.viewer = viewer;
         }
 
+        private Builder(ImageData<BufferedImage> imageData) {
+            this.imageData = imageData;
+        }
+
         /**
          * Specify the server URL (required).
          * 
@@ -339,7 +374,7 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         /**
          * Optionally specify a server to provide the pixels.
          * This should be an RGB server. Otherwise, a rendered server will be created
-         * from the viewer.
+         * from the viewer, if available.
          * 
          * @param server
          * @return this builder
@@ -350,7 +385,8 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
         }
 
         /**
-         * Specify the region request (required).
+         * Specify the region request.
+         * This is required if the builder was not created from a viewer.
          * 
          * @param regionRequest
          * @return this builder
@@ -418,6 +454,19 @@ public class SAM3DetectionTask extends Task<List<PathObject>> {
             return this;
         }
 
+        /**
+         * Throw an IOException when the server responds with an error instead of returning no objects, so that a
+         * failed request is not mistaken for a region without objects.
+         * Default is false.
+         * 
+         * @param failOnError
+         * @return this builder
+         */
+        public Builder failOnError(final boolean failOnError) {
+            this.failOnError = failOnError;
+            return this;
+        }
+
         /**
          * Build the detection task.
          * 
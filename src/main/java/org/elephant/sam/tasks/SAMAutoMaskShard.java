@@ -0,0 +1,127 @@
+package org.elephant.sam.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of an auto mask run that can be sent to a server on its own: one crop of the image and a subset of the
+ * point grid of that crop.
+ * <p>
+ * The crops and point grids follow the automatic mask generator of Segment Anything, so that running all shards and
+ * merging the results gives the same masks as a single auto mask request.
+ */
+class SAMAutoMaskShard {
+
+    private final int[] cropBox;
+
+    private final double[][] points;
+
+    private SAMAutoMaskShard(int[] cropBox, double[][] points) {
+        this.cropBox = cropBox;
+        this.points = points;
+    }
+
+    /**
+     * Split an auto mask run into shards.
+     *
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param pointsPerSide
+     *            the number of points along one side of the full image
+     * @param cropNLayers
+     *            the number of crop layers
+     * @param cropOverlapRatio
+     *            the overlap of crops in the first layer, as a fraction of the short side of the image
+     * @param cropNPointsDownscaleFactor
+     *            the factor by which the points per side are scaled down in each layer
+     * @param targetShards
+     *            the number of shards to aim for; points are split evenly, so that crops with more points are split
+     *            into more shards
+     * @param minPointsPerShard
+     *            the smallest number of points in a shard, so that a grid is not split into more shards than there
+     *            are batches of points
+     * @return the shards
+     */
+    static List<SAMAutoMaskShard> plan(int width, int height, int pointsPerSide, int cropNLayers,
+            double cropOverlapRatio, int cropNPointsDownscaleFactor, int targetShards, int minPointsPerShard) {
+        long totalPoints = 0;
+        for (int layer = 0; layer <= cropNLayers; layer++) {
+            int nPerSide = layer == 0 ? 1 : 1 << layer;
+            int nPoints = getPointsPerSide(pointsPerSide, cropNPointsDownscaleFactor, layer);
+            totalPoints += (long) nPerSide * nPerSide * nPoints * nPoints;
+        }
+        long pointsPerShard = Math.max(Math.max(1, minPointsPerShard),
+                (totalPoints + Math.max(1, targetShards) - 1) / Math.max(1, targetShards));
+
+        List<SAMAutoMaskShard> shards = new ArrayList<>();
+        int shortSide = Math.min(width, height);
+        for (int layer = 0; layer <= cropNLayers; layer++) {
+            int nPerSide = layer == 0 ? 1 : 1 << layer;
+            int overlap = layer == 0 ? 0 : (int) (cropOverlapRatio * shortSide * (2.0 / nPerSide));
+            int cropW = (int) Math.ceil((double) (overlap * (nPerSide - 1) + width) / nPerSide);
+            int cropH = (int) Math.ceil((double) (overlap * (nPerSide - 1) + height) / nPerSide);
+            double[][] grid = createGrid(getPointsPerSide(pointsPerSide, cropNPointsDownscaleFactor, layer));
+            int nShards = (int) Math.max(1, Math.round(grid.length / (double) pointsPerShard));
+            for (int i = 0; i < nPerSide; i++) {
+                for (int j = 0; j < nPerSide; j++) {
+                    int x0 = (cropW - overlap) * i;
+                    int y0 = (cropH - overlap) * j;
+                    int[] cropBox = { x0, y0, Math.min(x0 + cropW, width), Math.min(y0 + cropH, height) };
+                    for (int s = 0; s < nShards; s++) {
+                        int from = (int) ((long) grid.length * s / nShards);
+                        int to = (int) ((long) grid.length * (s + 1) / nShards);
+                        double[][] points = new double[to - from][];
+                        System.arraycopy(grid, from, points, 0, points.length);
+                        shards.add(new SAMAutoMaskShard(cropBox, points));
+                    }
+                }
+            }
+        }
+        return shards;
+    }
+
+    private static int getPointsPerSide(int pointsPerSide, int cropNPointsDownscaleFactor, int layer) {
+        return Math.max(1, (int) (pointsPerSide / Math.pow(Math.max(1, cropNPointsDownscaleFactor), layer)));
+    }
+
+    private static double[][] createGrid(int nPerSide) {
+        double offset = 1.0 / (2 * nPerSide);
+        double step = nPerSide == 1 ? 0 : (1 - 2 * offset) / (nPerSide - 1);
+        double[][] grid = new double[nPerSide * nPerSide][];
+        for (int y = 0; y < nPerSide; y++) {
+            for (int x = 0; x < nPerSide; x++)
+                grid[y * nPerSide + x] = new double[] { offset + x * step, offset + y * step };
+        }
+        return grid;
+    }
+
+    /**
+     * Get the crop of the image.
+     *
+     * @return the crop as {@code [x0, y0, x1, y1]} in image pixels
+     */
+    int[] getCropBox() {
+        return cropBox;
+    }
+
+    /**
+     * Get the points of this shard.
+     *
+     * @return the points as {@code [x, y]} in [0, 1], relative to the crop
+     */
+    double[][] getPoints() {
+        return points;
+    }
+
+    /**
+     * Get the area of the crop.
+     *
+     * @return the area in pixels
+     */
+    double getCropArea() {
+        return (double) (cropBox[2] - cropBox[0]) * (cropBox[3] - cropBox[1]);
+    }
+
+}
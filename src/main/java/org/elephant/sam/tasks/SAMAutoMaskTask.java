@@ -1,10 +1,17 @@
 package org.elephant.sam.tasks;
 
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMJobClient;
+import org.elephant.sam.http.SAMResultCache;
+import org.elephant.sam.http.SAMServerCapabilities;
+import org.elephant.sam.http.SAMServerPool;
+import org.elephant.sam.http.SAMSharedMemory;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.parameters.SAMAutoMaskParameters;
+import org.elephant.sam.parameters.SAMSharedImage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,9 +31,16 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.http.HttpResponse;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A task to perform SAM detection on a given image.
@@ -89,6 +103,12 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
 
     private final String checkpointUrl;
 
+    private final boolean distributed;
+
+    private final boolean sharedMemory;
+
+    private final boolean failOnError;
+
     private SAMAutoMaskTask(Builder builder) {
         this.serverURL = builder.serverURL;
         Objects.requireNonNull(serverURL, "Server must not be null!");
@@ -99,10 +119,9 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         this.model = builder.model;
         Objects.requireNonNull(model, "Model must not be null!");
 
+        // The viewer is optional; without one, the image data, server and region(s) must be given explicitly
         QuPathViewer viewer = builder.viewer;
-        Objects.requireNonNull(builder, "Viewer must not be null!");
-
-        this.imageData = viewer.getImageData();
+        this.imageData = viewer == null ? builder.imageData : viewer.getImageData();
         Objects.requireNonNull(imageData, "ImageData must not be null!");
         if (builder.server != null) {
             if (builder.server.isRGB())
@@ -110,18 +129,23 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
             else
                 logger.warn("Cannot use non-RGB image server for SAM auto mask!");
         }
-        if (this.renderedServer == null) {
+        if (this.renderedServer == null && viewer != null) {
             try {
                 this.renderedServer = Utils.createRenderedServer(viewer);
             } catch (IOException e) {
                 logger.error("Failed to create rendered server", e);
             }
         }
+        if (this.renderedServer == null && imageData.getServer().isRGB()) {
+            this.renderedServer = imageData.getServer();
+        }
+        Objects.requireNonNull(renderedServer, "RGB image server must not be null!");
 
         this.regionRequest = builder.regionRequest;
-        if (this.regionRequest == null) {
+        if (this.regionRequest == null && viewer != null) {
             this.regionRequest = Utils.getViewerRegion(viewer, renderedServer);
         }
+        Objects.requireNonNull(regionRequest, "Region request must not be null!");
 
         this.outputType = builder.outputType;
         this.setName = builder.setName;
@@ -140,6 +164,9 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         this.minMaskRegionArea = builder.minMaskRegionArea;
         this.includeImageEdge = builder.includeImageEdge;
         this.checkpointUrl = builder.checkpointUrl;
+        this.distributed = builder.distributed;
+        this.sharedMemory = builder.sharedMemory;
+        this.failOnError = builder.failOnError;
     }
 
     @Override
@@ -147,6 +174,8 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         try {
             return detectObjects();
         } catch (InterruptedException e) {
+            if (failOnError)
+                throw e;
             logger.warn("Interrupted while detecting objects", e);
             return Collections.emptyList();
         }
@@ -155,64 +184,372 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
     private List<PathObject> detectObjects()
             throws InterruptedException, IOException {
 
-        SAMAutoMaskParameters.Builder parametersBuilder = SAMAutoMaskParameters.builder(model);
-
         BufferedImage img = renderedServer.readRegion(regionRequest);
 
-        final SAMAutoMaskParameters parameters = parametersBuilder
-                .b64img(Utils.base64EncodePNG(img))
+        if (isCancelled())
+            return Collections.emptyList();
+
+        try (RunImage runImage = new RunImage(img)) {
+            SAMServerPool serverPool = SAM.getContext().getServerPool(serverURL, verifySSL);
+            if (distributed && !serverPool.mayUse(SAMServerCapabilities.POINT_GRIDS)) {
+                logger.info("Not all servers accept point grids, sending the auto mask run in one request");
+            } else if (distributed) {
+                // Aim for two shards per server, so that a slow server does not hold up the others
+                List<SAMAutoMaskShard> shards = SAMAutoMaskShard.plan(img.getWidth(), img.getHeight(), pointsPerSide,
+                        cropNLayers, cropOverlapRatio, cropNPointsDownscaleFactor, 2 * serverPool.getHealthyCount(),
+                        pointsPerBatch);
+                if (shards.size() > 1)
+                    return detectObjectsDistributed(runImage, shards);
+            }
+
+            final String response = requestAutoMask(runImage, new int[] { 0, 0, img.getWidth(), img.getHeight() },
+                    null, cropNLayers);
+
+            if (response == null && failOnError && !isCancelled())
+                throw new IOException("Auto mask request failed");
+            if (response == null || isCancelled())
+                return Collections.emptyList();
+
+            List<PathObject> updatedObjects = new ArrayList<>();
+            for (PathObject pathObject : Utils.parsePathObjects(response))
+                updatedObjects.add(updateObject(pathObject, createTransform(0, 0)));
+            return updatedObjects;
+        }
+    }
+
+    /**
+     * Send crops and parts of the point grid to the servers in parallel, and merge the results as the automatic mask
+     * generator would have done for a single request.
+     */
+    private List<PathObject> detectObjectsDistributed(RunImage runImage, List<SAMAutoMaskShard> shards)
+            throws InterruptedException, IOException {
+        logger.debug("Auto mask split into {} shards over {} crops", shards.size(),
+                shards.stream().map(SAMAutoMaskShard::getCropBox).distinct().count());
+
+        List<CompletableFuture<List<Mask>>> futures = new ArrayList<>();
+        for (SAMAutoMaskShard shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return detectShard(runImage, shard);
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, SAM.getContext().getExecutor()));
+        }
+
+        Map<int[], List<Mask>> masksByCrop = new IdentityHashMap<>();
+        try {
+            for (CompletableFuture<List<Mask>> future : futures) {
+                for (Mask mask : future.get())
+                    masksByCrop.computeIfAbsent(mask.shard.getCropBox(), k -> new ArrayList<>()).add(mask);
+                if (isCancelled()) {
+                    futures.forEach(f -> f.cancel(true));
+                    return Collections.emptyList();
+                }
+            }
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Distributed auto mask failed", e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+
+        // Remove duplicates between shards of the same crop, then between crops, preferring masks from smaller crops
+        List<Mask> masks = new ArrayList<>();
+        for (List<Mask> cropMasks : masksByCrop.values())
+            masks.addAll(suppressNonMaximum(cropMasks, boxNmsThresh,
+                    Comparator.comparingDouble((Mask mask) -> mask.quality).reversed()));
+        if (masksByCrop.size() > 1)
+            masks = suppressNonMaximum(masks, cropNmsThresh,
+                    Comparator.comparingDouble((Mask mask) -> mask.shard.getCropArea())
+                            .thenComparing(Comparator.comparingDouble((Mask mask) -> mask.quality).reversed()));
+
+        List<PathObject> updatedObjects = new ArrayList<>();
+        for (Mask mask : masks) {
+            // Servers only see their own crop, so leftover fragments are removed here
+            if (minMaskRegionArea > 0 && mask.pathObject.getROI().getArea() < minMaskRegionArea)
+                continue;
+            int[] cropBox = mask.shard.getCropBox();
+            updatedObjects.add(updateObject(mask.pathObject, createTransform(cropBox[0], cropBox[1])));
+        }
+        return updatedObjects;
+    }
+
+    private List<Mask> detectShard(RunImage runImage, SAMAutoMaskShard shard)
+            throws IOException, InterruptedException {
+        int[] cropBox = shard.getCropBox();
+        String response = requestAutoMask(runImage, cropBox, shard.getPoints(), 0);
+        if (response == null)
+            throw new IOException("Auto mask request failed for crop " + Arrays.toString(cropBox));
+        final int width = runImage.img.getWidth();
+        final int height = runImage.img.getHeight();
+        List<Mask> masks = new ArrayList<>();
+        for (PathObject pathObject : Utils.parsePathObjects(response)) {
+            if (!pathObject.hasROI())
+                continue;
+            double[] box = {
+                    cropBox[0] + pathObject.getROI().getBoundsX(),
+                    cropBox[1] + pathObject.getROI().getBoundsY(),
+                    cropBox[0] + pathObject.getROI().getBoundsX() + pathObject.getROI().getBoundsWidth(),
+                    cropBox[1] + pathObject.getROI().getBoundsY() + pathObject.getROI().getBoundsHeight() };
+            // Masks cut by the border of a crop are expected to be found whole in another crop
+            if (isNearCropEdge(box, cropBox, width, height))
+                continue;
+            Number quality = pathObject.getMeasurements().get(Utils.SAM_QUALITY_MEASUREMENT);
+            masks.add(new Mask(pathObject, shard, box, quality == null ? 0 : quality.doubleValue()));
+        }
+        return masks;
+    }
+
+    private static boolean isNearCropEdge(double[] box, int[] cropBox, int width, int height) {
+        final double tolerance = 20.0;
+        int[] imageBox = { 0, 0, width, height };
+        for (int i = 0; i < 4; i++) {
+            if (Math.abs(box[i] - cropBox[i]) <= tolerance && Math.abs(box[i] - imageBox[i]) > tolerance)
+                return true;
+        }
+        return false;
+    }
+
+    private static List<Mask> suppressNonMaximum(List<Mask> masks, double iouThresh, Comparator<Mask> order) {
+        List<Mask> sorted = new ArrayList<>(masks);
+        sorted.sort(order);
+        List<Mask> kept = new ArrayList<>();
+        for (Mask mask : sorted) {
+            if (kept.stream().noneMatch(k -> computeBoxIoU(k.box, mask.box) > iouThresh))
+                kept.add(mask);
+        }
+        return kept;
+    }
+
+    private static double computeBoxIoU(double[] a, double[] b) {
+        double intersection = Math.max(0, Math.min(a[2], b[2]) - Math.max(a[0], b[0]))
+                * Math.max(0, Math.min(a[3], b[3]) - Math.max(a[1], b[1]));
+        double union = (a[2] - a[0]) * (a[3] - a[1]) + (b[2] - b[0]) * (b[3] - b[1]) - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+
+    private SAMAutoMaskParameters createParameters(String b64img, SAMSharedImage sharedImage, double[][] points,
+            int nLayers) {
+        SAMAutoMaskParameters.Builder parametersBuilder = SAMAutoMaskParameters.builder(model)
+                .b64img(b64img)
+                .sharedImage(sharedImage)
                 .pointsPerSide(pointsPerSide)
                 .pointsPerBatch(pointsPerBatch)
                 .predIoUThresh(predIoUThresh)
                 .stabilityScoreThresh(stabilityScoreThresh)
                 .stabilityScoreOffset(stabilityScoreOffset)
                 .boxNmsThresh(boxNmsThresh)
-                .cropNLayers(cropNLayers)
+                .cropNLayers(nLayers)
                 .cropNmsThresh(cropNmsThresh)
                 .cropOverlapRatio(cropOverlapRatio)
                 .cropNPointsDownscaleFactor(cropNPointsDownscaleFactor)
                 .minMaskRegionArea(minMaskRegionArea)
                 .outputType(outputType.toString())
                 .includeImageEdge(includeImageEdge)
-                .checkpointUrl(checkpointUrl)
-                .build();
+                .checkpointUrl(checkpointUrl);
+        if (points != null)
+            parametersBuilder.pointGrids(new double[][][] { points });
+        return parametersBuilder.build();
+    }
 
-        if (isCancelled())
-            return Collections.emptyList();
+    /**
+     * Request masks for a crop of the image, through shared memory if possible and as an encoded image otherwise.
+     *
+     * @param cropBox
+     *            the crop as {@code [x0, y0, x1, y1]}
+     * @param points
+     *            the point grid relative to the crop, or null to let the server create it
+     * @return the response body, or null if the request failed
+     */
+    private String requestAutoMask(RunImage runImage, int[] cropBox, double[][] points, int nLayers)
+            throws IOException, InterruptedException {
+        final SAMSharedImage sharedImage = runImage.getSharedImage(cropBox);
+        if (sharedImage != null) {
+            final String body = GsonTools.getInstance().toJson(createParameters(null, sharedImage, points, nLayers));
+            // The file is reused for other images, so the cache is keyed by the content instead
+            final String cacheBody = GsonTools.getInstance()
+                    .toJson(createParameters(null, sharedImage.withoutPath(), points, nLayers));
+            final String response = postAutoMask(body, cacheBody, true);
+            // Retry with an encoded image only if a server rejected the shared memory image
+            if (response != null || runImage.getSharedImage(cropBox) != null)
+                return response;
+        }
+        final String body = GsonTools.getInstance()
+                .toJson(createParameters(runImage.getEncoded(cropBox), null, points, nLayers));
+        return postAutoMask(body, body, false);
+    }
 
+    /**
+     * Send an auto mask request, or take the response from the cache.
+     *
+     * @param body
+     *            the request body
+     * @param cacheBody
+     *            the body that identifies the request in the cache
+     * @param sharedMemory
+     *            whether the body refers to an image in shared memory, so that servers that reject it are not sent
+     *            shared memory images again
+     * @return the response body, or null if the request failed
+     */
+    private String postAutoMask(String body, String cacheBody, boolean sharedMemory)
+            throws IOException, InterruptedException {
         final String endpointURL = String.format("%sautomask/", Utils.ensureTrailingSlash(serverURL));
-        HttpResponse<String> response = HttpUtils.postRequest(endpointURL, verifySSL,
-                GsonTools.getInstance().toJson(parameters));
-
-        if (isCancelled())
-            return Collections.emptyList();
+        final String cacheKey = SAMResultCache.createKey(endpointURL, cacheBody);
+        final String cached = SAM.getContext().getResultCache().get(cacheKey);
+        if (cached != null)
+            return cached;
+
+        final SAMServerPool pool = SAM.getContext().getServerPool(serverURL, verifySSL);
+        final SAMJobClient jobs = new SAMJobClient(verifySSL, this::isCancelled, this::updateMessage);
+        final SAMServerPool.Request request = url -> {
+            HttpResponse<String> r = null;
+            // Long runs are submitted as jobs, so that they survive proxy timeouts and restarts
+            if (SAMServerCapabilities.getCached(url).supports(SAMServerCapabilities.JOBS))
+                r = jobs.run(url, "automask/", body, cacheKey, null);
+            if (r == null || r.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                    || r.statusCode() == HttpURLConnection.HTTP_BAD_METHOD)
+                r = HttpUtils.postRequest(url + "automask/", verifySSL, body);
+            if (sharedMemory && (r.statusCode() == HttpURLConnection.HTTP_BAD_REQUEST
+                    || r.statusCode() == 422))
+                SAM.getContext().getSharedMemory().markUnsupported(url);
+            return r;
+        };
+        // A job for the same request that is still running, e.g. from before a restart, is followed on its server
+        final String jobServer = SAMJobClient.getServer(cacheKey);
+        final boolean followJob = jobServer != null && pool.stick(cacheKey, jobServer);
+        if (jobServer != null && !followJob) {
+            logger.info("Server {} of a recorded auto mask job is not available, submitting it again", jobServer);
+            SAMJobClient.forget(cacheKey);
+        }
+        HttpResponse<String> response = SAM.getContext().getSingleFlight().execute(cacheKey, () -> {
+            // If the server of the job fails, the request is submitted again to another replica
+            HttpResponse<String> r = pool.execute(followJob ? cacheKey : null, "automask/" + model.modelName(),
+                    request);
+            if (r.statusCode() == HttpURLConnection.HTTP_OK)
+                SAM.getContext().getResultCache().put(cacheKey, r.body());
+            return r;
+        });
 
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-            return parseResponse(response, regionRequest, PathPrefs.autoSetAnnotationClassProperty().get());
+            return response.body();
         } else {
             logger.error("HTTP response: {}, {}", response.statusCode(), response.body());
-            return Collections.emptyList();
+            return null;
         }
     }
 
-    private List<PathObject> parseResponse(HttpResponse<String> response, RegionRequest regionRequest,
-            PathClass pathClass) {
-        List<PathObject> samObjects = Utils.parsePathObjects(response.body());
+    /**
+     * Create the transform from the pixels sent to the server to the full-resolution image.
+     *
+     * @param dx
+     *            the x offset of the crop within the region, in downsampled pixels
+     * @param dy
+     *            the y offset of the crop within the region, in downsampled pixels
+     */
+    private AffineTransform createTransform(int dx, int dy) {
         AffineTransform transform = new AffineTransform();
         transform.translate(regionRequest.getMinX(), regionRequest.getMinY());
         transform.scale(regionRequest.getDownsample(), regionRequest.getDownsample());
+        transform.translate(dx, dy);
+        return transform;
+    }
+
+    private PathObject updateObject(PathObject pathObject, AffineTransform transform) {
+        PathClass pathClass = PathPrefs.autoSetAnnotationClassProperty().get();
         ImagePlane plane = regionRequest.getImagePlane();
         // Retain the original classification, and set names/colors if required
-        List<PathObject> updatedObjects = new ArrayList<>();
-        for (PathObject pathObject : samObjects) {
-            pathObject = Utils.applyTransformAndClassification(pathObject, transform, pathClass, plane);
-            if (setName)
-                Utils.setNameForSAM(pathObject);
-            if (setRandomColor && pathObject.getPathClass() == null)
-                Utils.setRandomColor(pathObject);
-            updatedObjects.add(pathObject);
+        pathObject = Utils.applyTransformAndClassification(pathObject, transform, pathClass, plane);
+        if (setName)
+            Utils.setNameForSAM(pathObject);
+        if (setRandomColor && pathObject.getPathClass() == null)
+            Utils.setRandomColor(pathObject);
+        return pathObject;
+    }
+
+    /**
+     * The image of a run, written once to shared memory when the servers are on this machine, and encoded per crop
+     * only when it has to be sent with the request.
+     */
+    private class RunImage implements AutoCloseable {
+
+        private final BufferedImage img;
+
+        private final SAMSharedMemory.Lease lease;
+
+        private final Map<int[], String> encoded = new IdentityHashMap<>();
+
+        private RunImage(BufferedImage img) {
+            this.img = img;
+            SAMSharedMemory.Lease lease = null;
+            if (sharedMemory && canUseSharedMemory()) {
+                try {
+                    lease = SAM.getContext().getSharedMemory().write(img);
+                } catch (IOException e) {
+                    logger.warn("Cannot write image to shared memory, sending an encoded image instead: {}",
+                            e.getMessage());
+                }
+            }
+            this.lease = lease;
         }
-        return updatedObjects;
+
+        private boolean canUseSharedMemory() {
+            SAMSharedMemory shm = SAM.getContext().getSharedMemory();
+            return SAM.getContext().getServerPool(serverURL, verifySSL).getURLs().stream().allMatch(shm::canUse);
+        }
+
+        /**
+         * Describe a crop in shared memory.
+         *
+         * @return the description, or null if the image should be encoded instead
+         */
+        private SAMSharedImage getSharedImage(int[] cropBox) {
+            if (lease == null || !canUseSharedMemory())
+                return null;
+            return lease.getImage(cropBox[0], cropBox[1], cropBox[2] - cropBox[0], cropBox[3] - cropBox[1]);
+        }
+
+        private synchronized String getEncoded(int[] cropBox) throws IOException {
+            String b64img = encoded.get(cropBox);
+            if (b64img == null) {
+                b64img = Utils.base64EncodePNG(img.getSubimage(cropBox[0], cropBox[1], cropBox[2] - cropBox[0],
+                        cropBox[3] - cropBox[1]));
+                encoded.put(cropBox, b64img);
+            }
+            return b64img;
+        }
+
+        @Override
+        public void close() {
+            if (lease != null)
+                lease.close();
+        }
+
+    }
+
+    /**
+     * A mask returned for one shard, with its bounding box in the pixels of the region.
+     */
+    private static class Mask {
+
+        private final PathObject pathObject;
+
+        private final SAMAutoMaskShard shard;
+
+        private final double[] box;
+
+        private final double quality;
+
+        private Mask(PathObject pathObject, SAMAutoMaskShard shard, double[] box, double quality) {
+            this.pathObject = pathObject;
+            this.shard = shard;
+            this.box = box;
+            this.quality = quality;
+        }
+
     }
 
     /**
@@ -226,12 +563,27 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         return new Builder(viewer);
     }
 
+    /**
+     * New builder for a SAM task that does not depend on a viewer, e.g. for headless scripts or benchmarks.
+     * <p>
+     * An RGB server and the region(s) to process should be specified explicitly. If no server is given, the server
+     * of the image data is used when it is RGB.
+     * 
+     * @param imageData
+     *            the image data containing the image to be processed
+     * @return the builder
+     */
+    public static Builder builder(ImageData<BufferedImage> imageData) {
+        return new Builder(imageData);
+    }
+
     /**
      * Builder for a SAMAutoMaskTask class.
      */
     public static class Builder {
 
         private QuPathViewer viewer;
+        private ImageData<BufferedImage> imageData;
 
         private ImageServer<BufferedImage> server;
         private RegionRequest regionRequest;
@@ -256,11 +608,18 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         private int minMaskRegionArea = 0;
         private boolean includeImageEdge = false;
         private String checkpointUrl = null;
+        private boolean distributed = false;
+        private boolean sharedMemory = false;
+        private boolean failOnError = false;
 
         private Builder(QuPathViewer viewer) {
             this.viewer = viewer;
         }
 
+        private Builder(ImageData<BufferedImage> imageData) {
+            this.imageData = imageData;
+        }
+
         /**
          * Specify the server URL (required).
          * 
@@ -310,7 +669,7 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         /**
          * Optionally specify a server to provide the pixels.
          * This should be an RGB server. Otherwise, a rendered server will be created
-         * from the viewer.
+         * from the viewer, if available.
          * 
          * @param server
          * @return this builder
@@ -321,7 +680,8 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
         }
 
         /**
-         * Specify the region request (required).
+         * Specify the region request.
+         * This is required if the builder was not created from a viewer.
          * 
          * @param regionRequest
          * @return this builder
@@ -522,6 +882,46 @@ public class SAMAutoMaskTask extends Task<List<PathObject>> {
             return this;
         }
 
+        /**
+         * Split the run into crops and parts of the point grid that are sent to the servers in parallel, and merge
+         * the results on the client. This is faster when several servers are available or crop layers are used.
+         * The server must accept explicit point grids.
+         * Default is false.
+         * 
+         * @param distributed
+         * @return this builder
+         */
+        public Builder distributed(final boolean distributed) {
+            this.distributed = distributed;
+            return this;
+        }
+
+        /**
+         * Hand the image to the server through shared memory instead of encoding it, if all servers run on this
+         * machine. Servers that reject shared memory images are sent encoded images instead.
+         * Default is false.
+         * 
+         * @param sharedMemory
+         * @return this builder
+         */
+        public Builder sharedMemory(final boolean sharedMemory) {
+            this.sharedMemory = sharedMemory;
+            return this;
+        }
+
+        /**
+         * Throw an IOException when the server responds with an error instead of returning no objects, so that a
+         * failed request is not mistaken for an image without objects.
+         * Default is false.
+         * 
+         * @param failOnError
+         * @return this builder
+         */
+        public Builder failOnError(final boolean failOnError) {
+            this.failOnError = failOnError;
+            return this;
+        }
+
         /**
          * Build the detection task.
          * 
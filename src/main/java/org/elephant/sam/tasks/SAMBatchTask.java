@@ -0,0 +1,557 @@
+package org.elephant.sam.tasks;
+
+import org.elephant.sam.SAM;
+import org.elephant.sam.Utils;
+import org.elephant.sam.batch.SAMBatchQueue;
+import org.elephant.sam.batch.SAMTileStore;
+import org.elephant.sam.entities.SAMBatchJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * A task to run a SAM task on every image of a project, tile by tile.
+ * <p>
+ * Jobs are stored in a {@link SAMBatchQueue} inside the project, and results are written back to each image's data
+ * file once all of its tiles have been processed. The results of each tile are also checkpointed as soon as they
+ * arrive. If the run is interrupted, the next run with the same queue name resumes with the images that were not
+ * written yet, reloading completed tiles and only sending the missing ones to the server. A queue created with a
+ * different tile size, downsample, plane or task settings (e.g. another model, server or prompt) is started again
+ * instead of being resumed, so that tiles computed with other settings are never merged. Objects written by an earlier
+ * run with the same queue name are replaced, rather than added a second time.
+ * <p>
+ * Up to {@code maxConcurrentRequests} tiles are in flight at once, so that reading and encoding the next tile (or the
+ * next image) overlaps with server processing of the current one.
+ * <p>
+ * The task returns the number of images that were written back to the project.
+ */
+public class SAMBatchTask extends Task<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SAMBatchTask.class);
+
+    /**
+     * Create the SAM task for a single tile.
+     */
+    @FunctionalInterface
+    public interface TaskFactory {
+
+        /**
+         * Create a task that processes one region of an image.
+         *
+         * @param imageData
+         *            the image data of the project entry
+         * @param server
+         *            an RGB server providing the pixels
+         * @param regionRequest
+         *            the region to process
+         * @return the task
+         */
+        Task<List<PathObject>> create(ImageData<BufferedImage> imageData, ImageServer<BufferedImage> server,
+                RegionRequest regionRequest);
+
+    }
+
+    private final Project<BufferedImage> project;
+
+    private final List<ProjectImageEntry<BufferedImage>> entries;
+
+    private final String queueName;
+
+    private final TaskFactory taskFactory;
+
+    private final int tileSize;
+
+    private final double downsample;
+
+    private final ImagePlane plane;
+
+    private final String settings;
+
+    private final int maxConcurrentRequests;
+
+    private final boolean restart;
+
+    private final Set<String> skippedEntryIDs;
+
+    private final List<CompletableFuture<?>> inFlight = new ArrayList<>();
+
+    private SAMBatchTask(Builder builder) {
+        this.project = builder.project;
+        Objects.requireNonNull(project, "Project must not be null!");
+
+        this.taskFactory = builder.taskFactory;
+        Objects.requireNonNull(taskFactory, "Task factory must not be null!");
+
+        this.queueName = builder.queueName;
+        Objects.requireNonNull(queueName, "Queue name must not be null!");
+
+        this.entries = builder.entries == null ? project.getImageList() : new ArrayList<>(builder.entries);
+        this.tileSize = builder.tileSize;
+        this.downsample = builder.downsample;
+        this.plane = Objects.requireNonNull(builder.plane, "Plane must not be null!");
+        this.settings = builder.settings == null ? "" : builder.settings;
+        this.maxConcurrentRequests = Math.max(1, builder.maxConcurrentRequests);
+        this.restart = builder.restart;
+        this.skippedEntryIDs = builder.skippedEntries.stream()
+                .map(ProjectImageEntry::getID)
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    protected Integer call() throws Exception {
+        try {
+            return runBatch();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while running batch", e);
+            return 0;
+        } finally {
+            cancelInFlight();
+        }
+    }
+
+    private int runBatch() throws InterruptedException, IOException {
+        SAMBatchQueue queue = SAMBatchQueue.open(SAMBatchQueue.getQueueDirectory(project, queueName));
+        // Everything that affects the results, so that tiles computed with other settings are not merged
+        final String settings = String.format(Locale.ROOT, "tileSize=%d, downsample=%s, z=%d, t=%d, %s", tileSize,
+                downsample, plane.getZ(), plane.getT(), this.settings);
+        if (restart) {
+            queue.clear();
+        } else if (!queue.isEmpty() && !settings.equals(queue.getSettings())) {
+            logger.warn("Batch '{}' was created with {}, starting again with {}", queueName, queue.getSettings(),
+                    settings);
+            queue.clear();
+        }
+        if (queue.isEmpty())
+            queue.enqueue(createJobs(), settings);
+        SAMTileStore tileStore = queue.getTileStore();
+
+        List<SAMBatchJob> pending = queue.getPendingJobs();
+        final int total = queue.size();
+        final AtomicInteger completed = new AtomicInteger(queue.getCompletedCount());
+        if (pending.isEmpty()) {
+            updateMessage("Batch already complete");
+            return 0;
+        }
+        logger.info("Resuming batch '{}' with {}/{} pending jobs", queueName, pending.size(), total);
+
+        Map<String, List<SAMBatchJob>> jobsByEntry = new LinkedHashMap<>();
+        for (SAMBatchJob job : pending)
+            jobsByEntry.computeIfAbsent(job.getEntryID(), k -> new ArrayList<>()).add(job);
+        Map<String, ProjectImageEntry<BufferedImage>> entryMap = new LinkedHashMap<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList())
+            entryMap.put(entry.getID(), entry);
+
+        Semaphore permits = new Semaphore(maxConcurrentRequests);
+        AtomicInteger written = new AtomicInteger(0);
+        List<CompletableFuture<Void>> imageFutures = new ArrayList<>();
+        for (Map.Entry<String, List<SAMBatchJob>> e : jobsByEntry.entrySet()) {
+            if (isCancelled())
+                break;
+            ProjectImageEntry<BufferedImage> entry = entryMap.get(e.getKey());
+            if (entry == null) {
+                logger.warn("Skipping {} jobs for missing project entry {}", e.getValue().size(), e.getKey());
+                continue;
+            }
+            if (skippedEntryIDs.contains(entry.getID())) {
+                logger.warn("Skipping {} in this run, its jobs stay pending", entry.getImageName());
+                continue;
+            }
+            updateMessage(String.format("Reading %s", entry.getImageName()));
+            ImageData<BufferedImage> imageData;
+            ImageServer<BufferedImage> server;
+            try {
+                imageData = entry.readImageData();
+                server = Utils.createRenderedServer(imageData);
+            } catch (IOException ex) {
+                logger.error("Failed to read {}", entry.getImageName(), ex);
+                continue;
+            }
+            Map<Integer, List<PathObject>> storedTiles = tileStore.read(entry.getID());
+            if (!storedTiles.isEmpty())
+                logger.info("Reloaded {} completed tiles for {}", storedTiles.size(), entry.getImageName());
+            List<CompletableFuture<List<PathObject>>> tileFutures = new ArrayList<>();
+            for (SAMBatchJob job : e.getValue()) {
+                List<PathObject> stored = storedTiles.get(job.getTile());
+                if (stored != null) {
+                    tileFutures.add(CompletableFuture.completedFuture(stored));
+                    updateProgress(completed.incrementAndGet(), total);
+                    continue;
+                }
+                permits.acquire();
+                if (isCancelled()) {
+                    permits.release();
+                    break;
+                }
+                Task<List<PathObject>> task = taskFactory.create(imageData, server,
+                        job.toRegionRequest(server.getPath()));
+                CompletableFuture<List<PathObject>> future = SAM.submit(task);
+                synchronized (inFlight) {
+                    inFlight.add(future);
+                }
+                future.whenComplete((value, throwable) -> {
+                    permits.release();
+                    synchronized (inFlight) {
+                        inFlight.remove(future);
+                    }
+                });
+                tileFutures.add(future.thenApply(value -> {
+                    // Checkpoint the tile before it counts as done
+                    try {
+                        tileStore.append(job, value);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    updateProgress(completed.incrementAndGet(), total);
+                    return value;
+                }));
+            }
+            final List<SAMBatchJob> jobs = e.getValue();
+            imageFutures.add(CompletableFuture.allOf(tileFutures.toArray(CompletableFuture[]::new))
+                    .thenRun(() -> {
+                        if (tileFutures.size() < jobs.size())
+                            return;
+                        writeResults(queue, tileStore, entry, imageData, jobs, tileFutures);
+                        written.incrementAndGet();
+                    })
+                    .whenComplete((value, throwable) -> {
+                        if (throwable != null)
+                            logger.error("Batch failed for {}", entry.getImageName(), throwable);
+                        closeQuietly(server);
+                        closeQuietly(imageData.getServer());
+                    }));
+        }
+        awaitAll(imageFutures);
+        updateMessage(String.format("%d images written, %d/%d tiles done", written.get(),
+                queue.getCompletedCount(), total));
+        return written.get();
+    }
+
+    private void writeResults(SAMBatchQueue queue, SAMTileStore tileStore, ProjectImageEntry<BufferedImage> entry,
+            ImageData<BufferedImage> imageData, List<SAMBatchJob> jobs,
+            List<CompletableFuture<List<PathObject>>> tileFutures) {
+        List<PathObject> detected = new ArrayList<>();
+        for (CompletableFuture<List<PathObject>> future : tileFutures)
+            detected.addAll(future.join());
+        try {
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            // Replace the objects of an earlier run, e.g. one that stopped after saving but before it was recorded
+            Set<UUID> previousIDs = queue.getWrittenObjectIDs(entry.getID());
+            if (!previousIDs.isEmpty()) {
+                List<PathObject> previous = hierarchy.getAllObjects(false).stream()
+                        .filter(pathObject -> previousIDs.contains(pathObject.getID()))
+                        .collect(Collectors.toList());
+                if (!previous.isEmpty()) {
+                    logger.info("Replacing {} objects written by an earlier run to {}", previous.size(),
+                            entry.getImageName());
+                    hierarchy.removeObjects(previous, true);
+                }
+            }
+            hierarchy.addObjects(detected);
+            Set<UUID> ids = detected.stream().map(PathObject::getID).collect(Collectors.toSet());
+            // Until the data file is saved, it may still hold the previous objects
+            Set<UUID> pending = new HashSet<>(previousIDs);
+            pending.addAll(ids);
+            queue.setWrittenObjectIDs(entry.getID(), pending);
+            entry.saveImageData(imageData);
+            queue.setWrittenObjectIDs(entry.getID(), ids);
+            queue.markDone(jobs);
+            tileStore.delete(entry.getID());
+            updateMessage(String.format("%s: %d objects written", entry.getImageName(), detected.size()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write results for " + entry.getImageName(), e);
+        }
+    }
+
+    private void awaitAll(Collection<CompletableFuture<Void>> futures) throws InterruptedException {
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+        while (!all.isDone()) {
+            if (isCancelled()) {
+                cancelInFlight();
+                return;
+            }
+            try {
+                all.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // Failures are logged per image; keep waiting until everything has finished
+            }
+        }
+    }
+
+    private void cancelInFlight() {
+        synchronized (inFlight) {
+            inFlight.forEach(future -> future.cancel(true));
+            inFlight.clear();
+        }
+    }
+
+    private List<SAMBatchJob> createJobs() throws InterruptedException {
+        List<SAMBatchJob> jobs = new ArrayList<>();
+        int i = 0;
+        for (ProjectImageEntry<BufferedImage> entry : entries) {
+            if (isCancelled())
+                throw new InterruptedException("Batch cancelled while preparing jobs");
+            updateMessage(String.format("Preparing %d/%d images", ++i, entries.size()));
+            try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()) {
+                List<RegionRequest> tiles = createTiles(server, tileSize, downsample, plane);
+                for (int tile = 0; tile < tiles.size(); tile++)
+                    jobs.add(new SAMBatchJob(entry.getID(), entry.getImageName(), tile, tiles.get(tile)));
+            } catch (Exception e) {
+                logger.error("Failed to open {}; it will be skipped", entry.getImageName(), e);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Split the first plane of an image into tiles.
+     *
+     * @param server
+     *            the server of the image
+     * @param tileSize
+     *            the tile width and height in downsampled pixels, or 0 to use a single tile for the whole image
+     * @param downsample
+     *            the downsample at which tiles are read
+     * @return the tile regions
+     */
+    public static List<RegionRequest> createTiles(ImageServer<BufferedImage> server, int tileSize,
+            double downsample) {
+        return createTiles(server, tileSize, downsample, ImagePlane.getDefaultPlane());
+    }
+
+    /**
+     * Split one plane of an image into tiles.
+     *
+     * @param server
+     *            the server of the image
+     * @param tileSize
+     *            the tile width and height in downsampled pixels, or 0 to use a single tile for the whole image
+     * @param downsample
+     *            the downsample at which tiles are read
+     * @param plane
+     *            the plane to split
+     * @return the tile regions
+     */
+    public static List<RegionRequest> createTiles(ImageServer<BufferedImage> server, int tileSize,
+            double downsample, ImagePlane plane) {
+        List<RegionRequest> tiles = new ArrayList<>();
+        if (tileSize <= 0) {
+            tiles.add(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(),
+                    server.getHeight(), plane.getZ(), plane.getT()));
+            return tiles;
+        }
+        int step = (int) Math.round(tileSize * downsample);
+        for (int y = 0; y < server.getHeight(); y += step) {
+            for (int x = 0; x < server.getWidth(); x += step) {
+                int w = Math.min(step, server.getWidth() - x);
+                int h = Math.min(step, server.getHeight() - y);
+                tiles.add(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h, plane.getZ(),
+                        plane.getT()));
+            }
+        }
+        return tiles;
+    }
+
+    private static void closeQuietly(ImageServer<BufferedImage> server) {
+        try {
+            server.close();
+        } catch (Exception e) {
+            logger.debug("Failed to close server", e);
+        }
+    }
+
+    /**
+     * New builder for a SAM batch task.
+     *
+     * @param project
+     *            the project containing the images to be processed
+     * @return the builder
+     */
+    public static Builder builder(Project<BufferedImage> project) {
+        return new Builder(project);
+    }
+
+    /**
+     * Builder for a SAMBatchTask class.
+     */
+    public static class Builder {
+
+        private Project<BufferedImage> project;
+        private List<ProjectImageEntry<BufferedImage>> entries;
+        private String queueName = "default";
+        private TaskFactory taskFactory;
+        private int tileSize = 1024;
+        private double downsample = 1.0;
+        private ImagePlane plane = ImagePlane.getDefaultPlane();
+        private String settings;
+        private int maxConcurrentRequests = 2;
+        private boolean restart = false;
+        private List<ProjectImageEntry<BufferedImage>> skippedEntries = new ArrayList<>();
+
+        private Builder(Project<BufferedImage> project) {
+            this.project = project;
+        }
+
+        /**
+         * Specify the factory creating the task for each tile (required).
+         *
+         * @param taskFactory
+         * @return this builder
+         */
+        public Builder taskFactory(final TaskFactory taskFactory) {
+            this.taskFactory = taskFactory;
+            return this;
+        }
+
+        /**
+         * Specify the name of the queue.
+         * Runs with the same name share their progress, so that an interrupted run can be resumed.
+         *
+         * @param queueName
+         * @return this builder
+         */
+        public Builder queueName(final String queueName) {
+            this.queueName = queueName;
+            return this;
+        }
+
+        /**
+         * Optionally restrict the run to some project entries.
+         * Default is all images in the project.
+         * This is only used when a new queue is created.
+         *
+         * @param entries
+         * @return this builder
+         */
+        public Builder entries(final Collection<ProjectImageEntry<BufferedImage>> entries) {
+            this.entries = new ArrayList<>(entries);
+            return this;
+        }
+
+        /**
+         * Specify the tile size in downsampled pixels, or 0 to process each image as a single tile.
+         * Default is 1024.
+         *
+         * @param tileSize
+         * @return this builder
+         */
+        public Builder tileSize(final int tileSize) {
+            this.tileSize = tileSize;
+            return this;
+        }
+
+        /**
+         * Specify the downsample at which tiles are read.
+         * Default is 1.0.
+         *
+         * @param downsample
+         * @return this builder
+         */
+        public Builder downsample(final double downsample) {
+            this.downsample = downsample;
+            return this;
+        }
+
+        /**
+         * Specify the plane that is processed in every image.
+         * Default is the first plane.
+         *
+         * @param plane
+         * @return this builder
+         */
+        public Builder plane(final ImagePlane plane) {
+            this.plane = plane;
+            return this;
+        }
+
+        /**
+         * Describe everything else that affects the results of the tasks, e.g. the model, the server URL and the
+         * task parameters. A stored queue is only resumed if it was created with the same description; otherwise it
+         * is started again, so that tiles computed with different settings are not merged.
+         * Default is no description, which resumes a queue regardless of the task settings.
+         *
+         * @param settings
+         * @return this builder
+         */
+        public Builder settings(final String settings) {
+            this.settings = settings;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of tiles that are processed at the same time.
+         * Default is 2, so that one tile can be prepared while another is processed by the server.
+         *
+         * @param maxConcurrentRequests
+         * @return this builder
+         */
+        public Builder maxConcurrentRequests(final int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Optionally leave some project entries out of this run, e.g. the image that is currently open, whose data
+         * file would otherwise be overwritten. Their jobs stay pending for a later run.
+         * Default is no entries.
+         *
+         * @param skippedEntries
+         * @return this builder
+         */
+        public Builder skipEntries(final Collection<ProjectImageEntry<BufferedImage>> skippedEntries) {
+            this.skippedEntries = new ArrayList<>(skippedEntries);
+            return this;
+        }
+
+        /**
+         * Discard any stored progress and start again from the beginning.
+         *
+         * @param restart
+         * @return this builder
+         */
+        public Builder restart(final boolean restart) {
+            this.restart = restart;
+            return this;
+        }
+
+        /**
+         * Build the batch task.
+         *
+         * @return
+         */
+        public SAMBatchTask build() {
+            return new SAMBatchTask(this);
+        }
+
+    }
+
+}
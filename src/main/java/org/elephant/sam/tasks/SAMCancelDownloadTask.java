@@ -5,8 +5,9 @@ import java.net.HttpURLConnection;
 import java.net.http.HttpResponse;
 import java.util.Objects;
 
-import org.elephant.sam.Utils;
+import org.elephant.sam.SAM;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMServerPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,8 +38,9 @@ public class SAMCancelDownloadTask extends Task<Boolean> {
 
     @Override
     protected Boolean call() throws InterruptedException, IOException {
-        final String endpointURL = String.format("%sweights/cancel/", Utils.ensureTrailingSlash(serverURL));
-        HttpResponse<String> response = HttpUtils.getRequest(endpointURL, verifySSL);
+        HttpResponse<String> response = SAM.getContext().getServerPool(serverURL, verifySSL)
+                .execute(SAMServerPool.WEIGHTS_KEY,
+                        url -> HttpUtils.getRequest(url + "weights/cancel/", verifySSL));
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
             updateMessage(response.body());
         } else {
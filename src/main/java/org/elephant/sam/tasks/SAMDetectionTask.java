@@ -1,13 +1,20 @@
 package org.elephant.sam.tasks;
 
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
+import org.elephant.sam.decoder.SAMEmbedding;
+import org.elephant.sam.decoder.SAMLocalDecoder;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMResultCache;
+import org.elephant.sam.http.SAMServerPool;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.parameters.SAMPromptParameters;
+import org.locationtech.jts.geom.Coordinate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ai.onnxruntime.OrtException;
 import javafx.concurrent.Task;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
@@ -68,6 +75,10 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
 
     private final String checkpointUrl;
 
+    private final boolean localDecoder;
+
+    private final boolean hedgeRequests;
+
     private SAMDetectionTask(Builder builder) {
         this.serverURL = builder.serverURL;
         Objects.requireNonNull(serverURL, "Server must not be null!");
@@ -78,10 +89,9 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         this.model = builder.model;
         Objects.requireNonNull(model, "Model must not be null!");
 
+        // The viewer is optional; without one, the image data, server and region(s) must be given explicitly
         QuPathViewer viewer = builder.viewer;
-        Objects.requireNonNull(builder, "Viewer must not be null!");
-
-        this.imageData = viewer.getImageData();
+        this.imageData = viewer == null ? builder.imageData : viewer.getImageData();
         Objects.requireNonNull(imageData, "ImageData must not be null!");
         if (builder.server != null) {
             if (builder.server.isRGB())
@@ -89,18 +99,23 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
             else
                 logger.warn("Cannot use non-RGB image server for detection!");
         }
-        if (this.renderedServer == null) {
+        if (this.renderedServer == null && viewer != null) {
             try {
                 this.renderedServer = Utils.createRenderedServer(viewer);
             } catch (IOException e) {
                 logger.error("Failed to create rendered server", e);
             }
         }
+        if (this.renderedServer == null && imageData.getServer().isRGB()) {
+            this.renderedServer = imageData.getServer();
+        }
+        Objects.requireNonNull(renderedServer, "RGB image server must not be null!");
 
         this.regionRequest = builder.regionRequest;
-        if (this.regionRequest == null) {
+        if (this.regionRequest == null && viewer != null) {
             this.regionRequest = Utils.getViewerRegion(viewer, renderedServer);
         }
+        Objects.requireNonNull(regionRequest, "Region request must not be null!");
 
         this.foregroundObjects = new ArrayList<>(builder.foregroundObjects);
         this.backgroundObjects = new ArrayList<>(builder.backgroundObjects);
@@ -109,6 +124,8 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         this.setName = builder.setName;
         this.setRandomColor = builder.setRandomColor;
         this.checkpointUrl = builder.checkpointUrl;
+        this.localDecoder = builder.localDecoder;
+        this.hedgeRequests = builder.hedgeRequests;
     }
 
     @Override
@@ -134,34 +151,47 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
     private List<PathObject> detectObjects(PathObject foregroundObject, List<? extends PathObject> backgroundObjects)
             throws InterruptedException, IOException {
 
-        SAMPromptParameters.Builder promptBuilder = SAMPromptParameters.builder(model)
-                .checkpointUrl(checkpointUrl)
-                .multimaskOutput(outputType != SAMOutput.SINGLE_MASK);
-
         // Determine which part of the image we need & set foreground prompts
         ROI roi = foregroundObject.getROI();
         BufferedImage img;
         double downsample = regionRequest.getDownsample();
         img = renderedServer.readRegion(regionRequest);
+        int[] bbox = null;
+        List<Coordinate> foreground = new ArrayList<>();
         if (roi instanceof RectangleROI) {
             // For rectangular prompts, add some extra context from nearby
             RegionRequest roiRegion = RegionRequest.createInstance(renderedServer.getPath(), downsample, roi);
-            promptBuilder = promptBuilder.bbox(
+            bbox = new int[] {
                     (int) ((roiRegion.getMinX() - regionRequest.getMinX()) / downsample),
                     (int) ((roiRegion.getMinY() - regionRequest.getMinY()) / downsample),
                     (int) Math.round((roiRegion.getMaxX() - regionRequest.getMinX()) / downsample),
-                    (int) Math.round((roiRegion.getMaxY() - regionRequest.getMinY()) / downsample));
+                    (int) Math.round((roiRegion.getMaxY() - regionRequest.getMinY()) / downsample) };
         } else {
-            promptBuilder = promptBuilder.addToForeground(
-                    Utils.getCoordinates(roi, regionRequest, img.getWidth(), img.getHeight()));
+            foreground.addAll(Utils.getCoordinates(roi, regionRequest, img.getWidth(), img.getHeight()));
         }
 
         // Add any background prompts
-        for (PathObject background : backgroundObjects) {
-            promptBuilder = promptBuilder.addToBackground(
-                    Utils.getCoordinates(background.getROI(), regionRequest, img.getWidth(), img.getHeight()));
+        List<Coordinate> background = new ArrayList<>();
+        for (PathObject backgroundObject : backgroundObjects) {
+            background.addAll(
+                    Utils.getCoordinates(backgroundObject.getROI(), regionRequest, img.getWidth(), img.getHeight()));
+        }
+
+        if (localDecoder && model.isLocalDecoderCompatible()) {
+            List<PathObject> decoded = decodeLocally(img, bbox, foreground, background,
+                    foregroundObject.getPathClass());
+            if (decoded != null)
+                return decoded;
         }
 
+        SAMPromptParameters.Builder promptBuilder = SAMPromptParameters.builder(model)
+                .checkpointUrl(checkpointUrl)
+                .multimaskOutput(outputType != SAMOutput.SINGLE_MASK)
+                .addToForeground(foreground)
+                .addToBackground(background);
+        if (bbox != null)
+            promptBuilder = promptBuilder.bbox(bbox[0], bbox[1], bbox[2], bbox[3]);
+
         final SAMPromptParameters prompt = promptBuilder
                 .b64img(Utils.base64EncodePNG(img))
                 .build();
@@ -169,26 +199,64 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         if (isCancelled())
             return Collections.emptyList();
 
-        HttpResponse<String> response = HttpUtils.postRequest(serverURL, verifySSL,
-                GsonTools.getInstance().toJson(prompt));
+        final String body = GsonTools.getInstance().toJson(prompt);
+        final String cacheKey = SAMResultCache.createKey(serverURL, body);
+        final String cached = SAM.getContext().getResultCache().get(cacheKey);
+        if (cached != null)
+            return parseResponse(cached, regionRequest, foregroundObject.getPathClass());
+
+        final SAMServerPool pool = SAM.getContext().getServerPool(serverURL, verifySSL);
+        final String limitKey = "prompt/" + model.modelName();
+        HttpResponse<String> response = SAM.getContext().getSingleFlight().execute(cacheKey, () -> {
+            HttpResponse<String> r = hedgeRequests ? pool.postHedged("", body, limitKey)
+                    : pool.execute(null, limitKey, url -> HttpUtils.postRequest(url, verifySSL, body));
+            if (r.statusCode() == HttpURLConnection.HTTP_OK)
+                SAM.getContext().getResultCache().put(cacheKey, r.body());
+            return r;
+        });
 
         if (isCancelled())
             return Collections.emptyList();
 
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-            return parseResponse(response, regionRequest, foregroundObject.getPathClass());
+            return parseResponse(response.body(), regionRequest, foregroundObject.getPathClass());
         } else {
             logger.error("HTTP response: {}, {}", response.statusCode(), response.body());
             return Collections.emptyList();
         }
     }
 
-    private List<PathObject> parseResponse(HttpResponse<String> response, RegionRequest regionRequest,
-            PathClass pathClass) {
-        List<PathObject> samObjects = Utils.parsePathObjects(response.body());
+    /**
+     * Decode the prompt on the CPU from the embedding of the image.
+     * 
+     * @return the detected objects, or null if local decoding is not available and the server should be used
+     */
+    private List<PathObject> decodeLocally(BufferedImage img, int[] bbox, List<Coordinate> foreground,
+            List<Coordinate> background, PathClass pathClass) throws InterruptedException {
+        try {
+            SAMLocalDecoder decoder = SAMLocalDecoder.getInstance(serverURL, verifySSL, model, checkpointUrl);
+            SAMEmbedding embedding = decoder.getEmbedding(img);
+            if (isCancelled())
+                return Collections.emptyList();
+            List<PathObject> decoded = decoder.decode(embedding, regionRequest, bbox, foreground, background,
+                    outputType != SAMOutput.SINGLE_MASK);
+            return updateObjects(decoded, null, regionRequest, pathClass);
+        } catch (IOException | OrtException e) {
+            logger.warn("Unable to decode locally, sending the prompt to the server: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private List<PathObject> parseResponse(String body, RegionRequest regionRequest, PathClass pathClass) {
+        List<PathObject> samObjects = Utils.parsePathObjects(body);
         AffineTransform transform = new AffineTransform();
         transform.translate(regionRequest.getMinX(), regionRequest.getMinY());
         transform.scale(regionRequest.getDownsample(), regionRequest.getDownsample());
+        return updateObjects(samObjects, transform, regionRequest, pathClass);
+    }
+
+    private List<PathObject> updateObjects(List<PathObject> samObjects, AffineTransform transform,
+            RegionRequest regionRequest, PathClass pathClass) {
         ImagePlane plane = regionRequest.getImagePlane();
         // Retain the original classification, and set names/colors if required
         List<PathObject> updatedObjects = new ArrayList<>();
@@ -214,12 +282,27 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         return new Builder(viewer);
     }
 
+    /**
+     * New builder for a SAM task that does not depend on a viewer, e.g. for headless scripts or benchmarks.
+     * <p>
+     * An RGB server and the region(s) to process should be specified explicitly. If no server is given, the server
+     * of the image data is used when it is RGB.
+     * 
+     * @param imageData
+     *            the image data containing the image to be processed
+     * @return the builder
+     */
+    public static Builder builder(ImageData<BufferedImage> imageData) {
+        return new Builder(imageData);
+    }
+
     /**
      * Builder for a SAMDetectionTask class.
      */
     public static class Builder {
 
         private QuPathViewer viewer;
+        private ImageData<BufferedImage> imageData;
 
         private Collection<PathObject> foregroundObjects = new LinkedHashSet<>();
         private Collection<PathObject> backgroundObjects = new LinkedHashSet<>();
@@ -234,11 +317,17 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         private boolean setRandomColor = true;
         private boolean setName = true;
         private String checkpointUrl;
+        private boolean localDecoder;
+        private boolean hedgeRequests;
 
         private Builder(QuPathViewer viewer) {
             this.viewer = viewer;
         }
 
+        private Builder(ImageData<BufferedImage> imageData) {
+            this.imageData = imageData;
+        }
+
         /**
          * Specify the server URL (required).
          * 
@@ -312,7 +401,7 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         /**
          * Optionally specify a server to provide the pixels.
          * This should be an RGB server. Otherwise, a rendered server will be created
-         * from the viewer.
+         * from the viewer, if available.
          * 
          * @param server
          * @return this builder
@@ -323,7 +412,8 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
         }
 
         /**
-         * Specify the region request (required).
+         * Specify the region request.
+         * This is required if the builder was not created from a viewer.
          * 
          * @param regionRequest
          * @return this builder
@@ -369,6 +459,36 @@ public class SAMDetectionTask extends Task<List<PathObject>> {
             return this;
         }
 
+        /**
+         * Decode prompts on the CPU, requesting only the embedding of the region from the server.
+         * Repeated prompts on the same region then need no request at all. This is ignored for models that
+         * don't support it (see {@link SAMType#isLocalDecoderCompatible()}), and prompts are sent to the server as
+         * usual if the server doesn't provide embeddings.
+         * Default is false.
+         * 
+         * @param localDecoder
+         * @return this builder
+         */
+        public Builder localDecoder(final boolean localDecoder) {
+            this.localDecoder = localDecoder;
+            return this;
+        }
+
+        /**
+         * If several servers are used, also send the request to a second server when the first is slower than
+         * usual, and use whichever answers first.
+         * This reduces the worst-case delay of interactive prompts, at the cost of a few duplicate requests (see
+         * {@link SAMServerPool#postHedged(String, String, String)}).
+         * Default is false.
+         * 
+         * @param hedgeRequests
+         * @return this builder
+         */
+        public Builder hedgeRequests(final boolean hedgeRequests) {
+            this.hedgeRequests = hedgeRequests;
+            return this;
+        }
+
         /**
          * Build the detection task.
          * 
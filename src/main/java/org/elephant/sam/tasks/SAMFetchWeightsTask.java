@@ -5,10 +5,13 @@ import com.google.gson.JsonElement;
 
 import javafx.concurrent.Task;
 
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.entities.SAMWeights;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMResultCache;
+import org.elephant.sam.http.SAMServerPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,9 +67,13 @@ public class SAMFetchWeightsTask extends Task<List<SAMWeights>> {
         if (isCancelled())
             return Collections.emptyList();
 
-        final String endpointURL = String.format("%sweights/?type=%s", Utils.ensureTrailingSlash(serverURL),
-                samType.modelName());
-        HttpResponse<String> response = HttpUtils.getRequest(endpointURL, verifySSL);
+        // The weights are fetched on every model change and again after a registration, often at the same time
+        final String key = SAMResultCache.createKey(
+                String.format("%sweights/?type=%s", Utils.ensureTrailingSlash(serverURL), samType.modelName()), "");
+        HttpResponse<String> response = SAM.getContext().getSingleFlight().execute(key,
+                () -> SAM.getContext().getServerPool(serverURL, verifySSL)
+                        .execute(SAMServerPool.WEIGHTS_KEY, url -> HttpUtils.getRequest(
+                                String.format("%sweights/?type=%s", url, samType.modelName()), verifySSL)));
 
         if (isCancelled())
             return Collections.emptyList();
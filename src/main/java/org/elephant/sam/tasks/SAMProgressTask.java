@@ -5,9 +5,10 @@ import java.net.HttpURLConnection;
 import java.net.http.HttpResponse;
 import java.util.Objects;
 
-import org.elephant.sam.Utils;
+import org.elephant.sam.SAM;
 import org.elephant.sam.entities.SAMProgress;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMServerPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,9 +39,10 @@ public class SAMProgressTask extends Task<Boolean> {
 
     @Override
     protected Boolean call() throws InterruptedException, IOException {
-        final String endpointURL = String.format("%sprogress/", Utils.ensureTrailingSlash(serverURL));
+        final SAMServerPool pool = SAM.getContext().getServerPool(serverURL, verifySSL);
         while (!isCancelled()) {
-            HttpResponse<String> response = HttpUtils.getRequest(endpointURL, verifySSL);
+            HttpResponse<String> response = pool.execute(SAMServerPool.WEIGHTS_KEY,
+                    url -> HttpUtils.getRequest(url + "progress/", verifySSL));
             if (response.statusCode() == HttpURLConnection.HTTP_OK) {
                 SAMProgress progress = parseResponse(response);
                 int percent = progress.getPercent();
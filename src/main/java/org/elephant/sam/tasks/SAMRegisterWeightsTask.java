@@ -1,8 +1,9 @@
 package org.elephant.sam.tasks;
 
-import org.elephant.sam.Utils;
+import org.elephant.sam.SAM;
 import org.elephant.sam.entities.SAMWeights;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMServerPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,10 +55,10 @@ public class SAMRegisterWeightsTask extends Task<String> {
         if (isCancelled())
             return "Registration task cancelled";
 
-        final String endpointURL = String.format("%sweights/", Utils.ensureTrailingSlash(serverURL));
         final SAMWeights samWeights = new SAMWeights(samType, name, url);
-        HttpResponse<String> response = HttpUtils.postRequest(endpointURL, verifySSL,
-                GsonTools.getInstance().toJson(samWeights));
+        HttpResponse<String> response = SAM.getContext().getServerPool(serverURL, verifySSL)
+                .execute(SAMServerPool.WEIGHTS_KEY, baseURL -> HttpUtils.postRequest(baseURL + "weights/",
+                        verifySSL, GsonTools.getInstance().toJson(samWeights)));
 
         if (isCancelled())
             return "Registration task cancelled";
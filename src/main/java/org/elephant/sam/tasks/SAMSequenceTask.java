@@ -1,26 +1,37 @@
 package org.elephant.sam.tasks;
 
-import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
-import org.apache.hc.core5.http.ContentType;
+import org.elephant.sam.MaskInterpolator;
+import org.elephant.sam.SAM;
 import org.elephant.sam.Utils;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.http.HttpUtils;
+import org.elephant.sam.http.SAMFrameUploader;
+import org.elephant.sam.http.SAMJobClient;
+import org.elephant.sam.http.SAMResultCache;
+import org.elephant.sam.http.SAMServerCapabilities;
+import org.elephant.sam.http.SAMServerPool;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.entities.SAMPromptMode;
+import org.elephant.sam.parameters.SAM2VideoPromptObject;
 import org.elephant.sam.parameters.SAM2VideoPromptParameters;
+import org.elephant.sam.parameters.SAM3VideoPromptObject;
 import org.elephant.sam.parameters.SAMVideoPromptObject;
+import org.locationtech.jts.geom.Coordinate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.concurrent.Task;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
 
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
@@ -28,13 +39,28 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.http.HttpResponse;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -82,6 +108,39 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
 
     private final Map<Integer, PathClass> indexToPathClass;
 
+    private final int uploadConnections;
+
+    private final boolean reuseUploads;
+
+    private final boolean sharedMemory;
+
+    private final Consumer<List<PathObject>> frameListener;
+
+    private final int windowSize;
+
+    private final int windowOverlap;
+
+    private final boolean bidirectional;
+
+    private final int keyframeStep;
+
+    private final int resumeFrame;
+
+    private final List<PathObject> previousObjects;
+
+    private final AtomicInteger framesProcessed = new AtomicInteger(0);
+
+    /**
+     * Set when the backward pass of a bidirectional run should stop because the forward pass failed.
+     */
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+    /**
+     * The object ID that the server reported for each detected object, so that objects of the same class are told
+     * apart.
+     */
+    private final Map<PathObject, Integer> trackIDs = Collections.synchronizedMap(new IdentityHashMap<>());
+
     private SAMSequenceTask(Builder builder) {
         this.serverURL = builder.serverURL;
         Objects.requireNonNull(serverURL, "Server must not be null!");
@@ -98,10 +157,9 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         this.promptMode = builder.promptMode;
         Objects.requireNonNull(promptMode, "Prompt mode must not be null!");
 
+        // The viewer is optional; without one, the image data, server and region(s) must be given explicitly
         QuPathViewer viewer = builder.viewer;
-        Objects.requireNonNull(viewer, "Viewer must not be null!");
-
-        this.imageData = viewer.getImageData();
+        this.imageData = viewer == null ? builder.imageData : viewer.getImageData();
         Objects.requireNonNull(imageData, "ImageData must not be null!");
         if (builder.server != null) {
             if (builder.server.isRGB())
@@ -109,16 +167,22 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
             else
                 logger.warn("Cannot use non-RGB image server for detection!");
         }
-        if (this.renderedServer == null) {
+        if (this.renderedServer == null && viewer != null) {
             try {
                 this.renderedServer = Utils.createRenderedServer(viewer);
             } catch (IOException e) {
                 logger.error("Failed to create rendered server", e);
             }
         }
+        if (this.renderedServer == null && imageData.getServer().isRGB()) {
+            this.renderedServer = imageData.getServer();
+        }
+        Objects.requireNonNull(renderedServer, "RGB image server must not be null!");
 
         this.regionRequests.clear();
         this.regionRequests.addAll(builder.regionRequests);
+        if (regionRequests.isEmpty())
+            throw new IllegalArgumentException("Region requests must not be empty!");
 
         this.planePosition = builder.planePosition;
 
@@ -129,93 +193,511 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         this.setRandomColor = builder.setRandomColor;
         this.checkpointUrl = builder.checkpointUrl;
         this.indexToPathClass = builder.indexToPathClass;
+        this.uploadConnections = builder.uploadConnections;
+        this.reuseUploads = builder.reuseUploads;
+        this.sharedMemory = builder.sharedMemory;
+        this.frameListener = builder.frameListener;
+        this.windowSize = builder.windowSize;
+        this.windowOverlap = builder.windowOverlap;
+        this.bidirectional = builder.bidirectional;
+        this.keyframeStep = builder.keyframeStep;
+        this.resumeFrame = builder.resumeFrame;
+        this.previousObjects = new ArrayList<>(builder.previousObjects);
     }
 
-    private boolean uploadImages(String dirname) throws IOException, InterruptedException {
-        int paddingWidth = String.valueOf(regionRequests.size()).length();
-        String filenameFormat = String.format("%%0%dd.jpg", paddingWidth);
-        AtomicBoolean cancelled = new AtomicBoolean(false);
-        AtomicInteger progress = new AtomicInteger(0);
-        final int total = regionRequests.size();
-        IntStream.range(0, total).parallel().forEach(i -> {
-            if (cancelled.get())
-                return;
-            final String boundary = "----------------" + System.currentTimeMillis();
-            try {
-                final BufferedImage img = renderedServer.readRegion(regionRequests.get(i));
-                final String endpointURL = String.format("%supload/", Utils.ensureTrailingSlash(serverURL));
-                MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create()
-                        .setBoundary(boundary)
-                        .addTextBody("dirname", dirname, ContentType.TEXT_PLAIN)
-                        .addBinaryBody("file", Utils.bufferedImageToJpegBytes(img), ContentType.create("image/jpeg"),
-                                String.format(filenameFormat, i));
-                HttpResponse<String> response = HttpUtils.postMultipartRequest(endpointURL, verifySSL, entityBuilder);
-                if (response.statusCode() != HttpURLConnection.HTTP_OK) {
-                    logger.error("HTTP response: {}, {}", response.statusCode(), response.body());
-                    cancelled.set(true);
-                } else {
-                    updateMessage(String.format("%d/%d images uploaded", progress.incrementAndGet(), total));
-                    logger.info("Uploaded image {}", response.body());
-                }
-            } catch (IOException e) {
-                logger.error("Failed to upload image", e);
-                cancelled.set(true);
-            }
-        });
-        if (cancelled.get()) {
-            return false;
-        }
-        return true;
+    /**
+     * Uploads that can be reused are kept on the same server for later runs on the same image. The backward pass of a
+     * bidirectional run has its own key, so that the two passes go to different servers where possible.
+     */
+    private String getStickyKey(boolean backward) {
+        if (!reuseUploads)
+            return null;
+        return "video:" + renderedServer.getPath() + (backward ? ":backward" : "");
+    }
+
+    /**
+     * Upload the images and return the name of the directory on the server, or null if the upload failed.
+     */
+    private String uploadImages(SAMServerPool.Lease lease, List<RegionRequest> frames) throws InterruptedException {
+        SAMFrameUploader uploader = SAMFrameUploader.builder(renderedServer, frames)
+                .serverURL(lease.getServerURL())
+                .verifySSL(verifySSL)
+                .connections(uploadConnections)
+                .limiter(SAM.getContext().getServerPool(serverURL, verifySSL)
+                        .getLimiter(lease.getServerURL(), "upload/"))
+                .sharedMemory(sharedMemory ? SAM.getContext().getSharedMemory() : null)
+                .build();
+        if (reuseUploads)
+            return uploader.uploadContentAddressed(this::isStopped, this::updateMessage);
+        String dirname = UUID.randomUUID().toString();
+        return uploader.upload(dirname, this::isStopped, this::updateMessage) ? dirname : null;
     }
 
     @Override
     protected List<PathObject> call() throws Exception {
         try {
-            String dirname = UUID.randomUUID().toString();
-            if (uploadImages(dirname)) {
-                return detectObjects(dirname);
+            framesProcessed.set(0);
+            stopped.set(false);
+            List<Integer> keyframes = getKeyframes();
+            final int firstPrompt = objs.keySet().stream().mapToInt(Integer::intValue).min().orElse(0);
+            final int lastPrompt = objs.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+            final int resumeFrom = getResumeFrame();
+            List<PathObject> detected;
+            if (resumeFrom > 0) {
+                // Start one frame early so that the previous results can seed the propagation
+                keyframes = keyframes.stream().filter(frame -> frame >= resumeFrom).collect(Collectors.toList());
+                keyframes.add(0, resumeFrom - 1);
+                detected = propagate(keyframes, mapResumePrompts(keyframes), frame -> frame >= resumeFrom, false);
+            } else if (bidirectional && firstPrompt > 0) {
+                detected = detectObjectsBidirectional(keyframes, firstPrompt, lastPrompt);
             } else {
+                detected = propagate(keyframes, mapPrompts(keyframes), frame -> true, false);
+            }
+            if (detected == null) {
                 cancel();
                 return Collections.emptyList();
             }
+            if (keyframes.size() < regionRequests.size())
+                detected.addAll(interpolateBetweenKeyframes(keyframes, detected));
+            updateMessage("Processing done.");
+            return detected;
         } catch (InterruptedException e) {
             logger.warn("Interrupted while detecting objects", e);
             return Collections.emptyList();
         }
     }
 
-    private List<PathObject> detectObjects(String dirname)
+    /**
+     * Propagate forwards from the first prompted frame and backwards from the last prompted frame at the same time,
+     * and merge the results. Frames before the first prompted frame are taken from the backward pass, all others from
+     * the forward pass.
+     */
+    private List<PathObject> detectObjectsBidirectional(List<Integer> keyframes, int firstPrompt, int lastPrompt)
+            throws InterruptedException, IOException {
+        List<Integer> backwardFrames = keyframes.stream()
+                .filter(frame -> frame <= lastPrompt)
+                .collect(Collectors.toList());
+        Collections.reverse(backwardFrames);
+        Map<Integer, List<SAMVideoPromptObject>> backwardObjs = mapPrompts(backwardFrames);
+        CompletableFuture<List<PathObject>> backward = CompletableFuture.supplyAsync(() -> {
+            try {
+                return propagate(backwardFrames, backwardObjs, frame -> frame < firstPrompt, true);
+            } catch (InterruptedException | IOException e) {
+                throw new CompletionException(e);
+            }
+        }, SAM.getContext().getExecutor());
+
+        List<Integer> forwardFrames = keyframes.stream()
+                .filter(frame -> frame >= firstPrompt)
+                .collect(Collectors.toList());
+        Map<Integer, List<SAMVideoPromptObject>> forwardObjs = mapPrompts(forwardFrames);
+        List<PathObject> forward = null;
+        try {
+            forward = propagate(forwardFrames, forwardObjs, frame -> true, false);
+        } finally {
+            // The forward pass failed, was cancelled or threw
+            if (forward == null)
+                stopBackward(backward);
+        }
+        if (forward == null)
+            return null;
+        List<PathObject> backwardDetected;
+        try {
+            backwardDetected = backward.get();
+        } catch (ExecutionException e) {
+            logger.error("Backward propagation failed", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            stopBackward(backward);
+            throw e;
+        }
+        if (backwardDetected == null)
+            return null;
+        List<PathObject> detected = new ArrayList<>(backwardDetected);
+        detected.addAll(forward);
+        return detected;
+    }
+
+    private boolean isStopped() {
+        return isCancelled() || stopped.get();
+    }
+
+    /**
+     * Stop the backward pass at its next check for cancellation.
+     */
+    private void stopBackward(CompletableFuture<List<PathObject>> backward) {
+        stopped.set(true);
+        backward.cancel(true);
+    }
+
+    /**
+     * Get the indices of the region requests to send to the server: every {@code keyframeStep}-th frame, the last
+     * frame and every prompted frame.
+     */
+    private List<Integer> getKeyframes() {
+        final int total = regionRequests.size();
+        if (keyframeStep <= 1)
+            return IntStream.range(0, total).boxed().collect(Collectors.toList());
+        TreeSet<Integer> keyframes = new TreeSet<>();
+        for (int frame = 0; frame < total; frame += keyframeStep)
+            keyframes.add(frame);
+        keyframes.add(total - 1);
+        objs.keySet().stream().filter(frame -> frame >= 0 && frame < total).forEach(keyframes::add);
+        if (getResumeFrame() > 0)
+            keyframes.add(getResumeFrame());
+        return new ArrayList<>(keyframes);
+    }
+
+    /**
+     * Get the first frame that is propagated again, relative to the index offset.
+     * <p>
+     * A bidirectional run propagates the frames before its first prompt backwards from its last prompt, so a change
+     * at or before the last prompt affects those frames too, and all frames are propagated again.
+     * 
+     * @return the first frame whose objects are returned, or 0 if all frames are processed
+     */
+    public int getResumeFrame() {
+        if (resumeFrame <= 0)
+            return 0;
+        final int firstPrompt = objs.keySet().stream().mapToInt(Integer::intValue).min().orElse(0);
+        final int lastPrompt = objs.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+        if (bidirectional && firstPrompt > 0 && resumeFrame <= lastPrompt)
+            return 0;
+        return resumeFrame;
+    }
+
+    /**
+     * Check whether the frames before the first prompt are propagated backwards from the prompts.
+     * 
+     * @return true if the run is bidirectional
+     */
+    public boolean isBidirectional() {
+        return bidirectional;
+    }
+
+    /**
+     * Key the prompts by their position in a list of frames.
+     */
+    private Map<Integer, List<SAMVideoPromptObject>> mapPrompts(List<Integer> frames) {
+        Map<Integer, List<SAMVideoPromptObject>> prompts = new HashMap<>();
+        objs.forEach((key, value) -> {
+            int position = frames.indexOf(key);
+            if (position >= 0)
+                prompts.put(position, value);
+        });
+        return prompts;
+    }
+
+    /**
+     * Key the prompts by their position in a list of frames that starts on the frame before {@code resumeFrame},
+     * adding prompts on that first frame from the previous results for every object that has no prompt there.
+     */
+    private Map<Integer, List<SAMVideoPromptObject>> mapResumePrompts(List<Integer> frames) {
+        Map<Integer, List<SAMVideoPromptObject>> prompts = mapPrompts(frames);
+        final Map<PathClass, Integer> pathClassToIndex = new HashMap<>();
+        indexToPathClass.forEach((index, pathClass) -> pathClassToIndex.put(pathClass, index));
+        final Set<Integer> prompted = prompts.getOrDefault(0, Collections.emptyList()).stream()
+                .map(SAMVideoPromptObject::getObjID)
+                .collect(Collectors.toSet());
+        final int seedFrame = indexOffset + frames.get(0);
+        for (PathObject pathObject : previousObjects) {
+            Integer objID = pathClassToIndex.get(pathObject.getPathClass());
+            if (objID != null && getFrameIndex(pathObject) == seedFrame && prompted.add(objID))
+                prompts.computeIfAbsent(0, k -> new ArrayList<>())
+                        .add(createPrompt(pathObject, objID, regionRequests.get(frames.get(0))));
+        }
+        return prompts;
+    }
+
+    /**
+     * Fill the frames between keyframes by interpolating the shape of each object that was found on both
+     * neighbouring keyframes. Objects are matched by the object ID reported by the server, so that objects of the
+     * same class are interpolated separately. Frames are interpolated in parallel.
+     */
+    private List<PathObject> interpolateBetweenKeyframes(List<Integer> keyframes, List<PathObject> detected) {
+        Map<Integer, Map<Integer, PathObject>> objectsByFrame = new HashMap<>();
+        for (PathObject pathObject : detected) {
+            Integer objID = trackIDs.get(pathObject);
+            if (objID != null)
+                objectsByFrame.computeIfAbsent(getFrameIndex(pathObject) - indexOffset, k -> new LinkedHashMap<>())
+                        .putIfAbsent(objID, pathObject);
+        }
+        final MaskInterpolator interpolator = new MaskInterpolator(256);
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                ThreadTools.createThreadFactory("SAM-interpolate", true));
+        List<PathObject> interpolated = new ArrayList<>();
+        try {
+            List<CompletableFuture<List<PathObject>>> futures = new ArrayList<>();
+            for (int k = 0; k + 1 < keyframes.size(); k++) {
+                final int frame1 = keyframes.get(k);
+                final int frame2 = keyframes.get(k + 1);
+                final Map<Integer, PathObject> objects1 = objectsByFrame.getOrDefault(frame1, Collections.emptyMap());
+                final Map<Integer, PathObject> objects2 = objectsByFrame.getOrDefault(frame2, Collections.emptyMap());
+                for (int frame = frame1 + 1; frame < frame2; frame++) {
+                    final int f = frame;
+                    final double weight = (double) (f - frame1) / (frame2 - frame1);
+                    futures.add(CompletableFuture.supplyAsync(
+                            () -> interpolateFrame(interpolator, objects1, objects2, weight, f), pool));
+                }
+            }
+            int n = 0;
+            for (CompletableFuture<List<PathObject>> future : futures) {
+                if (isCancelled())
+                    return Collections.emptyList();
+                List<PathObject> frameObjects = future.join();
+                interpolated.addAll(frameObjects);
+                if (frameListener != null && !frameObjects.isEmpty())
+                    frameListener.accept(frameObjects);
+                updateMessage(String.format("%d/%d frames interpolated", ++n, futures.size()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return interpolated;
+    }
+
+    private List<PathObject> interpolateFrame(MaskInterpolator interpolator, Map<Integer, PathObject> objects1,
+            Map<Integer, PathObject> objects2, double weight, int frame) {
+        List<PathObject> pathObjects = new ArrayList<>();
+        for (Map.Entry<Integer, PathObject> entry : objects1.entrySet()) {
+            PathObject pathObject1 = entry.getValue();
+            PathObject pathObject2 = objects2.get(entry.getKey());
+            if (pathObject2 == null)
+                continue;
+            ImagePlane plane = pathObject1.getROI().getImagePlane();
+            if (promptMode == SAMPromptMode.XYZ) {
+                plane = ImagePlane.getPlane(indexOffset + frame, plane.getT());
+            } else if (promptMode == SAMPromptMode.XYT) {
+                plane = ImagePlane.getPlane(plane.getZ(), indexOffset + frame);
+            }
+            ROI roi = interpolator.interpolate(pathObject1.getROI(), pathObject2.getROI(), weight, plane);
+            if (roi == null)
+                continue;
+            PathObject pathObject = pathObject1.isDetection()
+                    ? PathObjects.createDetectionObject(roi, pathObject1.getPathClass())
+                    : PathObjects.createAnnotationObject(roi, pathObject1.getPathClass());
+            if (setName)
+                pathObject.setName("SAM (interpolated)");
+            pathObject.setColor(pathObject1.getColor());
+            pathObjects.add(pathObject);
+        }
+        return pathObjects;
+    }
+
+    /**
+     * Propagate the prompts through frames in the given order.
+     * <p>
+     * If there are more frames than the window size, they are processed in overlapping windows so that the server
+     * only ever holds one window of frames. Each window after the first starts on a frame that was already processed
+     * by the previous window. The objects found on that frame become the prompts for the next window, keeping their
+     * object IDs so that each object keeps its classification across windows. If no objects are found on that frame,
+     * the last objects found are used as the prompts instead, with a warning. Frames in the overlap are only
+     * reported once.
+     * 
+     * @param frames
+     *            indices of the region requests, in the order they are sent to the server
+     * @param prompts
+     *            the prompts, keyed by position in {@code frames}
+     * @param keep
+     *            selects the region request indices whose objects are reported; other frames are only used to
+     *            carry objects to the next window
+     * @param backward
+     *            whether this is the backward pass of a bidirectional run
+     * @return the detected objects, or null if the request failed or was cancelled
+     */
+    private List<PathObject> propagate(List<Integer> frames, Map<Integer, List<SAMVideoPromptObject>> prompts,
+            IntPredicate keep, boolean backward) throws InterruptedException, IOException {
+        final int total = frames.size();
+        final int size = windowSize > 0 ? Math.min(windowSize, total) : total;
+        final int overlap = Math.max(1, Math.min(windowOverlap, size / 2));
+        final int step = size < total ? size - overlap : total;
+        final List<PathObject> detected = new ArrayList<>();
+        List<PathObject> carried = Collections.emptyList();
+        int carriedFrame = -1;
+        for (int start = 0; start < total; start += step) {
+            if (isStopped())
+                return null;
+            final int end = Math.min(start + size, total);
+            final List<Integer> windowFrames = frames.subList(start, end);
+            if (size < total)
+                logger.info("Processing frames {}-{}", windowFrames.get(0), windowFrames.get(windowFrames.size() - 1));
+
+            Map<Integer, List<SAMVideoPromptObject>> windowObjs = new HashMap<>();
+            for (Map.Entry<Integer, List<SAMVideoPromptObject>> entry : prompts.entrySet()) {
+                if (entry.getKey() >= start && entry.getKey() < end)
+                    windowObjs.computeIfAbsent(entry.getKey() - start, k -> new ArrayList<>())
+                            .addAll(entry.getValue());
+            }
+            for (PathObject pathObject : carried) {
+                Integer objID = trackIDs.get(pathObject);
+                if (objID != null)
+                    windowObjs.computeIfAbsent(0, k -> new ArrayList<>())
+                            .add(createPrompt(pathObject, objID, regionRequests.get(frames.get(start))));
+            }
+            final int skip = start == 0 ? 0 : overlap;
+            List<PathObject> windowDetected = new ArrayList<>();
+            if (!windowObjs.isEmpty() || model.isSAM3Compatible()) {
+                // The frames are only available on the server they were uploaded to
+                try (SAMServerPool.Lease lease = SAM.getContext().getServerPool(serverURL, verifySSL)
+                        .acquire(getStickyKey(backward), endpointName + "/" + model.modelName())) {
+                    String dirname = uploadImages(lease, windowFrames.stream()
+                            .map(regionRequests::get)
+                            .collect(Collectors.toList()));
+                    if (dirname == null)
+                        return null;
+                    try {
+                        if (!detectObjects(lease.getServerURL(), dirname, windowObjs, windowFrames, skip, keep,
+                                windowDetected))
+                            return null;
+                    } catch (IOException e) {
+                        lease.fail(e.getMessage());
+                        throw e;
+                    }
+                }
+                windowDetected.stream()
+                        .filter(pathObject -> keep.test(getFrameIndex(pathObject) - indexOffset))
+                        .forEach(detected::add);
+            } else {
+                logger.info("No objects to propagate in frames {}-{}", windowFrames.get(0),
+                        windowFrames.get(windowFrames.size() - 1));
+            }
+            if (end == total)
+                break;
+            final int carryFrame = indexOffset + frames.get(start + step);
+            List<PathObject> found = windowDetected.stream()
+                    .filter(pathObject -> getFrameIndex(pathObject) == carryFrame)
+                    .collect(Collectors.toList());
+            if (found.isEmpty() && !carried.isEmpty() && !model.isSAM3Compatible()) {
+                // Without prompts the next window would not be processed, so keep following the last objects found
+                logger.warn("No objects found on frame {}, prompting the next window with the objects of frame {}",
+                        carryFrame, carriedFrame);
+            } else {
+                carried = found;
+                carriedFrame = carryFrame;
+            }
+        }
+        return detected;
+    }
+
+    /**
+     * Create a prompt for the next window from an object found on its first frame.
+     */
+    private SAMVideoPromptObject createPrompt(PathObject pathObject, int objID, RegionRequest regionRequest) {
+        final ROI roi = pathObject.getROI();
+        final double downsample = regionRequest.getDownsample();
+        final double x1 = (roi.getBoundsX() - regionRequest.getMinX()) / downsample;
+        final double y1 = (roi.getBoundsY() - regionRequest.getMinY()) / downsample;
+        final double x2 = (roi.getBoundsX() + roi.getBoundsWidth() - regionRequest.getMinX()) / downsample;
+        final double y2 = (roi.getBoundsY() + roi.getBoundsHeight() - regionRequest.getMinY()) / downsample;
+        if (model.isSAM3Compatible())
+            return SAM3VideoPromptObject.builder(objID).addPositiveBbox(x1, y1, x2 - x1, y2 - y1).build();
+        // An interior point helps to recover thin or concave masks from the bounding box
+        Coordinate interior = roi.getGeometry().getInteriorPoint().getCoordinate();
+        return SAM2VideoPromptObject.builder(objID)
+                .bbox((int) x1, (int) y1, (int) Math.round(x2), (int) Math.round(y2))
+                .addToForeground(Collections.singletonList(new Coordinate(
+                        (interior.x - regionRequest.getMinX()) / downsample,
+                        (interior.y - regionRequest.getMinY()) / downsample)))
+                .build();
+    }
+
+    private int getFrameIndex(PathObject pathObject) {
+        return promptMode == SAMPromptMode.XYT ? pathObject.getROI().getT() : pathObject.getROI().getZ();
+    }
+
+    /**
+     * Run the prediction on uploaded frames, adding the objects of every frame from position {@code skip} onwards
+     * to {@code detected}. Only objects of frames selected by {@code keep} are passed to the frame listener.
+     * 
+     * @return false if the request failed or was cancelled
+     */
+    private boolean detectObjects(String serverURL, String dirname,
+            Map<Integer, List<SAMVideoPromptObject>> prompts, List<Integer> frames, int skip, IntPredicate keep,
+            List<PathObject> detected)
             throws InterruptedException, IOException {
         final SAM2VideoPromptParameters prompt = SAM2VideoPromptParameters.builder(model)
-                .objs(objs)
+                .objs(prompts)
                 .dirname(dirname)
                 .axes(promptMode.toString())
                 .planePosition(planePosition)
                 .checkpointUrl(checkpointUrl)
                 .build();
 
-        if (isCancelled())
-            return Collections.emptyList();
+        if (isStopped())
+            return false;
 
         updateMessage("Processing images...");
-        final String endpointURL = String.format("%s%s/", Utils.ensureTrailingSlash(serverURL), endpointName);
-        HttpResponse<String> response = HttpUtils.postRequest(endpointURL, verifySSL,
-                GsonTools.getInstance().toJson(prompt));
+        final String endpointURL = serverURL + endpointName + "/";
+        final int total = regionRequests.size();
+        final Set<Integer> skipped = frames.subList(0, skip).stream()
+                .map(frame -> indexOffset + frame)
+                .collect(Collectors.toSet());
+        final String body = GsonTools.getInstance().toJson(prompt);
+        final Predicate<String> lineHandler = line -> {
+            // Each line holds the objects of one frame
+            if (isStopped())
+                return false;
+            List<PathObject> frameObjects = parseResponse(line, regionRequests.get(0), frames);
+            if (!frameObjects.isEmpty() && skipped.contains(getFrameIndex(frameObjects.get(0))))
+                return true;
+            acceptFrame(frameObjects, keep, detected);
+            updateMessage(String.format("%d/%d frames processed",
+                    Math.min(total, framesProcessed.incrementAndGet()), total));
+            return true;
+        };
+        final SAMServerCapabilities capabilities = SAMServerCapabilities.getCached(serverURL);
+        HttpResponse<String> response = null;
+        // Long runs are submitted as jobs, whose frames are fetched as they are ready
+        if (capabilities.supports(SAMServerCapabilities.JOBS))
+            response = new SAMJobClient(verifySSL, this::isStopped, this::updateMessage)
+                    .run(serverURL, endpointName + "/", body, SAMResultCache.createKey(endpointURL, body),
+                            lineHandler);
+        if (response == null || response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                || response.statusCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+            if (capabilities.mayUse(SAMServerCapabilities.STREAMING))
+                response = HttpUtils.postStreamingRequest(endpointURL, verifySSL, body, lineHandler);
+            else
+                response = HttpUtils.postRequest(endpointURL, verifySSL, body);
+        }
 
-        if (isCancelled())
-            return Collections.emptyList();
+        if (isStopped())
+            return false;
 
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-            updateMessage("Processing done.");
-            return parseResponse(response, regionRequests.get(0));
+            if (!response.body().isEmpty()) {
+                // The server does not stream the results
+                acceptFrame(parseResponse(response.body(), regionRequests.get(0), frames).stream()
+                        .filter(pathObject -> !skipped.contains(getFrameIndex(pathObject)))
+                        .collect(Collectors.toList()), keep, detected);
+            }
+            return true;
         } else {
             logger.error("HTTP response: {}, {}", response.statusCode(), response.body());
-            return Collections.emptyList();
+            return false;
         }
     }
 
-    private List<PathObject> parseResponse(HttpResponse<String> response, RegionRequest regionRequest) {
-        List<PathObject> samObjects = Utils.parsePathObjects(response.body());
+    private void acceptFrame(List<PathObject> pathObjects, IntPredicate keep, List<PathObject> detected) {
+        if (pathObjects.isEmpty())
+            return;
+        detected.addAll(pathObjects);
+        if (frameListener == null)
+            return;
+        List<PathObject> kept = pathObjects.stream()
+                .filter(pathObject -> keep.test(getFrameIndex(pathObject) - indexOffset))
+                .collect(Collectors.toList());
+        if (!kept.isEmpty())
+            frameListener.accept(kept);
+    }
+
+    /**
+     * Parse the objects of a response, mapping the frame indices of the server to planes of the image.
+     * 
+     * @param frames
+     *            indices of the region requests, in the order they were sent to the server
+     */
+    private List<PathObject> parseResponse(String body, RegionRequest regionRequest, List<Integer> frames) {
+        List<PathObject> samObjects = Utils.parsePathObjects(body);
         AffineTransform transform = new AffineTransform();
         transform.translate(regionRequest.getMinX(), regionRequest.getMinY());
         transform.scale(regionRequest.getDownsample(), regionRequest.getDownsample());
@@ -224,12 +706,14 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         for (PathObject pathObject : samObjects) {
             ImagePlane plane = pathObject.getROI().getImagePlane();
             if (promptMode == SAMPromptMode.XYZ) {
-                plane = ImagePlane.getPlane(indexOffset + plane.getZ(), plane.getT());
+                plane = ImagePlane.getPlane(indexOffset + frames.get(plane.getZ()), plane.getT());
             } else if (promptMode == SAMPromptMode.XYT) {
-                plane = ImagePlane.getPlane(plane.getZ(), indexOffset + plane.getT());
+                plane = ImagePlane.getPlane(plane.getZ(), indexOffset + frames.get(plane.getT()));
             }
-            PathClass pathClass = indexToPathClass.get(Integer.valueOf(pathObject.getPathClass().getName()));
-            pathObject = Utils.applyTransformAndClassification(pathObject, transform, pathClass, plane);
+            Integer objID = Integer.valueOf(pathObject.getPathClass().getName());
+            pathObject = Utils.applyTransformAndClassification(pathObject, transform, indexToPathClass.get(objID),
+                    plane);
+            trackIDs.put(pathObject, objID);
             if (setName)
                 Utils.setNameForSAM(pathObject);
             if (setRandomColor && pathObject.getPathClass() == null)
@@ -250,12 +734,27 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         return new Builder(viewer);
     }
 
+    /**
+     * New builder for a SAM task that does not depend on a viewer, e.g. for headless scripts or benchmarks.
+     * <p>
+     * An RGB server and the region(s) to process should be specified explicitly. If no server is given, the server
+     * of the image data is used when it is RGB.
+     * 
+     * @param imageData
+     *            the image data containing the image to be processed
+     * @return the builder
+     */
+    public static Builder builder(ImageData<BufferedImage> imageData) {
+        return new Builder(imageData);
+    }
+
     /**
      * Builder for a SAMSequenceTask class.
      */
     public static class Builder {
 
         private QuPathViewer viewer;
+        private ImageData<BufferedImage> imageData;
 
         private Map<Integer, List<SAMVideoPromptObject>> objs;
 
@@ -273,11 +772,25 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         private int indexOffset;
         private Map<Integer, PathClass> indexToPathClass;
         private int planePosition;
+        private int uploadConnections = 4;
+        private boolean reuseUploads = true;
+        private boolean sharedMemory = false;
+        private Consumer<List<PathObject>> frameListener;
+        private int windowSize;
+        private int windowOverlap = 4;
+        private boolean bidirectional = false;
+        private int keyframeStep = 1;
+        private int resumeFrame;
+        private Collection<? extends PathObject> previousObjects = Collections.emptyList();
 
         private Builder(QuPathViewer viewer) {
             this.viewer = viewer;
         }
 
+        private Builder(ImageData<BufferedImage> imageData) {
+            this.imageData = imageData;
+        }
+
         /**
          * Specify the server URL (required).
          * 
@@ -350,7 +863,7 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
         /**
          * Optionally specify a server to provide the pixels.
          * This should be an RGB server. Otherwise, a rendered server will be created
-         * from the viewer.
+         * from the viewer, if available.
          * 
          * @param server
          * @return this builder
@@ -443,6 +956,131 @@ public class SAMSequenceTask extends Task<List<PathObject>> {
             return this;
         }
 
+        /**
+         * Specify the number of concurrent connections used to upload the frames.
+         * Default is 4.
+         * 
+         * @param uploadConnections
+         * @return this builder
+         */
+        public Builder uploadConnections(final int uploadConnections) {
+            this.uploadConnections = uploadConnections;
+            return this;
+        }
+
+        /**
+         * Specify whether to reuse frames that were already uploaded to the server.
+         * If true, frames are identified by their content and only frames missing on the server are uploaded;
+         * otherwise, all frames are uploaded to a new directory.
+         * Default is true.
+         * 
+         * @param reuseUploads
+         * @return this builder
+         */
+        public Builder reuseUploads(final boolean reuseUploads) {
+            this.reuseUploads = reuseUploads;
+            return this;
+        }
+
+        /**
+         * Hand frames to the server through shared memory instead of encoding them, if it runs on this machine.
+         * Frames are encoded and uploaded as usual if the server rejects them.
+         * Default is false.
+         * 
+         * @param sharedMemory
+         * @return this builder
+         */
+        public Builder sharedMemory(final boolean sharedMemory) {
+            this.sharedMemory = sharedMemory;
+            return this;
+        }
+
+        /**
+         * Specify a listener that receives the objects of each frame as soon as they arrive from the server.
+         * The listener is called from background threads, possibly from two at once when propagating in both
+         * directions; all objects are also returned when the task completes.
+         * 
+         * @param frameListener
+         * @return this builder
+         */
+        public Builder frameListener(final Consumer<List<PathObject>> frameListener) {
+            this.frameListener = frameListener;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of frames the server processes at once.
+         * Longer sequences are split into overlapping windows, and the objects found at the start of each window
+         * are used as the prompts for it.
+         * Default is 0, which processes the whole sequence at once.
+         * 
+         * @param windowSize
+         * @return this builder
+         */
+        public Builder windowSize(final int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Specify the number of frames shared by consecutive windows, up to half the window size.
+         * Default is 4.
+         * 
+         * @param windowOverlap
+         * @return this builder
+         */
+        public Builder windowOverlap(final int windowOverlap) {
+            this.windowOverlap = windowOverlap;
+            return this;
+        }
+
+        /**
+         * Specify whether to propagate forwards and backwards at the same time when the first prompt is not on the
+         * first frame.
+         * Default is false.
+         * 
+         * @param bidirectional
+         * @return this builder
+         */
+        public Builder bidirectional(final boolean bidirectional) {
+            this.bidirectional = bidirectional;
+            return this;
+        }
+
+        /**
+         * Specify the spacing of the frames sent to the server.
+         * With a step greater than 1, only every n-th frame (plus the last frame and the prompted frames) is
+         * processed by SAM, and objects on the frames in between are interpolated from the neighbouring keyframes.
+         * Default is 1, which processes every frame.
+         * 
+         * @param keyframeStep
+         * @return this builder
+         */
+        public Builder keyframeStep(final int keyframeStep) {
+            this.keyframeStep = keyframeStep;
+            return this;
+        }
+
+        /**
+         * Only propagate forwards from a frame, e.g. after the prompts of that frame have been edited.
+         * The results of an earlier run on the frame before are used as prompts for the objects that are not
+         * prompted there, so that the frames before {@code frame} do not need to be processed again.
+         * Only objects on {@code frame} and later frames are returned.
+         * Bidirectional runs ignore this if {@code frame} is not after the last prompt, see
+         * {@link SAMSequenceTask#getResumeFrame()}.
+         * 
+         * @param frame
+         *            the first frame to process, relative to the index offset
+         * @param previousObjects
+         *            the objects of the earlier run; only those on the frame before {@code frame} are used
+         * @return this builder
+         */
+        public Builder resumeFrom(final int frame, final Collection<? extends PathObject> previousObjects) {
+            this.resumeFrame = frame;
+            this.previousObjects = Objects.requireNonNull(previousObjects);
+            return this;
+        }
+
         /**
          * Build the detection task.
          * 
@@ -224,6 +224,12 @@ public class SAMAutoMaskPane extends GridPane {
                                 command.getIncludeImageEdgeProperty(),
                                 "Include image edge in SAM auto mask generator");
 
+                CheckBox cbDistributed = createCheckbox("Distribute across servers",
+                                command.getDistributedAutoMaskProperty(),
+                                "Send crops and parts of the point grid to all servers in parallel,\n"
+                                                + "and merge the masks in QuPath.\n"
+                                                + "The server must accept explicit point grids.");
+
                 GridPane checkboxPane = SAMUIUtils.createColumnPane(cbRandomColors, cbAssignNames);
                 checkboxPane.add(cbClearCurrentObjects, 0, 1, GridPane.REMAINING, 1);
                 checkboxPane.setVgap(SAMUIUtils.V_GAP);
@@ -231,6 +237,8 @@ public class SAMAutoMaskPane extends GridPane {
                 checkboxPane.setVgap(SAMUIUtils.V_GAP);
                 checkboxPane.add(cbIncludeImageEdge, 0, 2, GridPane.REMAINING, 1);
                 checkboxPane.setVgap(SAMUIUtils.V_GAP);
+                checkboxPane.add(cbDistributed, 1, 2, GridPane.REMAINING, 1);
+                checkboxPane.setVgap(SAMUIUtils.V_GAP);
 
                 add(checkboxPane, 0, row, GridPane.REMAINING, 1);
                 setMinSize(GridPane.USE_COMPUTED_SIZE, GridPane.USE_COMPUTED_SIZE);
@@ -260,7 +268,14 @@ public class SAMAutoMaskPane extends GridPane {
                                 "Run the model once using the selected annotations (points or rectangles)"));
                 btnRunOnce.disableProperty().bind(isSAM3CompatibleBinding.or(command.getDisableRunning()));
 
-                Pane buttonPane = SAMUIUtils.createColumnPane(btnResetParameters, btnRunOnce);
+                Button btnRunProject = new Button("Run for project");
+                btnRunProject.setOnAction(event -> command.runAutoMaskForProject());
+                btnRunProject.setMaxWidth(Double.MAX_VALUE);
+                btnRunProject.setTooltip(new Tooltip(
+                                "Run the auto mask tile by tile on all images in the project and save the results"));
+                btnRunProject.disableProperty().bind(isSAM3CompatibleBinding.or(command.getDisableRunning()));
+
+                Pane buttonPane = SAMUIUtils.createColumnPane(btnResetParameters, btnRunOnce, btnRunProject);
                 add(buttonPane, 0, row, GridPane.REMAINING, 1);
         }
 
@@ -4,6 +4,7 @@ import org.controlsfx.dialog.ProgressDialog;
 import org.elephant.sam.commands.SAMMainCommand;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.entities.SAMWeights;
+import org.elephant.sam.http.SAMServerPool;
 import org.elephant.sam.tasks.SAMProgressTask;
 
 import javafx.beans.binding.Bindings;
@@ -23,7 +24,6 @@ import javafx.scene.control.Separator;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.control.TabPane.TabClosingPolicy;
-import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.Tooltip;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
@@ -32,6 +32,10 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.text.TextAlignment;
+import qupath.lib.gui.tools.GuiTools;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.util.Arrays;
 
 /**
  * The main pane for the SAM command.
@@ -131,7 +135,8 @@ public class SAMMainPane extends GridPane {
         GridPane.setFillWidth(labelUrl, true);
         GridPane.setHgrow(labelUrl, Priority.ALWAYS);
         Tooltip tooltip = new Tooltip("The server running SAM detection.\n" +
-                "This must be set up and running before any detection can happen.");
+                "This must be set up and running before any detection can happen.\n" +
+                "Several servers can be given, separated by commas.");
         labelUrl.setTooltip(tooltip);
 
         Button btnEdit = new Button("Edit");
@@ -156,10 +161,29 @@ public class SAMMainPane extends GridPane {
 
     private void promptToSetUrl() {
         String currentURL = command.getServerURLProperty().get();
-        TextInputDialog dialog = new TextInputDialog(currentURL);
-        dialog.setHeaderText("Input SAM server URL");
-        dialog.getEditor().setPrefColumnCount(32);
-        String newURL = dialog.showAndWait().orElse(currentURL);
+        ParameterList params = new ParameterList()
+                .addStringParameter("serverURL", "Server URL", currentURL,
+                        "URL of the SAM server.\nSeparate the URLs of several servers with commas to spread requests "
+                                + "across them")
+                .addChoiceParameter("routing", "Routing (several servers)",
+                        command.getServerRoutingProperty().get(), Arrays.asList(SAMServerPool.Routing.values()),
+                        "LEAST_OUTSTANDING sends each request to the server with the fewest requests in progress.\n"
+                                + "LATENCY_WEIGHTED also favours servers that have been responding faster")
+                .addBooleanParameter("sharedMemory", "Shared memory for local servers",
+                        command.getSharedMemoryProperty().get(),
+                        "Hand auto mask images and video frames to servers on this machine through shared memory "
+                                + "instead of encoding them.\nServers that do not support it are sent encoded images")
+                .addBooleanParameter("resultStore", "Store results in the project",
+                        command.getResultStoreProperty().get(),
+                        "Keep server results in the 'sam/cache' folder of the project, so that they can be reused "
+                                + "in later sessions and by other QuPath instances");
+        if (!GuiTools.showParameterDialog("Input SAM server URL", params))
+            return;
+        command.getServerRoutingProperty().set(
+                (SAMServerPool.Routing) params.getChoiceParameterValue("routing"));
+        command.getSharedMemoryProperty().set(params.getBooleanParameterValue("sharedMemory"));
+        command.getResultStoreProperty().set(params.getBooleanParameterValue("resultStore"));
+        String newURL = params.getStringParameterValue("serverURL");
         if (newURL == null || newURL.isBlank() || newURL.equals(currentURL))
             return;
         command.getServerURLProperty().set(newURL);
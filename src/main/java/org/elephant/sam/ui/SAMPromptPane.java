@@ -262,7 +262,17 @@ public class SAMPromptPane extends GridPane {
         confidenceThreshSpinner.disableProperty().bind(isSAM3CompatibleBinding.not());
         GridPane confidenceThreshPane = SAMUIUtils.createColumnPane(
                 new Label("Pred IoU thresh"), confidenceThreshSpinner);
-        VBox vbox = new VBox(sam3Label, textPane, cbResetPrompts, confidenceThreshPane);
+
+        Button btnRunProject = new Button("Run text prompt for project");
+        btnRunProject.setOnAction(event -> command.runTextPromptForProject());
+        btnRunProject.setMaxWidth(Double.MAX_VALUE);
+        btnRunProject.setTooltip(new Tooltip(
+                "Run the text prompt tile by tile on all images in the project and save the results"));
+        btnRunProject.disableProperty().bind(isSAM3CompatibleBinding.not()
+                .or(command.getDisableRunning())
+                .or(command.getTextPromptProperty().isEmpty()));
+
+        VBox vbox = new VBox(sam3Label, textPane, cbResetPrompts, confidenceThreshPane, btnRunProject);
 
         add(vbox, 0, i, GridPane.REMAINING, 1);
     }
@@ -381,9 +391,24 @@ public class SAMPromptPane extends GridPane {
                 command.getQuPath().getOverlayOptions().showNamesProperty(),
                 "Display the annotation names in the viewer\n(this is a global preference)");
 
+        CheckBox cbLocalDecoder = createCheckbox("Decode locally",
+                command.getLocalDecoderProperty(),
+                "Request only the image embedding from the server, and decode prompts on this computer.\n" +
+                        "Repeated prompts on the same view are then much faster.\n" +
+                        "Not available for SAM3; prompts are sent to the server if it doesn't support this.");
+        cbLocalDecoder.disableProperty().bind(isSAM3CompatibleBinding);
+
+        CheckBox cbHedgeRequests = createCheckbox("Hedge requests",
+                command.getHedgeRequestsProperty(),
+                "If several servers are used, also send a prompt to a second server\n" +
+                        "when the first is slower than usual, and use the first answer.\n" +
+                        "At most 5% of prompts are sent twice.");
+
         GridPane checkboxPane = SAMUIUtils.createColumnPane(cbRandomColors, cbAssignNames);
         checkboxPane.add(cbKeepPrompts, 0, 1, GridPane.REMAINING, 1);
         checkboxPane.add(cbDisplayNames, 1, 1, GridPane.REMAINING, 1);
+        checkboxPane.add(cbLocalDecoder, 0, 2, GridPane.REMAINING, 1);
+        checkboxPane.add(cbHedgeRequests, 1, 2, GridPane.REMAINING, 1);
         checkboxPane.setVgap(SAMUIUtils.V_GAP);
 
         add(checkboxPane, 0, row, GridPane.REMAINING, 1);
@@ -492,7 +517,21 @@ public class SAMPromptPane extends GridPane {
                     new SpinnerValueFactory.IntegerSpinnerValueFactory(0, max, max));
         });
 
-        HBox hboxFromTo = new HBox(fromIndexLabel, fromIndexSpinner, toIndexLabel, toIndexSpinner);
+        Label windowSizeLabel = new Label("window");
+        Spinner<Integer> windowSizeSpinner = SAMUIUtils.createIntegerSpinner(0, 100000,
+                command.getVideoWindowSizeProperty(), 50,
+                "Maximum number of frames processed at once, for long sequences (0 to process the whole range at once)");
+
+        Label keyframeStepLabel = new Label("step");
+        Spinner<Integer> keyframeStepSpinner = SAMUIUtils.createIntegerSpinner(1, 100,
+                command.getVideoKeyframeStepProperty(), 1,
+                "Process every n-th frame and interpolate the objects on the frames in between (1 to process every frame)");
+
+        CheckBox cbBidirectional = createCheckbox("Both ways", command.getVideoBidirectionalProperty(),
+                "Propagate backwards from the prompts as well, when the first prompt is not on the first frame");
+
+        HBox hboxFromTo = new HBox(fromIndexLabel, fromIndexSpinner, toIndexLabel, toIndexSpinner, windowSizeLabel,
+                windowSizeSpinner, keyframeStepLabel, keyframeStepSpinner, cbBidirectional);
         hboxFromTo.visibleProperty().bind(samPromptModeProperty.isNotEqualTo(SAMPromptMode.XY));
         hboxFromTo.setSpacing(SAMUIUtils.H_GAP);
         hboxFromTo.setMaxWidth(Double.MAX_VALUE);
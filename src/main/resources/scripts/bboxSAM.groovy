@@ -1,3 +1,4 @@
+import org.elephant.sam.SAM;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.tasks.SAMDetectionTask;
@@ -38,7 +39,8 @@ int width = 450
 int height = 250
 
 def regionRequest = RegionRequest.createInstance(path, downsample, x, y, width, height)
-def task = SAMDetectionTask.builder(getCurrentViewer())
+def task = SAMDetectionTask.builder(getCurrentImageData())
+                .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                 .serverURL("http://localhost:8000/sam/")
                 .regionRequest(regionRequest)
                 .addForegroundPrompts(bboxes)
@@ -48,6 +50,5 @@ def task = SAMDetectionTask.builder(getCurrentViewer())
                 .setName(true)
                 .setRandomColor(true)
                 .build();
-Platform.runLater(task);
-def annotations = task.get();
+def annotations = SAM.detect(task);
 addObjects(annotations);
\ No newline at end of file
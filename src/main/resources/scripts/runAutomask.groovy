@@ -1,3 +1,4 @@
+import org.elephant.sam.SAM;
 import org.elephant.sam.entities.SAMType;
 import org.elephant.sam.entities.SAMOutput;
 import org.elephant.sam.tasks.SAMAutoMaskTask;
@@ -13,7 +14,8 @@ int height = 100
 
 def regionRequest = RegionRequest.createInstance(path, downsample, x, y, width, height)
 
-def task = SAMAutoMaskTask.builder(getCurrentViewer())
+def task = SAMAutoMaskTask.builder(getCurrentImageData())
+                .server(org.elephant.sam.Utils.createRenderedServer(getCurrentImageData()))
                 .serverURL("http://localhost:8000/sam/")
                 .regionRequest(regionRequest)
                 .model(SAMType.VIT_L)
@@ -34,4 +36,6 @@ def task = SAMAutoMaskTask.builder(getCurrentViewer())
                 .minMaskRegionArea(0)
                 .includeImageEdge(true)
                 .build();
-Platform.runLater(task);
+def detected = SAM.autoMask(task);
+clearAllObjects();
+addObjects(detected);
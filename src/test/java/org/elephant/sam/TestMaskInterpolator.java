@@ -0,0 +1,80 @@
+package org.elephant.sam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestMaskInterpolator {
+
+    private static final ImagePlane PLANE = ImagePlane.getDefaultPlane();
+
+    private final MaskInterpolator interpolator = new MaskInterpolator(256);
+
+    @Test
+    public void testEndpoints() {
+        ROI roi1 = ROIs.createRectangleROI(0, 0, 100, 100, PLANE);
+        ROI roi2 = ROIs.createRectangleROI(100, 0, 100, 100, PLANE);
+        ROI start = interpolator.interpolate(roi1, roi2, 0, PLANE);
+        ROI end = interpolator.interpolate(roi1, roi2, 1, PLANE);
+        assertEquals(roi1.getArea(), start.getArea(), 0.01 * roi1.getArea());
+        assertEquals(roi1.getBoundsX(), start.getBoundsX(), 1);
+        assertEquals(roi1.getBoundsWidth(), start.getBoundsWidth(), 1);
+        assertEquals(roi2.getArea(), end.getArea(), 0.01 * roi2.getArea());
+        assertEquals(roi2.getBoundsX(), end.getBoundsX(), 1);
+        assertEquals(roi2.getBoundsWidth(), end.getBoundsWidth(), 1);
+    }
+
+    @Test
+    public void testTranslation() {
+        ROI roi1 = ROIs.createRectangleROI(0, 0, 100, 100, PLANE);
+        ROI roi2 = ROIs.createRectangleROI(20, 10, 100, 100, PLANE);
+        ROI roi = interpolator.interpolate(roi1, roi2, 0.5, PLANE);
+        assertNotNull(roi);
+        assertEquals(60, roi.getCentroidX(), 1);
+        assertEquals(55, roi.getCentroidY(), 1);
+        // Corners are rounded off, so the area shrinks a little
+        assertEquals(roi1.getArea(), roi.getArea(), 0.05 * roi1.getArea());
+    }
+
+    @Test
+    public void testGrowth() {
+        ROI roi1 = ROIs.createEllipseROI(80, 80, 40, 40, PLANE);
+        ROI roi2 = ROIs.createEllipseROI(60, 60, 80, 80, PLANE);
+        ROI roi = interpolator.interpolate(roi1, roi2, 0.5, PLANE);
+        assertNotNull(roi);
+        // Concentric circles blend to the circle of intermediate radius
+        assertEquals(Math.PI * 30 * 30, roi.getArea(), 0.1 * Math.PI * 30 * 30);
+        assertEquals(100, roi.getCentroidX(), 1);
+        assertEquals(100, roi.getCentroidY(), 1);
+    }
+
+    @Test
+    public void testLargeObjectsAreDownsampled() {
+        ROI roi1 = ROIs.createRectangleROI(0, 0, 4000, 2000, PLANE);
+        ROI roi2 = ROIs.createRectangleROI(0, 0, 4000, 2000, PLANE);
+        ROI roi = new MaskInterpolator(64).interpolate(roi1, roi2, 0.5, PLANE);
+        assertEquals(roi1.getArea(), roi.getArea(), 0.05 * roi1.getArea());
+    }
+
+    @Test
+    public void testPlane() {
+        ImagePlane plane = ImagePlane.getPlane(2, 3);
+        ROI roi = interpolator.interpolate(ROIs.createRectangleROI(0, 0, 10, 10, PLANE),
+                ROIs.createRectangleROI(0, 0, 20, 20, PLANE), 0.5, plane);
+        assertEquals(plane, roi.getImagePlane());
+    }
+
+    @Test
+    public void testDisjointIsEmpty() {
+        ROI roi1 = ROIs.createRectangleROI(0, 0, 10, 10, PLANE);
+        ROI roi2 = ROIs.createRectangleROI(200, 0, 10, 10, PLANE);
+        assertNull(interpolator.interpolate(roi1, roi2, 0.5, PLANE));
+    }
+
+}
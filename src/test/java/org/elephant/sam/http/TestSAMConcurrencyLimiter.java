@@ -0,0 +1,122 @@
+package org.elephant.sam.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TestSAMConcurrencyLimiter {
+
+    @Test
+    public void testInitialLimit() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 2, 1, 10, 2.0);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertFalse(limiter.hasCapacity());
+        assertEquals(2, limiter.getInFlight());
+        limiter.releaseIgnored();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testLimitsAreClamped() {
+        assertEquals(4, new SAMConcurrencyLimiter("test", 100, 1, 4, 2.0).getLimit());
+        assertEquals(1, new SAMConcurrencyLimiter("test", 0, 0, 4, 2.0).getLimit());
+        assertEquals(3, new SAMConcurrencyLimiter("test", 1, 3, 2, 2.0).getLimit());
+    }
+
+    @Test
+    public void testGrowsToMaxWhileLimited() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 2, 1, 4, 2.0);
+        for (int round = 0; round < 20; round++) {
+            int n = 0;
+            while (limiter.tryAcquire())
+                n++;
+            for (int i = 0; i < n; i++)
+                limiter.release(10);
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testDoesNotGrowWhenUnused() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 4, 1, 10, 2.0);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(10);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testLatencyBackoff() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 10, 1, 20, 2.0);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(10);
+        assertEquals(10, limiter.getLimit());
+        // Within the tolerance
+        assertTrue(limiter.tryAcquire());
+        limiter.release(20);
+        assertEquals(10, limiter.getLimit());
+        // Queueing on the server
+        assertTrue(limiter.tryAcquire());
+        limiter.release(100);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void testFailureBackoff() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 8, 1, 20, 2.0);
+        int[] expected = { 4, 2, 1, 1 };
+        for (int limit : expected) {
+            assertTrue(limiter.tryAcquire());
+            limiter.releaseDropped();
+            assertEquals(limit, limiter.getLimit());
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testReleaseIgnored() {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 3, 1, 20, 2.0);
+        assertTrue(limiter.tryAcquire());
+        limiter.releaseIgnored();
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        SAMConcurrencyLimiter limiter = new SAMConcurrencyLimiter("test", 1, 1, 1, 2.0);
+        assertTrue(limiter.tryAcquire());
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        awaitState(waiting, Thread.State.WAITING);
+        assertEquals(1, limiter.getInFlight());
+        limiter.release(10);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(waiting.isAlive());
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (thread.getState() != state) {
+            if (System.currentTimeMillis() > end)
+                throw new AssertionError(thread.getName() + " is " + thread.getState() + ", expected " + state);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.elephant.sam.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestSAMResultStore {
+
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final String KEY1 = SAMResultCache.createKey("http://localhost:8000/sam/", "{\"id\":1}");
+
+    private static final String KEY2 = SAMResultCache.createKey("http://localhost:8000/sam/", "{\"id\":2}");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testRoundTrip() {
+        SAMResultStore store = new SAMResultStore(dir, MAX_BYTES);
+        assertNull(store.get(KEY1));
+        store.put(KEY1, "first");
+        store.put(KEY2, "second");
+        assertEquals("first", store.get(KEY1));
+        assertEquals("second", store.get(KEY2));
+        store.close();
+    }
+
+    @Test
+    public void testSharedBetweenInstances() {
+        SAMResultStore store = new SAMResultStore(dir, MAX_BYTES);
+        store.put(KEY1, "first");
+        store.close();
+
+        SAMResultStore other = new SAMResultStore(dir, MAX_BYTES);
+        assertEquals("first", other.get(KEY1));
+        other.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsIgnored() throws IOException {
+        SAMResultStore store = new SAMResultStore(dir, MAX_BYTES);
+        store.put(KEY1, "first");
+        store.put(KEY2, "second");
+        store.close();
+
+        // Flip a byte of the compressed body of the first record
+        Path segment = getSegment();
+        long offset = 12 + KEY1.getBytes(StandardCharsets.UTF_8).length + 4;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, offset);
+        }
+
+        // The checksum fails, but the following record is still read
+        assertNull(store.get(KEY1));
+        assertEquals("second", store.get(KEY2));
+
+        SAMResultStore other = new SAMResultStore(dir, MAX_BYTES);
+        assertNull(other.get(KEY1));
+        assertEquals("second", other.get(KEY2));
+        // The corrupt entry can be stored again
+        other.put(KEY1, "first");
+        assertEquals("first", other.get(KEY1));
+        other.close();
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws IOException {
+        SAMResultStore store = new SAMResultStore(dir, MAX_BYTES);
+        store.put(KEY1, "first");
+        store.put(KEY2, "second");
+        store.close();
+
+        // As if the instance that wrote the segment was killed while appending
+        Path segment = getSegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        SAMResultStore other = new SAMResultStore(dir, MAX_BYTES);
+        assertEquals("first", other.get(KEY1));
+        assertNull(other.get(KEY2));
+        other.close();
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        SAMResultStore store = new SAMResultStore(dir, MAX_BYTES);
+        store.put(KEY1, "first");
+        store.clear();
+        assertNull(store.get(KEY1));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testGetKeepsSizeLimit() throws IOException {
+        final long maxBytes = 4 * 1024 * 1024;
+        // Stored results are compressed, so the body must not be compressible
+        byte[] bytes = new byte[512 * 1024];
+        new Random(42).nextBytes(bytes);
+        final String body = Base64.getEncoder().encodeToString(bytes);
+        SAMResultStore store = new SAMResultStore(dir, maxBytes);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String key = SAMResultCache.createKey("http://localhost:8000/sam/", "{\"id\":" + i + "}");
+            store.put(key, body);
+            keys.add(key);
+        }
+        // Reading entries of older segments appends them to the current one
+        for (int round = 0; round < 4; round++) {
+            for (String key : keys)
+                store.get(key);
+        }
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path segment : files.filter(p -> p.toString().endsWith(".seg")).collect(Collectors.toList()))
+                total += Files.size(segment);
+        }
+        assertTrue(total <= maxBytes + 2 * body.length(), "Stored results exceed the size limit: " + total);
+        store.close();
+    }
+
+    private Path getSegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter(p -> p.toString().endsWith(".seg")).collect(Collectors.toList());
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.elephant.sam.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class TestSAMSingleFlight {
+
+    private static final String KEY = "key";
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    private final SAMSingleFlight singleFlight = new SAMSingleFlight();
+
+    private final AtomicInteger sent = new AtomicInteger();
+
+    @AfterEach
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testIdenticalRequestsAreShared() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpResponse<String> response = HttpUtils.createResponse(200, "shared");
+        SAMSingleFlight.Call call = () -> {
+            sent.incrementAndGet();
+            started.countDown();
+            release.await();
+            return response;
+        };
+        Future<HttpResponse<String>> leader = pool.submit(() -> singleFlight.execute(KEY, call));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Thread> threads = new ArrayList<>();
+        List<Future<HttpResponse<String>>> followers = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            followers.add(submit(KEY, call, threads));
+        for (Thread thread : threads)
+            TestSAMConcurrencyLimiter.awaitState(thread, Thread.State.WAITING);
+        release.countDown();
+
+        assertSame(response, leader.get(5, TimeUnit.SECONDS));
+        for (Future<HttpResponse<String>> follower : followers)
+            assertSame(response, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, sent.get());
+        assertEquals(3, singleFlight.getSharedCount());
+    }
+
+    @Test
+    public void testKeyIsFreeAfterCompletion() throws Exception {
+        SAMSingleFlight.Call call = () -> {
+            sent.incrementAndGet();
+            return HttpUtils.createResponse(200, "done");
+        };
+        singleFlight.execute(KEY, call);
+        singleFlight.execute(KEY, call);
+        assertEquals(2, sent.get());
+        assertEquals(0, singleFlight.getSharedCount());
+    }
+
+    @Test
+    public void testNullKeyIsNotShared() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SAMSingleFlight.Call call = () -> {
+            sent.incrementAndGet();
+            release.await();
+            return HttpUtils.createResponse(200, "done");
+        };
+        Future<HttpResponse<String>> first = pool.submit(() -> singleFlight.execute(null, call));
+        Future<HttpResponse<String>> second = pool.submit(() -> singleFlight.execute(null, call));
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, sent.get());
+        assertEquals(0, singleFlight.getSharedCount());
+    }
+
+    @Test
+    public void testCancelledLeaderHandsOver() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        HttpResponse<String> response = HttpUtils.createResponse(200, "retried");
+        SAMSingleFlight.Call call = () -> {
+            if (sent.incrementAndGet() == 1) {
+                started.countDown();
+                // Blocks until the leader is cancelled
+                new CountDownLatch(1).await();
+            }
+            return response;
+        };
+        Future<HttpResponse<String>> leader = pool.submit(() -> singleFlight.execute(KEY, call));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Thread> threads = new ArrayList<>();
+        Future<HttpResponse<String>> follower = submit(KEY, call, threads);
+        TestSAMConcurrencyLimiter.awaitState(threads.get(0), Thread.State.WAITING);
+        leader.cancel(true);
+
+        // The follower sends the request itself rather than failing with the leader
+        assertSame(response, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SAMSingleFlight.Call call = () -> {
+            sent.incrementAndGet();
+            started.countDown();
+            release.await();
+            throw new IOException("Connection refused");
+        };
+        Future<HttpResponse<String>> leader = pool.submit(() -> singleFlight.execute(KEY, call));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Thread> threads = new ArrayList<>();
+        Future<HttpResponse<String>> follower = submit(KEY, call, threads);
+        TestSAMConcurrencyLimiter.awaitState(threads.get(0), Thread.State.WAITING);
+        release.countDown();
+
+        ExecutionException leaderException = assertThrows(ExecutionException.class,
+                () -> leader.get(5, TimeUnit.SECONDS));
+        assertTrue(leaderException.getCause() instanceof IOException);
+        ExecutionException followerException = assertThrows(ExecutionException.class,
+                () -> follower.get(5, TimeUnit.SECONDS));
+        assertTrue(followerException.getCause() instanceof IOException);
+        assertEquals(1, sent.get());
+    }
+
+    /**
+     * Execute a call on a new thread, so that the test can wait until the thread is blocked.
+     */
+    private Future<HttpResponse<String>> submit(String key, SAMSingleFlight.Call call, List<Thread> threads) {
+        FutureTask<HttpResponse<String>> task = new FutureTask<>(() -> singleFlight.execute(key, call));
+        Thread thread = new Thread(task);
+        threads.add(thread);
+        thread.start();
+        return task;
+    }
+
+}
@@ -0,0 +1,173 @@
+package org.elephant.sam.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the time taken by requests to a server on the same machine over a Unix domain socket and over loopback
+ * TCP.
+ * <p>
+ * Both servers run the same minimal HTTP/1.1 loop, which keeps TCP connections open as a real server would, and the
+ * requests are sent with {@link HttpUtils#postRequest(CloseableHttpClient, String, String)} as for a real server.
+ * This is a benchmark rather than a test, so it only runs with the {@code SAM_BENCHMARK} environment variable set to
+ * {@code true}, e.g. {@code SAM_BENCHMARK=true ./gradlew test --tests '*TestUnixSocketBenchmark'}.
+ */
+@EnabledIfEnvironmentVariable(named = "SAM_BENCHMARK", matches = "true")
+public class TestUnixSocketBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestUnixSocketBenchmark.class);
+
+    private static final int WARMUP_REQUESTS = 500;
+
+    private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+            + "Content-Length: 2\r\n\r\n[]").getBytes(StandardCharsets.ISO_8859_1);
+
+    @TempDir
+    Path dir;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void stopServers() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSmallRequests() throws Exception {
+        compare("Small", "{\"point_coords\":[[120,80]],\"point_labels\":[1]}", 5000);
+    }
+
+    @Test
+    public void testLargeRequests() throws Exception {
+        // About the size of an encoded 1024 x 1024 RGB image
+        byte[] image = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(image);
+        compare("4 MB", "{\"b64img\":\"" + Base64.getEncoder().encodeToString(image) + "\"}", 50);
+    }
+
+    private void compare(String name, String body, int requests) throws Exception {
+        try (ServerSocketChannel unixServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                ServerSocketChannel tcpServer = ServerSocketChannel.open(StandardProtocolFamily.INET);
+                CloseableHttpClient httpClient = HttpUtils.newHttpClient(true, 1)) {
+            Path socket = dir.resolve("sam.sock");
+            unixServer.bind(UnixDomainSocketAddress.of(socket));
+            tcpServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            serve(unixServer);
+            serve(tcpServer);
+            String unixURL = UnixSocketTransport.SCHEME + ":" + socket + ":/sam/";
+            String tcpURL = "http://127.0.0.1:" + ((InetSocketAddress) tcpServer.getLocalAddress()).getPort()
+                    + "/sam/";
+
+            int warmup = Math.min(requests, WARMUP_REQUESTS);
+            time(httpClient, unixURL, body, warmup);
+            time(httpClient, tcpURL, body, warmup);
+            double unixMillis = time(httpClient, unixURL, body, requests);
+            double tcpMillis = time(httpClient, tcpURL, body, requests);
+            logger.info(String.format(Locale.ROOT,
+                    "%s requests: %.3f ms over the Unix domain socket, %.3f ms over loopback TCP (%d requests)",
+                    name, unixMillis, tcpMillis, requests));
+        }
+    }
+
+    /**
+     * Send requests one after the other.
+     *
+     * @return the mean time per request in milliseconds
+     */
+    private static double time(CloseableHttpClient httpClient, String url, String body, int requests)
+            throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            HttpResponse<String> response = HttpUtils.postRequest(httpClient, url, body);
+            assertEquals(200, response.statusCode());
+        }
+        return (System.nanoTime() - start) / 1e6 / requests;
+    }
+
+    /**
+     * Accept connections until the server is closed.
+     */
+    private void serve(ServerSocketChannel server) {
+        executor.execute(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel channel = server.accept();
+                    executor.execute(() -> handle(channel));
+                } catch (IOException e) {
+                    // Closed at the end of the benchmark
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Answer the requests of a connection until the client closes it or asks for it to be closed.
+     */
+    private static void handle(SocketChannel channel) {
+        try (channel) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            while (readLine(in) != null) {
+                long length = 0;
+                boolean close = false;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    String header = line.toLowerCase(Locale.ROOT);
+                    if (header.startsWith("content-length:"))
+                        length = Long.parseLong(header.substring(15).strip());
+                    else if (header.startsWith("connection:") && header.contains("close"))
+                        close = true;
+                }
+                in.skipNBytes(length);
+                out.write(RESPONSE);
+                out.flush();
+                if (close)
+                    return;
+            }
+        } catch (IOException e) {
+            // The client closed the connection
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n')
+            line.write(b);
+        if (b < 0 && line.size() == 0)
+            return null;
+        String s = line.toString(StandardCharsets.ISO_8859_1);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+}
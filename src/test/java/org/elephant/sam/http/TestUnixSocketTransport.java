@@ -0,0 +1,178 @@
+package org.elephant.sam.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestUnixSocketTransport {
+
+    @TempDir
+    Path dir;
+
+    private Path socket;
+
+    private ServerSocketChannel server;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        socket = dir.resolve("sam.sock");
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testURLs() {
+        assertTrue(UnixSocketTransport.isUnixURL("unix:/tmp/samapi.sock:/sam/"));
+        assertTrue(UnixSocketTransport.isUnixURL("UNIX:/tmp/samapi.sock"));
+        assertFalse(UnixSocketTransport.isUnixURL("http://localhost:8000/sam/"));
+        assertFalse(UnixSocketTransport.isUnixURL(null));
+        assertEquals("unix:/tmp/samapi.sock:/", UnixSocketTransport.normalizeURL("unix:/tmp/samapi.sock"));
+        assertEquals("unix:/tmp/samapi.sock:/sam/", UnixSocketTransport.normalizeURL("unix:/tmp/samapi.sock:/sam/"));
+    }
+
+    @Test
+    public void testContentLength() throws Exception {
+        CompletableFuture<String> request = serve("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello, and more");
+        assertEquals("hello", get("/sam/"));
+        assertTrue(request.get(5, TimeUnit.SECONDS).startsWith("GET /sam/ HTTP/1.1\r\n"));
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\n");
+        assertEquals("hello world", get("/sam/"));
+    }
+
+    @Test
+    public void testUntilClose() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\nhello world");
+        assertEquals("hello world", get("/sam/"));
+    }
+
+    @Test
+    public void testSkipsInterimResponses() throws Exception {
+        serve("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok");
+        assertEquals("201 ok", UnixSocketTransport.execute(new HttpGet(createURL("/sam/")),
+                r -> r.getCode() + " " + EntityUtils.toString(r.getEntity()), 5000));
+    }
+
+    @Test
+    public void testTruncatedContentLength() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello");
+        assertThrows(IOException.class, () -> get("/sam/"));
+    }
+
+    @Test
+    public void testTruncatedChunk() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\na\r\nhello");
+        assertThrows(IOException.class, () -> get("/sam/"));
+    }
+
+    @Test
+    public void testInvalidChunkSize() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\nhello\r\n0\r\n\r\n");
+        assertThrows(IOException.class, () -> get("/sam/"));
+    }
+
+    @Test
+    public void testPostBody() throws Exception {
+        CompletableFuture<String> request = serve("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        HttpPost post = new HttpPost(createURL("/sam/automask/"));
+        post.setEntity(new StringEntity("{\"b64img\":\"\"}", ContentType.APPLICATION_JSON));
+        assertEquals(200, (int) UnixSocketTransport.execute(post, r -> r.getCode(), 5000));
+        String head = request.get(5, TimeUnit.SECONDS);
+        assertTrue(head.startsWith("POST /sam/automask/ HTTP/1.1\r\n"));
+        assertTrue(head.contains("Content-Length: 13\r\n"));
+        assertTrue(head.endsWith("{\"b64img\":\"\"}"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // Accept the connection but never answer
+        CompletableFuture<SocketChannel> accepted = CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.accept();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(InterruptedIOException.class, () -> UnixSocketTransport.execute(new HttpGet(createURL("/sam/")),
+                r -> EntityUtils.toString(r.getEntity()), 200));
+        accepted.get(5, TimeUnit.SECONDS).close();
+    }
+
+    private String createURL(String path) {
+        return UnixSocketTransport.SCHEME + ":" + socket + ":" + path;
+    }
+
+    private String get(String path) throws IOException {
+        ClassicHttpRequest request = new HttpGet(createURL(path));
+        return UnixSocketTransport.execute(request, r -> EntityUtils.toString(r.getEntity()), 5000);
+    }
+
+    /**
+     * Accept one connection, read the request and write a canned response.
+     *
+     * @return the request, including the body if it has a Content-Length
+     */
+    private CompletableFuture<String> serve(String response) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (SocketChannel channel = server.accept()) {
+                InputStream in = Channels.newInputStream(channel);
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                while (!request.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+                    int b = in.read();
+                    if (b < 0)
+                        break;
+                    request.write(b);
+                }
+                String head = request.toString(StandardCharsets.ISO_8859_1);
+                int index = head.indexOf("Content-Length: ");
+                if (index >= 0) {
+                    int length = Integer.parseInt(head.substring(index + 16, head.indexOf("\r\n", index)));
+                    request.write(in.readNBytes(length));
+                }
+                OutputStream out = Channels.newOutputStream(channel);
+                out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                return request.toString(StandardCharsets.ISO_8859_1);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.elephant.sam.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compare the shards of an auto mask run with the crops and point grids of the automatic mask generator of Segment
+ * Anything ({@code generate_crop_boxes} and {@code build_all_layer_point_grids} in {@code amg.py}).
+ */
+public class TestSAMAutoMaskShard {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testSingleLayerIsWholeImage() {
+        List<SAMAutoMaskShard> shards = SAMAutoMaskShard.plan(1000, 800, 32, 0, 512 / 1500.0, 1, 1, 64);
+        assertEquals(1, shards.size());
+        assertArrayEquals(new int[] { 0, 0, 1000, 800 }, shards.get(0).getCropBox());
+        assertEquals(32 * 32, shards.get(0).getPoints().length);
+        assertEquals(1000.0 * 800, shards.get(0).getCropArea(), DELTA);
+    }
+
+    @Test
+    public void testCropBoxes() {
+        // generate_crop_boxes((800, 1000), 1, 512 / 1500)
+        int[][] expected = {
+                { 0, 0, 1000, 800 },
+                { 0, 0, 637, 537 },
+                { 0, 264, 637, 800 },
+                { 364, 0, 1000, 537 },
+                { 364, 264, 1000, 800 }
+        };
+        List<int[]> cropBoxes = new ArrayList<>(getPoints(
+                SAMAutoMaskShard.plan(1000, 800, 32, 1, 512 / 1500.0, 2, 1, 64)).keySet());
+        assertEquals(expected.length, cropBoxes.size());
+        for (int i = 0; i < expected.length; i++)
+            assertArrayEquals(expected[i], cropBoxes.get(i));
+    }
+
+    @Test
+    public void testCropBoxesTwoLayers() {
+        // generate_crop_boxes((600, 600), 2, 0.25)
+        List<int[]> cropBoxes = new ArrayList<>(getPoints(
+                SAMAutoMaskShard.plan(600, 600, 16, 2, 0.25, 2, 1, 1)).keySet());
+        assertEquals(1 + 4 + 16, cropBoxes.size());
+        assertArrayEquals(new int[] { 0, 0, 375, 375 }, cropBoxes.get(1));
+        assertArrayEquals(new int[] { 225, 225, 600, 600 }, cropBoxes.get(4));
+        assertArrayEquals(new int[] { 0, 0, 207, 207 }, cropBoxes.get(5));
+        assertArrayEquals(new int[] { 0, 132, 207, 339 }, cropBoxes.get(6));
+        assertArrayEquals(new int[] { 396, 396, 600, 600 }, cropBoxes.get(20));
+    }
+
+    @Test
+    public void testPointGrid() {
+        // build_point_grid(4): x varies fastest
+        double[] oneSide = { 0.125, 0.375, 0.625, 0.875 };
+        double[][] points = SAMAutoMaskShard.plan(100, 100, 4, 0, 0, 1, 1, 1).get(0).getPoints();
+        assertEquals(16, points.length);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(oneSide[x], points[y * 4 + x][0], DELTA);
+                assertEquals(oneSide[y], points[y * 4 + x][1], DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testPointsPerLayer() {
+        // build_all_layer_point_grids(32, 2, 2): 32, 16 and 8 points per side
+        Map<int[], List<double[]>> points = getPoints(SAMAutoMaskShard.plan(1024, 1024, 32, 2, 512 / 1500.0, 2, 1, 1));
+        List<List<double[]>> crops = new ArrayList<>(points.values());
+        assertEquals(21, crops.size());
+        assertEquals(32 * 32, crops.get(0).size());
+        for (int i = 1; i < 5; i++)
+            assertEquals(16 * 16, crops.get(i).size());
+        for (int i = 5; i < 21; i++)
+            assertEquals(8 * 8, crops.get(i).size());
+        assertEquals(1.0 / 32, crops.get(1).get(0)[0], DELTA);
+    }
+
+    @Test
+    public void testShardsCoverAllPoints() {
+        List<SAMAutoMaskShard> whole = SAMAutoMaskShard.plan(1000, 800, 32, 1, 512 / 1500.0, 2, 1, 1);
+        List<SAMAutoMaskShard> split = SAMAutoMaskShard.plan(1000, 800, 32, 1, 512 / 1500.0, 2, 4, 1);
+        // 2048 points in 4 shards: the full image grid is split in two, and each crop is a shard
+        assertEquals(6, split.size());
+        Map<int[], List<double[]>> wholePoints = getPoints(whole);
+        Map<int[], List<double[]>> splitPoints = getPoints(split);
+        assertEquals(wholePoints.size(), splitPoints.size());
+        List<List<double[]>> expected = new ArrayList<>(wholePoints.values());
+        List<List<double[]>> actual = new ArrayList<>(splitPoints.values());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).size(), actual.get(i).size());
+            for (int p = 0; p < expected.get(i).size(); p++)
+                assertArrayEquals(expected.get(i).get(p), actual.get(i).get(p), DELTA);
+        }
+    }
+
+    @Test
+    public void testMinPointsPerShard() {
+        List<SAMAutoMaskShard> shards = SAMAutoMaskShard.plan(1000, 800, 32, 0, 512 / 1500.0, 1, 100, 256);
+        assertEquals(4, shards.size());
+        for (SAMAutoMaskShard shard : shards)
+            assertEquals(256, shard.getPoints().length);
+    }
+
+    /**
+     * Collect the points of the shards by crop, in the order of the crops.
+     */
+    private static Map<int[], List<double[]>> getPoints(List<SAMAutoMaskShard> shards) {
+        Map<int[], List<double[]>> points = new LinkedHashMap<>();
+        for (SAMAutoMaskShard shard : shards) {
+            // Shards of the same crop share the crop box
+            points.computeIfAbsent(shard.getCropBox(), k -> new ArrayList<>()).addAll(List.of(shard.getPoints()));
+        }
+        return points;
+    }
+
+}